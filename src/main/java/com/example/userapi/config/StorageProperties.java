@@ -0,0 +1,383 @@
+package com.example.userapi.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+/**
+ * Settings for the user store, bound from the {@code userapi.storage.*} properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "userapi.storage")
+public class StorageProperties {
+
+    /**
+     * How mutations reach the disk.
+     */
+    public enum PersistenceMode {
+        /**
+         * Rewrite the whole data file on every mutation.
+         */
+        SNAPSHOT,
+
+        /**
+         * Append one record per mutation to a write-ahead log next to the data file.
+         */
+        WAL
+    }
+
+    /**
+     * When a mutation counts as done relative to the disk.
+     */
+    public enum Durability {
+        /**
+         * Return as soon as the change is in memory; a background thread writes it without fsync.
+         */
+        ASYNC,
+
+        /**
+         * Wait until a background thread has written and fsynced the change together with all
+         * other changes of the same short window.
+         */
+        GROUP_COMMIT,
+
+        /**
+         * Write and fsync every change on the request thread before returning.
+         */
+        ALWAYS
+    }
+
+    /**
+     * Which store keeps the users.
+     */
+    public enum Engine {
+        /**
+         * Users live in on-heap indexes; the data file (and in WAL mode the log) persist them.
+         */
+        FILE,
+
+        /**
+         * Users live in fixed-size slots of a memory-mapped record file, addressed by id.
+         */
+        MAPPED,
+
+        /**
+         * Users live only in on-heap indexes and are lost on restart.
+         */
+        MEMORY,
+
+        /**
+         * Users live in a table of an embedded H2 database, reached through a connection pool.
+         */
+        JDBC,
+
+        /**
+         * Users are partitioned by id hash over several file stores, each with its own data
+         * file and writer thread.
+         */
+        SHARDED
+    }
+
+    /**
+     * Where the file and sharded engines keep the users they hold in memory.
+     */
+    public enum Records {
+        /**
+         * Compact objects on the Java heap.
+         */
+        HEAP,
+
+        /**
+         * Encoded records in direct buffers outside the heap; only the indexes stay on the heap,
+         * so the GC has little to trace. Counts against {@code -XX:MaxDirectMemorySize}.
+         */
+        OFF_HEAP
+    }
+
+    /**
+     * Encoding of the data file.
+     */
+    public enum FileFormat {
+        /**
+         * A JSON array of users.
+         */
+        JSON,
+
+        /**
+         * Length-prefixed binary user records; smaller and faster to load than JSON.
+         */
+        BINARY
+    }
+
+    private Engine engine = Engine.FILE;
+
+    private String dataFile = "users.json";
+
+    /**
+     * Format used when writing the data file. Existing files are read in whichever format they
+     * were written in.
+     */
+    private FileFormat format = FileFormat.JSON;
+
+    private Records records = Records.HEAP;
+
+    private PersistenceMode persistence = PersistenceMode.SNAPSHOT;
+
+    /**
+     * Waits for an fsync before a change is acknowledged, which earlier versions never did. With
+     * snapshot persistence each batch therefore rewrites and fsyncs the whole data file.
+     */
+    private Durability durability = Durability.GROUP_COMMIT;
+
+    /**
+     * How long the group-commit thread collects changes before writing them. With zero, a batch
+     * is whatever arrived while the previous fsync was running.
+     */
+    private Duration groupCommitWindow = Duration.ZERO;
+
+    /**
+     * How many changes may wait for the single writer thread before callers block.
+     */
+    private int writerQueueCapacity = 4096;
+
+    /**
+     * Number of shards of the sharded engine. Fixed once the shard files exist.
+     */
+    private int shards = 4;
+
+    private final Compaction compaction = new Compaction();
+
+    private final Mapped mapped = new Mapped();
+
+    private final Jdbc jdbc = new Jdbc();
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public String getDataFile() {
+        return dataFile;
+    }
+
+    public void setDataFile(String dataFile) {
+        this.dataFile = dataFile;
+    }
+
+    public FileFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(FileFormat format) {
+        this.format = format;
+    }
+
+    public Records getRecords() {
+        return records;
+    }
+
+    public void setRecords(Records records) {
+        this.records = records;
+    }
+
+    public PersistenceMode getPersistence() {
+        return persistence;
+    }
+
+    public void setPersistence(PersistenceMode persistence) {
+        this.persistence = persistence;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public Duration getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    public void setGroupCommitWindow(Duration groupCommitWindow) {
+        this.groupCommitWindow = groupCommitWindow;
+    }
+
+    public int getWriterQueueCapacity() {
+        return writerQueueCapacity;
+    }
+
+    public void setWriterQueueCapacity(int writerQueueCapacity) {
+        this.writerQueueCapacity = writerQueueCapacity;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    public Compaction getCompaction() {
+        return compaction;
+    }
+
+    public Mapped getMapped() {
+        return mapped;
+    }
+
+    public Jdbc getJdbc() {
+        return jdbc;
+    }
+
+    /**
+     * When the write-ahead log is folded into a fresh snapshot of the data file.
+     */
+    public static class Compaction {
+
+        /**
+         * How often a snapshot is written while the log has records.
+         */
+        private Duration snapshotInterval = Duration.ofMinutes(5);
+
+        /**
+         * Log size that triggers a snapshot before the interval is up.
+         */
+        private DataSize maxLogSize = DataSize.ofMegabytes(64);
+
+        /**
+         * Log record count that triggers a snapshot before the interval is up.
+         */
+        private long maxLogRecords = 100_000;
+
+        public Duration getSnapshotInterval() {
+            return snapshotInterval;
+        }
+
+        public void setSnapshotInterval(Duration snapshotInterval) {
+            this.snapshotInterval = snapshotInterval;
+        }
+
+        public DataSize getMaxLogSize() {
+            return maxLogSize;
+        }
+
+        public void setMaxLogSize(DataSize maxLogSize) {
+            this.maxLogSize = maxLogSize;
+        }
+
+        public long getMaxLogRecords() {
+            return maxLogRecords;
+        }
+
+        public void setMaxLogRecords(long maxLogRecords) {
+            this.maxLogRecords = maxLogRecords;
+        }
+    }
+
+    /**
+     * Settings for the memory-mapped engine.
+     */
+    public static class Mapped {
+
+        /**
+         * Record file. If it does not exist yet, it is filled from the data file on startup.
+         */
+        private String file = "users.dat";
+
+        /**
+         * Bytes per record slot; a power of two. Each user has two slots, so an update never
+         * overwrites the last complete record. Users whose record does not fit are rejected.
+         */
+        private int slotSize = 1024;
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public int getSlotSize() {
+            return slotSize;
+        }
+
+        public void setSlotSize(int slotSize) {
+            this.slotSize = slotSize;
+        }
+    }
+
+    /**
+     * Settings for the JDBC engine.
+     */
+    public static class Jdbc {
+
+        /**
+         * Database URL. The users table is created if missing and, while empty, filled from the
+         * data file on startup.
+         */
+        private String url = "jdbc:h2:file:./users-db";
+
+        private String username = "sa";
+
+        private String password = "";
+
+        /**
+         * Connections kept open by the pool.
+         */
+        private int poolSize = 10;
+
+        /**
+         * Statements sent to the database in one round trip when importing or writing many users.
+         */
+        private int batchSize = 500;
+
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public void setPassword(String password) {
+            this.password = password;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package com.example.userapi.controller;
 
+import com.example.userapi.exception.DuplicateUserException;
 import com.example.userapi.model.Role;
 import com.example.userapi.model.User;
-import com.example.userapi.repository.UserRepository;
+import com.example.userapi.repository.UserStore;
 import com.example.userapi.security.JwtUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
@@ -21,7 +22,7 @@ import java.util.Optional;
 public class AuthController {
 
     @Autowired
-    private UserRepository userRepository;
+    private UserStore userRepository;
 
     @Autowired
     private PasswordEncoder passwordEncoder;
@@ -30,17 +31,21 @@ public class AuthController {
     private JwtUtil jwtUtil;
 
     /**
-     * Register a new user account.
+     * Register a new user account. The store claims the username and email as part of the save,
+     * so of two concurrent registrations for either only one succeeds.
      */
     @PostMapping("/register")
     public ResponseEntity<?> registerUser(@RequestBody RegisterRequest request) {
-        if (isUsernameAlreadyTaken(request.getUsername())) {
+        User newUser = createNewUser(request);
+        User savedUser;
+        try {
+            savedUser = userRepository.save(newUser);
+        } catch (DuplicateUserException e) {
             return ResponseEntity.badRequest()
-                .body(createErrorResponse("Username is already taken"));
+                .body(createErrorResponse("email".equals(e.getField())
+                    ? "Email is already registered"
+                    : "Username is already taken"));
         }
-
-        User newUser = createNewUser(request);
-        User savedUser = userRepository.save(newUser);
         
         String token = jwtUtil.generateTokenWithRole(
             savedUser.getUsername(), 
@@ -77,10 +82,6 @@ public class AuthController {
         return ResponseEntity.ok(createAuthResponse(token, user));
     }
 
-    private boolean isUsernameAlreadyTaken(String username) {
-        return userRepository.findByUsername(username).isPresent();
-    }
-
     private User createNewUser(RegisterRequest request) {
         User user = new User();
         user.setName(request.getName());
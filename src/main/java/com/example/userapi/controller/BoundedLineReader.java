@@ -0,0 +1,69 @@
+package com.example.userapi.controller;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines like {@link java.io.BufferedReader#readLine()}, but keeps at most a fixed number of
+ * characters of each line and skips the rest, so one endless line in a request body cannot fill
+ * the heap. Lines end with {@code \n}, {@code \r} or {@code \r\n}.
+ */
+class BoundedLineReader {
+
+    private final Reader in;
+    private final int maxLength;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private final StringBuilder line = new StringBuilder();
+    private boolean truncated;
+    // The last line ended with \r, so a \n right after it belongs to that line
+    private boolean afterCarriageReturn;
+
+    BoundedLineReader(Reader in, int maxLength) {
+        this.in = in;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the next line, cut to the maximum length, or null at the end of the input
+     */
+    String readLine() throws IOException {
+        line.setLength(0);
+        truncated = false;
+        boolean started = false;
+        while (true) {
+            if (position == limit) {
+                limit = Math.max(0, in.read(buffer, 0, buffer.length));
+                position = 0;
+                if (limit == 0) {
+                    return started ? line.toString() : null;
+                }
+            }
+            char c = buffer[position++];
+            if (afterCarriageReturn) {
+                afterCarriageReturn = false;
+                if (c == '\n') {
+                    continue;
+                }
+            }
+            if (c == '\n' || c == '\r') {
+                afterCarriageReturn = c == '\r';
+                return line.toString();
+            }
+            started = true;
+            if (line.length() < maxLength) {
+                line.append(c);
+            } else {
+                truncated = true;
+            }
+        }
+    }
+
+    /**
+     * Whether the line last returned was longer than the maximum length.
+     */
+    boolean truncated() {
+        return truncated;
+    }
+}
@@ -1,43 +1,153 @@
 package com.example.userapi.controller;
 
+import com.example.userapi.model.Role;
 import com.example.userapi.model.User;
+import com.example.userapi.dto.BulkUserResult;
+import com.example.userapi.dto.ErrorResponse;
 import com.example.userapi.dto.UserCreateRequest;
+import com.example.userapi.dto.UserLookupRequest;
+import com.example.userapi.dto.UserLookupResponse;
 import com.example.userapi.dto.UserUpdateRequest;
-import com.example.userapi.exception.UserNotFoundException;
 import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.exception.InvalidRequestException;
+import com.example.userapi.exception.UserNotFoundException;
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
-import com.example.userapi.repository.UserRepository;
+import javax.validation.Validator;
+import com.example.userapi.repository.UserFilter;
+import com.example.userapi.repository.UserStore;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @RestController
 @RequestMapping("/api/users")
 public class UserController {
 
+    private static final int MAX_SEARCH_LIMIT = 100;
+    private static final int MAX_EDIT_DISTANCE = 2;
+    private static final int MIN_SUBSTRING_LENGTH = 3;
+    private static final int DEFAULT_PAGE_LIMIT = 100;
+    private static final int MAX_PAGE_LIMIT = 1000;
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final String NDJSON = "application/x-ndjson";
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    private static final int BULK_BATCH_SIZE = 1000;
+
+    @Autowired
+    private UserStore userRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private Validator validator;
+
+    @Autowired
+    private UserFieldWriters userFieldWriters;
+
     @Autowired
-    private UserRepository userRepository;
+    private UserJsonCache userJsonCache;
+
+    @Value("${userapi.lookup.max-batch-size:1000}")
+    private int maxLookupBatchSize;
+
+    @Value("${userapi.bulk.max-line-length:16384}")
+    private int maxBulkLineLength;
 
-    // GET /api/users - Get all users
+    // GET /api/users?role=MANAGER&enabled=true&minAge=18&maxAge=30 - Get all users, or those meeting every given filter.
+    // With "after" or "limit" the list comes in pages by id; a page with more after it carries the id to pass as
+    // "after" for the next one in the X-Next-Cursor header
     @GetMapping
-    public ResponseEntity<List<User>> getAllUsers() {
-        List<User> users = userRepository.findAll();
-        return ResponseEntity.ok(users);
+    public ResponseEntity<List<User>> getAllUsers(@RequestParam(required = false) Role role,
+                                                  @RequestParam(required = false) Boolean enabled,
+                                                  @RequestParam(required = false) Integer minAge,
+                                                  @RequestParam(required = false) Integer maxAge,
+                                                  @RequestParam(required = false) Long after,
+                                                  @RequestParam(required = false) Integer limit) {
+        UserFilter filter = new UserFilter(role, enabled, minAge, maxAge);
+        if (after == null && limit == null) {
+            List<User> users = filter.isEmpty()
+                ? userRepository.findAll()
+                : userRepository.findAll(filter, 0, Integer.MAX_VALUE);
+            return ResponseEntity.ok(users);
+        }
+        int boundedLimit = limit != null ? Math.max(1, Math.min(limit, MAX_PAGE_LIMIT)) : DEFAULT_PAGE_LIMIT;
+        long from = after != null ? Math.max(0, after) : 0;
+        return page(userRepository.findAll(filter, from, boundedLimit + 1), boundedLimit);
+    }
+
+    // GET /api/users/export?fields=id,username - Every user as one line of JSON each (NDJSON), written while the
+    // users are read. The users are those of one snapshot, so changes made during the export are not part of it
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportUsers(@RequestParam(required = false) String fields) {
+        // Flushed once per page rather than after every user
+        ObjectWriter writer = (fields == null || fields.isBlank() ? objectMapper.writer() : userFieldWriters.writerFor(fields))
+            .forType(User.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        StreamingResponseBody body = out -> {
+            JsonGenerator generator = ndjsonGenerator(out);
+            // The store's shared read-only snapshot, so the export copies no user list of its own
+            List<User> users = userRepository.findAll();
+            for (int i = 0; i < users.size(); i++) {
+                writer.writeValue(generator, users.get(i));
+                if ((i + 1) % EXPORT_PAGE_SIZE == 0) {
+                    generator.flush();
+                }
+            }
+            if (!users.isEmpty()) {
+                generator.writeRaw('\n');
+            }
+            generator.close();
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
     }
 
-    // GET /api/users/{id} - Get user by ID
+    // GET /api/users/{id} - Get user by ID. The whole user is answered from its cached JSON when there is one
     @GetMapping("/{id}")
-    public ResponseEntity<User> getUserById(@PathVariable Long id) {
-        Optional<User> user = userRepository.findById(id);
-        if (user.isPresent()) {
-            return ResponseEntity.ok(user.get());
-        } else {
-            throw new UserNotFoundException(id);
+    public ResponseEntity<?> getUserById(@PathVariable Long id,
+                                         @RequestParam(required = false) String fields) throws JsonProcessingException {
+        if (fields != null && !fields.isBlank()) {
+            return ResponseEntity.ok(userRepository.findById(id).orElseThrow(() -> new UserNotFoundException(id)));
         }
+        // Taken before the read, so JSON of a user changed meanwhile is not kept
+        long version = userJsonCache.version(id);
+        byte[] json = userJsonCache.get(id, version);
+        if (json == null) {
+            Optional<User> user = userRepository.findById(id);
+            if (user.isEmpty()) {
+                throw new UserNotFoundException(id);
+            }
+            json = objectMapper.writeValueAsBytes(user.get());
+            userJsonCache.put(id, version, json);
+        }
+        // Written as is, without the object mapper
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(json);
     }
 
     // GET /api/users/username/{username} - Get user by username
@@ -51,32 +161,117 @@ public class UserController {
         }
     }
 
+    // GET /api/users/lookup?ids=1,2,3&usernames=jdoe,asmith - Many users in one request; the ids and usernames no
+    // user has are listed as missing
+    @GetMapping("/lookup")
+    public ResponseEntity<UserLookupResponse> lookupUsers(@RequestParam(required = false) List<Long> ids,
+                                                          @RequestParam(required = false) List<String> usernames) {
+        return ResponseEntity.ok(lookup(ids, usernames));
+    }
+
+    // POST /api/users/lookup - The same lookup with the keys in the body, for lists too long for a URL
+    @PostMapping("/lookup")
+    public ResponseEntity<UserLookupResponse> lookupUsersInBody(@RequestBody UserLookupRequest lookupRequest) {
+        return ResponseEntity.ok(lookup(lookupRequest.getIds(), lookupRequest.getUsernames()));
+    }
+
+    // GET /api/users/search?prefix=jo&limit=10 - Autocomplete on username and the words of the name
+    @GetMapping("/search")
+    public ResponseEntity<List<User>> searchUsers(@RequestParam(defaultValue = "") String prefix,
+                                                  @RequestParam(defaultValue = "10") int limit) {
+        if (prefix.isBlank()) {
+            return ResponseEntity.ok(List.of());
+        }
+        int boundedLimit = Math.max(1, Math.min(limit, MAX_SEARCH_LIMIT));
+        return ResponseEntity.ok(userRepository.searchByPrefix(prefix.strip(), boundedLimit));
+    }
+
+    // GET /api/users/similar?username=jhon&maxDistance=2&limit=10 - "Did you mean" candidates for a username
+    @GetMapping("/similar")
+    public ResponseEntity<List<User>> findSimilarUsernames(@RequestParam(defaultValue = "") String username,
+                                                           @RequestParam(defaultValue = "2") int maxDistance,
+                                                           @RequestParam(defaultValue = "10") int limit) {
+        if (username.isBlank()) {
+            return ResponseEntity.ok(List.of());
+        }
+        int boundedDistance = Math.max(0, Math.min(maxDistance, MAX_EDIT_DISTANCE));
+        int boundedLimit = Math.max(1, Math.min(limit, MAX_SEARCH_LIMIT));
+        return ResponseEntity.ok(userRepository.searchBySimilarUsername(username.strip(), boundedDistance, boundedLimit));
+    }
+
+    // GET /api/users/contains?text=example.com&after=0&limit=20 - Users with the text anywhere in name or email,
+    // in pages by id like the user list
+    @GetMapping("/contains")
+    public ResponseEntity<List<User>> searchUsersByText(@RequestParam String text,
+                                                        @RequestParam(defaultValue = "0") long after,
+                                                        @RequestParam(defaultValue = "20") int limit) {
+        String stripped = text.strip();
+        if (stripped.length() < MIN_SUBSTRING_LENGTH) {
+            throw new InvalidRequestException("Search text must have at least " + MIN_SUBSTRING_LENGTH + " characters");
+        }
+        int boundedLimit = Math.max(1, Math.min(limit, MAX_SEARCH_LIMIT));
+        return page(userRepository.searchBySubstring(stripped, Math.max(0, after), boundedLimit + 1), boundedLimit);
+    }
+
     // POST /api/users - Create new user
     @PostMapping
     public ResponseEntity<User> createUser(@Valid @RequestBody UserCreateRequest userRequest) {
-        // Check for duplicate username
-        if(userRepository.findByUsername(userRequest.getUsername()).isPresent()) {
-            throw new DuplicateUserException("username", userRequest.getUsername());
-        }
-
-        User user = new User(
-            userRequest.getName(),
-            userRequest.getEmail(),
-            userRequest.getAge(),
-            userRequest.getUsername(),
-            userRequest.getPassword(),
-            userRequest.getRole()
-        );
-        User savedUser = userRepository.save(user);
+        // The store rejects a taken username or email with a DuplicateUserException
+        User savedUser = userRepository.save(toUser(userRequest));
         return ResponseEntity.status(HttpStatus.CREATED).body(savedUser);
     }
 
+    // POST /api/users/bulk - Create users from NDJSON, one user creation request per line. Answers with one
+    // NDJSON result per non-blank line, in order, streamed as each batch of users is saved
+    @PostMapping("/bulk")
+    public ResponseEntity<StreamingResponseBody> bulkCreateUsers(InputStream requestBody) {
+        StreamingResponseBody body = out -> {
+            JsonGenerator generator = ndjsonGenerator(out);
+            ObjectWriter writer = objectMapper.writerFor(BulkUserResult.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            BoundedLineReader reader = new BoundedLineReader(
+                new InputStreamReader(requestBody, StandardCharsets.UTF_8), maxBulkLineLength);
+            // Results of the lines read since the last save, in order; those of the users still
+            // to be saved stand in until their batch is
+            List<BulkUserResult> results = new ArrayList<>();
+            List<User> batch = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() && !reader.truncated()) {
+                    continue;
+                }
+                User user = reader.truncated()
+                    ? rejectBulkLine(lineNumber, "Line is longer than " + maxBulkLineLength + " characters", results)
+                    : readBulkUser(line, lineNumber, results);
+                if (user != null) {
+                    positions.add(results.size());
+                    results.add(BulkUserResult.created(lineNumber, null));
+                    batch.add(user);
+                }
+                if (results.size() >= BULK_BATCH_SIZE) {
+                    saveBulkBatch(batch, positions, results);
+                    writeResults(results, writer, generator);
+                }
+            }
+            saveBulkBatch(batch, positions, results);
+            writeResults(results, writer, generator);
+            if (lineNumber > 0) {
+                generator.writeRaw('\n');
+            }
+            generator.close();
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
     // PUT /api/users/{id} - Update user by ID
     @PutMapping("/{id}")
     public ResponseEntity<User> updateUser(@PathVariable Long id, @Valid @RequestBody UserUpdateRequest userRequest) {
         Optional<User> existingUser = userRepository.findById(id);
         if (existingUser.isPresent()) {
-            User user = existingUser.get();
+            // Stored users are shared with concurrent readers, so update a copy
+            User user = new User(existingUser.get());
             if(userRequest.getName() != null) user.setName(userRequest.getName());
             if(userRequest.getEmail() != null) user.setEmail(userRequest.getEmail());
             if(userRequest.getAge() != null) user.setAge(userRequest.getAge());
@@ -97,4 +292,150 @@ public class UserController {
             throw new UserNotFoundException(id);
         }
     }
+
+    /**
+     * Finds the users with any of the ids or usernames, asking the store once for each kind of
+     * key. A user matched by both comes once, and keys asked for twice count once.
+     */
+    private UserLookupResponse lookup(List<Long> ids, List<String> usernames) {
+        int requested = (ids != null ? ids.size() : 0) + (usernames != null ? usernames.size() : 0);
+        if (requested > maxLookupBatchSize) {
+            throw new InvalidRequestException("At most " + maxLookupBatchSize + " ids and usernames can be looked up at once");
+        }
+        Set<Long> idKeys = new LinkedHashSet<>(ids != null ? ids : List.of());
+        idKeys.remove(null);
+        Set<String> usernameKeys = new LinkedHashSet<>(usernames != null ? usernames : List.of());
+        usernameKeys.remove(null);
+
+        List<User> users = new ArrayList<>(idKeys.size() + usernameKeys.size());
+        Set<Long> foundIds = new HashSet<>();
+        for (User user : userRepository.findAllById(idKeys)) {
+            foundIds.add(user.getId());
+            users.add(user);
+        }
+        Set<String> foundUsernames = new HashSet<>();
+        for (User user : userRepository.findAllByUsername(usernameKeys)) {
+            foundUsernames.add(user.getUsername());
+            if (foundIds.add(user.getId())) {
+                users.add(user);
+            }
+        }
+        List<Long> missingIds = idKeys.stream().filter(id -> !foundIds.contains(id)).collect(Collectors.toList());
+        List<String> missingUsernames = usernameKeys.stream()
+            .filter(username -> !foundUsernames.contains(username))
+            .collect(Collectors.toList());
+        return new UserLookupResponse(users, missingIds, missingUsernames);
+    }
+
+    private static User toUser(UserCreateRequest userRequest) {
+        return new User(
+            userRequest.getName(),
+            userRequest.getEmail(),
+            userRequest.getAge(),
+            userRequest.getUsername(),
+            userRequest.getPassword(),
+            userRequest.getRole()
+        );
+    }
+
+    /**
+     * Writes JSON values one per line, leaving the stream open for the container to close.
+     */
+    private JsonGenerator ndjsonGenerator(OutputStream out) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.setRootValueSeparator(new SerializedString("\n"));
+        return generator;
+    }
+
+    /**
+     * Parses and validates one line of a bulk import as a {@link UserCreateRequest}.
+     *
+     * @return the user to create, or null after adding to {@code results} why the line is invalid
+     */
+    private User readBulkUser(String line, int lineNumber, List<BulkUserResult> results) {
+        UserCreateRequest userRequest;
+        try {
+            userRequest = objectMapper.readValue(line, UserCreateRequest.class);
+        } catch (JsonProcessingException e) {
+            return rejectBulkLine(lineNumber, "Malformed JSON: " + e.getOriginalMessage(), results);
+        }
+        if (userRequest == null) {
+            return rejectBulkLine(lineNumber, "Expected a JSON object", results);
+        }
+        Set<ConstraintViolation<UserCreateRequest>> violations = validator.validate(userRequest);
+        if (!violations.isEmpty()) {
+            List<ErrorResponse.ValidationError> errors = violations.stream()
+                .map(violation -> {
+                    String field = violation.getPropertyPath().toString();
+                    // Passwords are not echoed back
+                    Object rejected = "password".equals(field) ? null : violation.getInvalidValue();
+                    return new ErrorResponse.ValidationError(field, rejected, violation.getMessage());
+                })
+                .sorted(Comparator.comparing(ErrorResponse.ValidationError::getField))
+                .collect(Collectors.toList());
+            results.add(BulkUserResult.invalid(lineNumber, "Input validation failed", errors));
+            return null;
+        }
+        return toUser(userRequest);
+    }
+
+    private static User rejectBulkLine(int lineNumber, String message, List<BulkUserResult> results) {
+        results.add(BulkUserResult.invalid(lineNumber, message, null));
+        return null;
+    }
+
+    /**
+     * Saves the batch with one commit and puts the outcome of each user at its position in
+     * {@code results}. If the commit itself fails, every user of the batch is reported failed,
+     * as none of them may be on disk.
+     */
+    private void saveBulkBatch(List<User> batch, List<Integer> positions, List<BulkUserResult> results) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<RuntimeException> failures;
+        try {
+            failures = userRepository.saveBatch(batch);
+        } catch (RuntimeException e) {
+            failures = Collections.nCopies(batch.size(), e);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            int position = positions.get(i);
+            int lineNumber = results.get(position).getLine();
+            RuntimeException failure = failures.get(i);
+            if (failure == null) {
+                results.set(position, BulkUserResult.created(lineNumber, batch.get(i).getId()));
+            } else if (failure instanceof DuplicateUserException) {
+                results.set(position, BulkUserResult.duplicate(lineNumber,
+                    ((DuplicateUserException) failure).getField(), failure.getMessage()));
+            } else {
+                results.set(position, BulkUserResult.failed(lineNumber, failure.getMessage()));
+            }
+        }
+        batch.clear();
+        positions.clear();
+    }
+
+    private void writeResults(List<BulkUserResult> results, ObjectWriter writer, JsonGenerator generator) throws IOException {
+        for (BulkUserResult result : results) {
+            writer.writeValue(generator, result);
+        }
+        generator.flush();
+        results.clear();
+    }
+
+    /**
+     * Responds with the first {@code limit} of {@code found}, which was asked for one more user
+     * than that. The extra user only shows there is a next page, which starts after the last
+     * user of this one.
+     */
+    private static ResponseEntity<List<User>> page(List<User> found, int limit) {
+        if (found.size() <= limit) {
+            return ResponseEntity.ok(found);
+        }
+        List<User> users = found.subList(0, limit);
+        String next = String.valueOf(users.get(limit - 1).getId());
+        return ResponseEntity.ok().header(NEXT_CURSOR_HEADER, next).body(users);
+    }
 }
@@ -0,0 +1,91 @@
+package com.example.userapi.controller;
+
+import com.example.userapi.exception.InvalidRequestException;
+import com.example.userapi.model.User;
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Jackson writers that serialize users with only some of their properties, for the
+ * {@code fields} parameter of the user endpoints. Each set of properties gets one writer, built
+ * the first time the set is asked for and reused by every later request, so a projection costs
+ * no more per request than a full user. Values other than users are written as usual.
+ */
+@Component
+public class UserFieldWriters {
+
+    static final String FIELDS_PARAMETER = "fields";
+    private static final String FILTER = "userFields";
+
+    private final ObjectMapper projecting;
+    // Serialized properties of a user, in output order; bit i of a projection stands for the i-th
+    private final List<String> properties = new ArrayList<>();
+    private final AtomicReferenceArray<ObjectWriter> writers;
+
+    public UserFieldWriters(ObjectMapper objectMapper) {
+        // A copy, so only projected writes consult the filter
+        projecting = objectMapper.copy().addMixIn(User.class, FilteredUser.class);
+        for (BeanPropertyDefinition property : projecting.getSerializationConfig()
+                .introspect(projecting.constructType(User.class)).findProperties()) {
+            if (property.couldSerialize()) {
+                properties.add(property.getName());
+            }
+        }
+        writers = new AtomicReferenceArray<>(1 << properties.size());
+    }
+
+    /**
+     * The writer for users with just the comma-separated properties, such as
+     * {@code id,username,role}.
+     *
+     * @throws InvalidRequestException if a name is not a property of users
+     */
+    public ObjectWriter writerFor(String fields) {
+        int projection = parse(fields);
+        ObjectWriter writer = writers.get(projection);
+        if (writer == null) {
+            Set<String> included = new HashSet<>();
+            for (int i = 0; i < properties.size(); i++) {
+                if ((projection & 1 << i) != 0) {
+                    included.add(properties.get(i));
+                }
+            }
+            // Threads racing here build equal writers, so either may win
+            writer = projecting.writer(new SimpleFilterProvider()
+                .addFilter(FILTER, SimpleBeanPropertyFilter.filterOutAllExcept(included)));
+            writers.set(projection, writer);
+        }
+        return writer;
+    }
+
+    private int parse(String fields) {
+        int projection = 0;
+        for (String field : fields.split(",")) {
+            String name = field.strip();
+            if (name.isEmpty()) {
+                continue;
+            }
+            int index = properties.indexOf(name);
+            if (index < 0) {
+                throw new InvalidRequestException("Unknown field '" + name + "'; fields are " + String.join(",", properties));
+            }
+            projection |= 1 << index;
+        }
+        return projection;
+    }
+
+    @JsonFilter(FILTER)
+    private abstract static class FilteredUser {
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.userapi.controller;
+
+import com.example.userapi.dto.UserLookupResponse;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import java.io.IOException;
+
+/**
+ * Applies the {@code fields} parameter to the reads of {@link UserController}, its GET requests
+ * and lookups: when it is given, the body is written with the {@link UserFieldWriters} writer for
+ * those fields, so users carry only the listed properties. Status and headers, such as the paging
+ * cursor, stay as the endpoint set them. Changes ignore the parameter, so a bad one cannot fail a
+ * request after its change was made.
+ */
+@RestControllerAdvice(assignableTypes = UserController.class)
+public class UserFieldsAdvice implements ResponseBodyAdvice<Object> {
+
+    @Autowired
+    private UserFieldWriters userFieldWriters;
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return AbstractJackson2HttpMessageConverter.class.isAssignableFrom(converterType);
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        boolean read = request.getMethod() == HttpMethod.GET || body instanceof UserLookupResponse;
+        if (body == null || !read || !(request instanceof ServletServerHttpRequest)) {
+            return body;
+        }
+        String fields = ((ServletServerHttpRequest) request).getServletRequest().getParameter(UserFieldWriters.FIELDS_PARAMETER);
+        if (fields == null || fields.isBlank()) {
+            return body;
+        }
+        return new Projected(body, userFieldWriters.writerFor(fields));
+    }
+
+    /**
+     * A response body that the message converter hands to the projecting writer.
+     */
+    private static final class Projected implements JsonSerializable {
+        private final Object body;
+        private final ObjectWriter writer;
+
+        private Projected(Object body, ObjectWriter writer) {
+            this.body = body;
+            this.writer = writer;
+        }
+
+        @Override
+        public void serialize(JsonGenerator generator, SerializerProvider serializers) throws IOException {
+            writer.writeValue(generator, body);
+        }
+
+        @Override
+        public void serializeWithType(JsonGenerator generator, SerializerProvider serializers, TypeSerializer typeSerializer) throws IOException {
+            serialize(generator, serializers);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.userapi.controller;
+
+import com.example.userapi.repository.UserStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Encoded JSON of recently read users, so {@code GET /api/users/{id}} can answer with bytes
+ * instead of serializing the same user again. Bounded by the total size of the JSON it holds.
+ *
+ * <p>Eviction follows W-TinyLFU. New entries go to a small window; entries pushed out of the
+ * window join the main region only if they were read more often than the entry the main region
+ * would give up for them, as estimated by a count-min sketch of recent reads. A burst of one-off
+ * reads therefore cannot flush the users that are read all the time. Both regions are queues that
+ * give a second chance to entries read since they were last looked at, rather than LRU lists, so
+ * a hit only sets a flag and never takes the lock.
+ *
+ * <p>Every id has a version, bumped by {@link #invalidate(long)} after the user changed; the cache
+ * registers with the user store, so every save or delete through any path invalidates it. A reader
+ * takes the version before it reads the user and caches the JSON under it, so JSON encoded from a
+ * user that changed meanwhile is never served. Versions are kept per stripe of ids, so a change
+ * may also cost a few other users their cached JSON.
+ */
+@Component
+public class UserJsonCache {
+
+    private static final int VERSION_STRIPES = 4096;
+    private static final int WINDOW_PERCENT = 1;
+    // Expected size of one user's JSON, for sizing the sketch
+    private static final int TYPICAL_ENTRY_BYTES = 256;
+
+    private final long maxWindowBytes;
+    private final long maxMainBytes;
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final FrequencySketch sketch;
+
+    // Guarded by this. The queues may still hold entries that were replaced or invalidated;
+    // those are skipped when they come up.
+    private final ArrayDeque<Entry> window = new ArrayDeque<>();
+    private final ArrayDeque<Entry> main = new ArrayDeque<>();
+    private long windowBytes;
+    private long mainBytes;
+    private int discarded;
+
+    @Autowired
+    public UserJsonCache(@Value("${userapi.user-json-cache.max-size:16MB}") DataSize maxSize, UserStore userStore) {
+        this(maxSize);
+        userStore.addChangeListener(this::invalidate);
+    }
+
+    UserJsonCache(DataSize maxSize) {
+        long maxBytes = maxSize.toBytes();
+        maxWindowBytes = maxBytes * WINDOW_PERCENT / 100;
+        maxMainBytes = maxBytes - maxWindowBytes;
+        sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxBytes / TYPICAL_ENTRY_BYTES)));
+    }
+
+    /**
+     * The version to pass to {@link #get(long, long)} and {@link #put(long, long, byte[])}; take
+     * it before reading the user.
+     */
+    public long version(long id) {
+        return versions.get(stripe(id));
+    }
+
+    /**
+     * The cached JSON of the user, if it was encoded at {@code version}, or null.
+     */
+    public byte[] get(long id, long version) {
+        sketch.increment(id);
+        Entry entry = entries.get(id);
+        if (entry == null || entry.version != version) {
+            return null;
+        }
+        byte[] json = entry.json;
+        // Null once evicted meanwhile
+        if (json != null) {
+            entry.referenced = true;
+        }
+        return json;
+    }
+
+    /**
+     * Caches the JSON of the user as read after {@link #version(long)} returned {@code version}.
+     * Does nothing if the user has changed since.
+     */
+    public synchronized void put(long id, long version, byte[] json) {
+        if (version != version(id)) {
+            return;
+        }
+        Entry entry = new Entry(id, version, json);
+        Entry previous = entries.put(id, entry);
+        if (previous != null) {
+            discard(previous);
+        }
+        entry.inWindow = true;
+        window.addLast(entry);
+        windowBytes += json.length;
+        while (windowBytes > maxWindowBytes) {
+            Entry candidate = window.pollFirst();
+            if (candidate.removed) {
+                discarded--;
+                continue;
+            }
+            candidate.inWindow = false;
+            windowBytes -= candidate.weight;
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Drops the cached JSON of the user. Called by the user store after every change to the
+     * user, once it is stored.
+     */
+    public synchronized void invalidate(long id) {
+        versions.incrementAndGet(stripe(id));
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            discard(entry);
+        }
+    }
+
+    /**
+     * Total size of the cached JSON, in bytes.
+     */
+    synchronized long weightedSize() {
+        return windowBytes + mainBytes;
+    }
+
+    /**
+     * Moves a candidate from the window to the main region if that makes room for it by giving
+     * up only entries read less often; otherwise drops the candidate.
+     */
+    private void admit(Entry candidate) {
+        if (candidate.weight > maxMainBytes) {
+            evict(candidate);
+            return;
+        }
+        while (mainBytes + candidate.weight > maxMainBytes) {
+            Entry victim = nextVictim();
+            if (sketch.frequency(candidate.id) <= sketch.frequency(victim.id)) {
+                main.addFirst(victim);
+                evict(candidate);
+                return;
+            }
+            mainBytes -= victim.weight;
+            evict(victim);
+        }
+        main.addLast(candidate);
+        mainBytes += candidate.weight;
+    }
+
+    /**
+     * Takes the next live entry off the main queue, sending those read since their last turn to
+     * the back once. The main region holds entries whenever this is called.
+     */
+    private Entry nextVictim() {
+        int passes = main.size();
+        while (true) {
+            Entry entry = main.pollFirst();
+            if (entry.removed) {
+                discarded--;
+                continue;
+            }
+            // Bounded, as hits keep setting the flag while the queue is scanned
+            if (entry.referenced && passes-- > 0) {
+                entry.referenced = false;
+                main.addLast(entry);
+                continue;
+            }
+            return entry;
+        }
+    }
+
+    private void evict(Entry entry) {
+        entries.remove(entry.id, entry);
+        entry.removed = true;
+        entry.json = null;
+    }
+
+    /**
+     * Drops an entry that is still in one of the queues.
+     */
+    private void discard(Entry entry) {
+        if (entry.inWindow) {
+            windowBytes -= entry.weight;
+        } else {
+            mainBytes -= entry.weight;
+        }
+        entry.removed = true;
+        entry.json = null;
+        // Purge the dropped entries once they outnumber the live ones
+        if (++discarded > entries.size() + 1024) {
+            window.removeIf(queued -> queued.removed);
+            main.removeIf(queued -> queued.removed);
+            discarded = 0;
+        }
+    }
+
+    private static int stripe(long id) {
+        return (int) (id & (VERSION_STRIPES - 1));
+    }
+
+    private static final class Entry {
+        private final long id;
+        private final long version;
+        private final int weight;
+        private volatile byte[] json;
+        private volatile boolean referenced;
+        // Guarded by the cache
+        private boolean inWindow;
+        private boolean removed;
+
+        private Entry(long id, long version, byte[] json) {
+            this.id = id;
+            this.version = version;
+            this.weight = json.length;
+            this.json = json;
+        }
+    }
+
+    /**
+     * Count-min sketch of how often each id was read recently: four 4-bit counters per id, in
+     * rows picked by four hashes, of which the smallest is the estimate. Once there have been ten
+     * increments per slot, all counters are halved, so old reads fade.
+     *
+     * <p>Safe for any number of threads; an increment lost to a concurrent halving only makes an
+     * estimate a little low.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private final AtomicLongArray table;
+        private final int mask;
+        private final int sampleSize;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        private FrequencySketch(int expectedEntries) {
+            int length = Integer.highestOneBit(Math.max(4, expectedEntries - 1)) << 1;
+            table = new AtomicLongArray(length);
+            mask = length - 1;
+            sampleSize = 10 * length;
+        }
+
+        private void increment(long id) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long hash = hash(id, i);
+                added |= incrementAt((int) hash & mask, (int) (hash >>> 60) << 2);
+            }
+            if (added && additions.incrementAndGet() == sampleSize) {
+                halve();
+            }
+        }
+
+        private int frequency(long id) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long hash = hash(id, i);
+                int count = (int) (table.get((int) hash & mask) >>> ((int) (hash >>> 60) << 2)) & 0xF;
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        private boolean incrementAt(int index, int shift) {
+            while (true) {
+                long value = table.get(index);
+                if ((value >>> shift & 0xF) == 0xF) {
+                    return false;
+                }
+                if (table.compareAndSet(index, value, value + (1L << shift))) {
+                    return true;
+                }
+            }
+        }
+
+        private void halve() {
+            for (int i = 0; i < table.length(); i++) {
+                table.set(i, table.get(i) >>> 1 & HALF_MASK);
+            }
+            additions.set(sampleSize / 2);
+        }
+
+        /**
+         * MurmurHash3's 64-bit finalizer over the id mixed with the row's seed.
+         */
+        private static long hash(long id, int row) {
+            long hash = id ^ SEEDS[row];
+            hash = (hash ^ hash >>> 33) * 0xff51afd7ed558ccdL;
+            hash = (hash ^ hash >>> 33) * 0xc4ceb9fe1a85ec53L;
+            return hash ^ hash >>> 33;
+        }
+    }
+}
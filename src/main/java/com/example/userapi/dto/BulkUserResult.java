@@ -0,0 +1,114 @@
+package com.example.userapi.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * Outcome of one line of a bulk user import: the id of the created user, or why the line was
+ * rejected.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkUserResult {
+
+    public static final String CREATED = "created";
+    public static final String INVALID = "invalid";
+    public static final String DUPLICATE = "duplicate";
+    public static final String FAILED = "failed";
+
+    @JsonProperty("line")
+    private int line;
+
+    @JsonProperty("status")
+    private String status;
+
+    @JsonProperty("id")
+    private Long id;
+
+    @JsonProperty("field")
+    private String field;
+
+    @JsonProperty("message")
+    private String message;
+
+    @JsonProperty("validationErrors")
+    private List<ErrorResponse.ValidationError> validationErrors;
+
+    public BulkUserResult() {}
+
+    public BulkUserResult(int line, String status, Long id, String field, String message,
+                          List<ErrorResponse.ValidationError> validationErrors) {
+        this.line = line;
+        this.status = status;
+        this.id = id;
+        this.field = field;
+        this.message = message;
+        this.validationErrors = validationErrors;
+    }
+
+    public static BulkUserResult created(int line, Long id) {
+        return new BulkUserResult(line, CREATED, id, null, null, null);
+    }
+
+    public static BulkUserResult invalid(int line, String message, List<ErrorResponse.ValidationError> validationErrors) {
+        return new BulkUserResult(line, INVALID, null, null, message, validationErrors);
+    }
+
+    public static BulkUserResult duplicate(int line, String field, String message) {
+        return new BulkUserResult(line, DUPLICATE, null, field, message, null);
+    }
+
+    public static BulkUserResult failed(int line, String message) {
+        return new BulkUserResult(line, FAILED, null, null, message, null);
+    }
+
+    // Getters and Setters
+    public int getLine() {
+        return line;
+    }
+
+    public void setLine(int line) {
+        this.line = line;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public void setField(String field) {
+        this.field = field;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public List<ErrorResponse.ValidationError> getValidationErrors() {
+        return validationErrors;
+    }
+
+    public void setValidationErrors(List<ErrorResponse.ValidationError> validationErrors) {
+        this.validationErrors = validationErrors;
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.userapi.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * DTO for looking up many users at once by id and/or username.
+ */
+public class UserLookupRequest {
+
+    @JsonProperty("ids")
+    private List<Long> ids;
+
+    @JsonProperty("usernames")
+    private List<String> usernames;
+
+    // Default constructor
+    public UserLookupRequest() {}
+
+    // Constructor
+    public UserLookupRequest(List<Long> ids, List<String> usernames) {
+        this.ids = ids;
+        this.usernames = usernames;
+    }
+
+    // Getters and Setters
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public void setIds(List<Long> ids) {
+        this.ids = ids;
+    }
+
+    public List<String> getUsernames() {
+        return usernames;
+    }
+
+    public void setUsernames(List<String> usernames) {
+        this.usernames = usernames;
+    }
+}
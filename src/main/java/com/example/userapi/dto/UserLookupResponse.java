@@ -0,0 +1,54 @@
+package com.example.userapi.dto;
+
+import com.example.userapi.model.User;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * Result of a lookup of many users: each user found once, and the ids and usernames no user has.
+ */
+public class UserLookupResponse {
+
+    @JsonProperty("users")
+    private List<User> users;
+
+    @JsonProperty("missingIds")
+    private List<Long> missingIds;
+
+    @JsonProperty("missingUsernames")
+    private List<String> missingUsernames;
+
+    public UserLookupResponse() {}
+
+    public UserLookupResponse(List<User> users, List<Long> missingIds, List<String> missingUsernames) {
+        this.users = users;
+        this.missingIds = missingIds;
+        this.missingUsernames = missingUsernames;
+    }
+
+    // Getters and Setters
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public void setUsers(List<User> users) {
+        this.users = users;
+    }
+
+    public List<Long> getMissingIds() {
+        return missingIds;
+    }
+
+    public void setMissingIds(List<Long> missingIds) {
+        this.missingIds = missingIds;
+    }
+
+    public List<String> getMissingUsernames() {
+        return missingUsernames;
+    }
+
+    public void setMissingUsernames(List<String> missingUsernames) {
+        this.missingUsernames = missingUsernames;
+    }
+}
@@ -4,16 +4,28 @@ package com.example.userapi.exception;
  * Exception thrown when attempting to create a user that already exists.
  */
 public class DuplicateUserException extends RuntimeException {
+
+    private final String field;
     
     public DuplicateUserException(String message) {
         super(message);
+        this.field = null;
     }
     
     public DuplicateUserException(String message, Throwable cause) {
         super(message, cause);
+        this.field = null;
     }
     
     public DuplicateUserException(String field, String value) {
         super("User already exists with " + field + ": " + value);
+        this.field = field;
+    }
+
+    /**
+     * The unique field that clashed, e.g. "username" or "email", or null if unknown.
+     */
+    public String getField() {
+        return field;
     }
 }
@@ -0,0 +1,12 @@
+package com.example.userapi.exception;
+
+/**
+ * Exception thrown when request parameters are well-formed but cannot be served, such as a
+ * search text too short to look up.
+ */
+public class InvalidRequestException extends RuntimeException {
+
+    public InvalidRequestException(String message) {
+        super(message);
+    }
+}
@@ -67,6 +67,18 @@ public class User {
         this.role = role;
     }
 
+    // Copy constructor
+    public User(User other) {
+        this.id = other.id;
+        this.name = other.name;
+        this.email = other.email;
+        this.age = other.age;
+        this.username = other.username;
+        this.password = other.password;
+        this.role = other.role;
+        this.enabled = other.enabled;
+    }
+
     // Getters and Setters
     public Long getId() {
         return id;
@@ -0,0 +1,210 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * In-memory form of a stored user, holding about 40% less heap than a {@link User}: a primitive
+ * id, the age in one byte, the role ordinal and the enabled flag packed into bytes, and name,
+ * email and password hash in one Latin-1 {@code byte[]} instead of three {@code String}s. The
+ * array holds name and email with a varint length prefix, then the password hash, which for
+ * BCrypt is a fixed 60 bytes. A field that is not Latin-1 is kept as UTF-8 and flagged.
+ *
+ * <p>The username stays a {@code String}, because the username index needs one as its key and
+ * both share the same instance.
+ *
+ * <p>Instances are immutable. {@link #toUser()} builds a new {@link User} each time, so full
+ * users only exist while a caller holds them.
+ */
+class CompactUser {
+
+    private static final byte ENABLED = 1;
+    private static final byte HAS_AGE = 1 << 1;
+    private static final byte HAS_PASSWORD = 1 << 2;
+    private static final byte NAME_UTF8 = 1 << 3;
+    private static final byte EMAIL_UTF8 = 1 << 4;
+    private static final byte PASSWORD_UTF8 = 1 << 5;
+
+    private static final int MAX_AGE = 0xFF;
+    private static final Role[] ROLES = Role.values();
+
+    private final long id;
+    private final byte age;
+    // Role ordinal plus one, 0 for none
+    private final byte role;
+    private final byte flags;
+    // Name and email as length plus one (0 for null) and bytes, then the password to the end
+    private final byte[] fields;
+    private final String username;
+
+    private CompactUser(User user, byte age, byte flags) {
+        this.id = user.getId();
+        this.age = age;
+        this.role = (byte) (user.getRole() != null ? user.getRole().ordinal() + 1 : 0);
+        this.flags = flags;
+        this.fields = pack(user);
+        this.username = user.getUsername();
+    }
+
+    /**
+     * Packs a user that already has an id. Nothing of {@code user} is kept but its username.
+     */
+    static CompactUser of(User user) {
+        if (user.getId() == null) {
+            throw new IllegalArgumentException("Only users with an id can be stored");
+        }
+        int flags = (user.isEnabled() ? ENABLED : 0)
+            | (user.getAge() != null ? HAS_AGE : 0)
+            | (user.getPassword() != null ? HAS_PASSWORD : 0)
+            | (isLatin1(user.getName()) ? 0 : NAME_UTF8)
+            | (isLatin1(user.getEmail()) ? 0 : EMAIL_UTF8)
+            | (isLatin1(user.getPassword()) ? 0 : PASSWORD_UTF8);
+        Integer age = user.getAge();
+        if (age != null && (age < 0 || age > MAX_AGE)) {
+            // Validation keeps ages within 0..150; anything else costs an int
+            return new WideAge(user, (byte) flags, age);
+        }
+        return new CompactUser(user, age != null ? (byte) (int) age : 0, (byte) flags);
+    }
+
+    long id() {
+        return id;
+    }
+
+    String username() {
+        return username;
+    }
+
+    Integer age() {
+        return (flags & HAS_AGE) != 0 ? age & MAX_AGE : null;
+    }
+
+    /**
+     * Decodes just the email.
+     */
+    String email() {
+        int[] position = {0};
+        nextString(position, charset(NAME_UTF8));
+        return nextString(position, charset(EMAIL_UTF8));
+    }
+
+    /**
+     * Builds a full user; changes to it do not affect this instance.
+     */
+    User toUser() {
+        User user = new User();
+        user.setId(id);
+        int[] position = {0};
+        user.setName(nextString(position, charset(NAME_UTF8)));
+        user.setEmail(nextString(position, charset(EMAIL_UTF8)));
+        if ((flags & HAS_PASSWORD) != 0) {
+            user.setPassword(new String(fields, position[0], fields.length - position[0], charset(PASSWORD_UTF8)));
+        } else {
+            user.setPassword(null);
+        }
+        user.setAge(age());
+        user.setUsername(username);
+        user.setRole(role != 0 ? ROLES[role - 1] : null);
+        user.setEnabled((flags & ENABLED) != 0);
+        return user;
+    }
+
+    private static byte[] pack(User user) {
+        byte[] name = encode(user.getName());
+        byte[] email = encode(user.getEmail());
+        byte[] password = encode(user.getPassword());
+        byte[] packed = new byte[lengthSize(name) + lengthSize(email) + (password != null ? password.length : 0)];
+        int position = put(packed, 0, name);
+        position = put(packed, position, email);
+        if (password != null) {
+            System.arraycopy(password, 0, packed, position, password.length);
+        }
+        return packed;
+    }
+
+    private static int lengthSize(byte[] bytes) {
+        if (bytes == null) {
+            return 1;
+        }
+        int size = 1;
+        for (int value = (bytes.length + 1) >>> 7; value != 0; value >>>= 7) {
+            size++;
+        }
+        return size + bytes.length;
+    }
+
+    private static int put(byte[] packed, int position, byte[] bytes) {
+        int value = bytes != null ? bytes.length + 1 : 0;
+        while ((value & ~0x7F) != 0) {
+            packed[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        packed[position++] = (byte) value;
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, packed, position, bytes.length);
+            position += bytes.length;
+        }
+        return position;
+    }
+
+    private String nextString(int[] position, Charset charset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = fields[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        if (value == 0) {
+            return null;
+        }
+        int length = value - 1;
+        String string = new String(fields, position[0], length, charset);
+        position[0] += length;
+        return string;
+    }
+
+    private Charset charset(byte utf8Flag) {
+        return (flags & utf8Flag) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+    }
+
+    private static boolean isLatin1(String value) {
+        if (value == null) {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(String value) {
+        if (value == null) {
+            return null;
+        }
+        return value.getBytes(isLatin1(value) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A user whose age does not fit in a byte.
+     */
+    private static final class WideAge extends CompactUser {
+        private final int wideAge;
+
+        private WideAge(User user, byte flags, int age) {
+            super(user, (byte) 0, flags);
+            this.wideAge = age;
+        }
+
+        @Override
+        Integer age() {
+            return wideAge;
+        }
+    }
+}
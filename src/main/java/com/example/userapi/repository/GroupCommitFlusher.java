@@ -0,0 +1,170 @@
+package com.example.userapi.repository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread that makes buffered mutations durable in batches. Writers call
+ * {@link #markDirty()} after buffering a change and, if they need to wait for the disk,
+ * {@link #awaitFlushed(long)} with the returned sequence. One flush covers every change marked
+ * before it started, so all requests of a batch share one write and one fsync and are released
+ * together. If the flush fails, they are all released with its exception.
+ */
+class GroupCommitFlusher {
+
+    /**
+     * Writes everything buffered so far.
+     */
+    @FunctionalInterface
+    interface FlushAction {
+        void flush() throws IOException;
+    }
+
+    // Failed flushes still looked up by late waiters; older ones are forgotten
+    private static final int MAX_FAILURES = 64;
+
+    private final FlushAction action;
+    private final long windowNanos;
+    private final Thread thread;
+
+    // Guarded by this
+    private long dirtySequence;
+    private long flushedSequence;
+    private boolean closed;
+    // First sequence of each failed run of flushes -> its failure; adjacent failed flushes share one
+    private final TreeMap<Long, Failure> failures = new TreeMap<>();
+
+    GroupCommitFlusher(String name, Duration window, FlushAction action) {
+        this.action = action;
+        this.windowNanos = window.toNanos();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Records that a change was buffered and wakes the flusher.
+     *
+     * @return the sequence to pass to {@link #awaitFlushed(long)}
+     */
+    synchronized long markDirty() {
+        if (closed) {
+            throw new IllegalStateException("User store flusher is closed");
+        }
+        long sequence = ++dirtySequence;
+        notifyAll();
+        return sequence;
+    }
+
+    /**
+     * Blocks until a flush that started after {@code sequence} was marked has completed, including
+     * the last one when the flusher is closed.
+     *
+     * @throws UncheckedIOException if that flush failed, so the change may not be on disk
+     */
+    synchronized void awaitFlushed(long sequence) {
+        boolean interrupted = false;
+        while (flushedSequence < sequence) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Map.Entry<Long, Failure> failed = failures.floorEntry(sequence);
+        if (failed != null && failed.getValue().lastSequence >= sequence) {
+            throw new UncheckedIOException("Change may not be on disk: " + failed.getValue().cause.getMessage(),
+                failed.getValue().cause);
+        }
+    }
+
+    /**
+     * Flushes what is still buffered and stops the thread. Writers waiting for that last flush
+     * are released once it is done.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                while (dirtySequence == flushedSequence && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (dirtySequence == flushedSequence) {
+                    return;
+                }
+            }
+            // Let concurrent requests join the batch before paying for the write
+            if (windowNanos > 0 && !isClosed()) {
+                LockSupport.parkNanos(windowNanos);
+            }
+            long target;
+            synchronized (this) {
+                target = dirtySequence;
+            }
+            IOException failure = null;
+            try {
+                action.flush();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e.getMessage(), e);
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    System.err.println("Error flushing users to disk: " + failure.getMessage());
+                    recordFailure(flushedSequence + 1, target, failure);
+                }
+                flushedSequence = target;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Guarded by this
+    private void recordFailure(long firstSequence, long lastSequence, IOException cause) {
+        Map.Entry<Long, Failure> previous = failures.lastEntry();
+        if (previous != null && previous.getValue().lastSequence == firstSequence - 1) {
+            firstSequence = previous.getKey();
+        }
+        failures.put(firstSequence, new Failure(lastSequence, cause));
+        if (failures.size() > MAX_FAILURES) {
+            failures.pollFirstEntry();
+        }
+    }
+
+    private static final class Failure {
+        private final long lastSequence;
+        private final IOException cause;
+
+        private Failure(long lastSequence, IOException cause) {
+            this.lastSequence = lastSequence;
+            this.cause = cause;
+        }
+    }
+}
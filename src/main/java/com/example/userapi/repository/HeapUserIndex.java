@@ -0,0 +1,277 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.User;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link UserIndex} that keeps every user on the heap: a primary index by id, kept in a
+ * {@link UserIdMap} so lookups by id do not box, and unique secondary indexes by username and
+ * by email key, plus a {@link UserSearchIndex}.
+ * Users are held as {@link CompactUser}s and turned into {@link User}s only when they are read.
+ *
+ * <p>Reads go straight to the maps and never lock. Stored users are immutable, so readers
+ * always see a complete user.
+ */
+class HeapUserIndex implements UserIndex {
+
+    private final UserIdMap usersById = new UserIdMap();
+    private final Map<String, CompactUser> usersByUsername = new ConcurrentHashMap<>();
+    private final Map<String, CompactUser> usersByEmail = new ConcurrentHashMap<>();
+    private final UserSearchIndex search = new UserSearchIndex();
+
+    // Bumped after every change; findAll() serves the cached snapshot for as long as it was
+    // taken at the current version.
+    private volatile long version;
+    private volatile UsersSnapshot snapshot;
+
+    /**
+     * Users in id order. The list holds the compact users and builds the {@link User} of an
+     * element the first time it is read; later reads of the same list share it.
+     */
+    @Override
+    public List<User> findAll() {
+        long current = version;
+        UsersSnapshot cached = snapshot;
+        if (cached != null && cached.version == current) {
+            return cached;
+        }
+        // Tagged with the version read before the copy, so a change that lands meanwhile
+        // makes the next call rebuild rather than keep serving a mixed list
+        CompactUser[] users = usersById.values().toArray(new CompactUser[0]);
+        Arrays.sort(users, Comparator.comparingLong(CompactUser::id));
+        UsersSnapshot rebuilt = new UsersSnapshot(current, users);
+        snapshot = rebuilt;
+        return rebuilt;
+    }
+
+    @Override
+    public Optional<User> findById(Long id) {
+        if (id == null) {
+            return Optional.empty();
+        }
+        CompactUser user = usersById.get(id.longValue());
+        return user != null ? Optional.of(user.toUser()) : Optional.empty();
+    }
+
+    @Override
+    public Optional<User> findByUsername(String username) {
+        if (username == null) {
+            return Optional.empty();
+        }
+        CompactUser user = usersByUsername.get(username);
+        return user != null ? Optional.of(user.toUser()) : Optional.empty();
+    }
+
+    @Override
+    public Optional<User> findByEmail(String email) {
+        if (email == null) {
+            return Optional.empty();
+        }
+        CompactUser user = usersByEmail.get(UserStore.emailKey(email));
+        return user != null ? Optional.of(user.toUser()) : Optional.empty();
+    }
+
+    @Override
+    public List<User> findAllById(Collection<Long> ids) {
+        List<User> users = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            CompactUser user = id != null ? usersById.get(id.longValue()) : null;
+            if (user != null) {
+                users.add(user.toUser());
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> findAllByUsername(Collection<String> usernames) {
+        List<User> users = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            CompactUser user = username != null ? usersByUsername.get(username) : null;
+            if (user != null) {
+                users.add(user.toUser());
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        return resolve(search.findByPrefix(prefix, limit));
+    }
+
+    @Override
+    public List<User> searchBySimilarUsername(String username, int maxDistance, int limit) {
+        return resolve(search.findBySimilarUsername(username, maxDistance, limit));
+    }
+
+    @Override
+    public List<User> searchBySubstring(String text, long afterId, int limit) {
+        return search.findBySubstring(text, afterId, limit, this::resolve);
+    }
+
+    @Override
+    public List<User> findAll(UserFilter filter, long afterId, int limit) {
+        return search.findByFilter(filter, afterId, limit, this::resolve);
+    }
+
+    @Override
+    public int size() {
+        return usersById.size();
+    }
+
+    @Override
+    public long maxId() {
+        return usersById.maxId();
+    }
+
+    @Override
+    public void checkUnique(User user) {
+        UserIndex.checkId(user.getId());
+        String username = user.getUsername();
+        if (username != null && !availableTo(usersByUsername.get(username), user)) {
+            throw new DuplicateUserException("username", username);
+        }
+        String email = user.getEmail();
+        if (email != null && !availableTo(usersByEmail.get(UserStore.emailKey(email)), user) && !keepsEmail(user)) {
+            throw new DuplicateUserException("email", email);
+        }
+    }
+
+    // A user loaded with an email that an earlier user already had may still be saved with it
+    private boolean keepsEmail(User user) {
+        CompactUser current = user.getId() != null ? usersById.get(user.getId()) : null;
+        return current != null && UserStore.emailKey(user.getEmail()).equals(UserStore.emailKey(current.email()));
+    }
+
+    private List<User> resolve(long[] ids) {
+        List<User> users = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            // Removed since the search
+            CompactUser user = usersById.get(id);
+            if (user != null) {
+                users.add(user.toUser());
+            }
+        }
+        return users;
+    }
+
+    private static boolean availableTo(CompactUser owner, User user) {
+        return owner == null || (user.getId() != null && owner.id() == user.getId());
+    }
+
+    /**
+     * Only a compact copy is kept.
+     */
+    @Override
+    public void put(User user) {
+        UserIndex.checkId(user.getId());
+        CompactUser entry = CompactUser.of(user);
+        CompactUser previous = usersById.put(entry);
+        if (entry.username() != null) {
+            usersByUsername.put(entry.username(), entry);
+        }
+        if (previous != null && previous.username() != null && !previous.username().equals(entry.username())) {
+            usersByUsername.remove(previous.username(), previous);
+        }
+        String emailKey = UserStore.emailKey(user.getEmail());
+        String previousEmailKey = previous != null ? UserStore.emailKey(previous.email()) : null;
+        if (emailKey != null) {
+            CompactUser owner = usersByEmail.get(emailKey);
+            if (owner == null || owner.id() == entry.id()) {
+                usersByEmail.put(emailKey, entry);
+            } else if (!emailKey.equals(previousEmailKey)) {
+                // Left by data written before emails were unique; the first user keeps the email
+                System.err.println("User " + entry.id() + " has the email of user " + owner.id()
+                    + ", which keeps it for lookups by email: " + user.getEmail());
+            }
+        }
+        if (previousEmailKey != null && !previousEmailKey.equals(emailKey)) {
+            usersByEmail.remove(previousEmailKey, previous);
+        }
+        search.update(previous != null ? previous.toUser() : null, user);
+        version++;
+    }
+
+    @Override
+    public boolean remove(Long id) {
+        CompactUser removed = usersById.remove(id.longValue());
+        if (removed == null) {
+            return false;
+        }
+        if (removed.username() != null) {
+            usersByUsername.remove(removed.username(), removed);
+        }
+        String emailKey = UserStore.emailKey(removed.email());
+        if (emailKey != null) {
+            usersByEmail.remove(emailKey, removed);
+        }
+        search.update(removed.toUser(), null);
+        version++;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        usersById.clear();
+        usersByUsername.clear();
+        usersByEmail.clear();
+        search.clear();
+        version++;
+    }
+
+    @Override
+    public void beginLoad() {
+        search.beginLoad();
+    }
+
+    @Override
+    public void endLoad() {
+        search.endLoad();
+    }
+
+    /**
+     * Read-only list over the compact users as of one version. Users are built as they are first
+     * read and dropped with the list at the next change.
+     */
+    private static final class UsersSnapshot extends AbstractList<User> {
+        private final long version;
+        private final CompactUser[] users;
+        private final AtomicReferenceArray<User> built;
+
+        private UsersSnapshot(long version, CompactUser[] users) {
+            this.version = version;
+            this.users = users;
+            this.built = new AtomicReferenceArray<>(users.length);
+        }
+
+        @Override
+        public User get(int index) {
+            User user = built.get(index);
+            if (user == null) {
+                user = users[index].toUser();
+                // Readers racing here keep the first one, so every read returns the same user
+                if (!built.compareAndSet(index, null, user)) {
+                    user = built.get(index);
+                }
+            }
+            return user;
+        }
+
+        @Override
+        public int size() {
+            return users.length;
+        }
+    }
+}
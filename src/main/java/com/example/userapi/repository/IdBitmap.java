@@ -0,0 +1,90 @@
+package com.example.userapi.repository;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of user ids as one bit per id, in pages of 65,536 ids that are allocated when the first id
+ * in their range is added. Ids are handed out sequentially, so the pages stay dense and a set of
+ * a million ids takes about 128 KB.
+ *
+ * <p>Ids must be in 1 to {@link UserIndex#MAX_ID}; the indexes reject others before they reach
+ * a set, and {@link #contains(long)} is false for them.
+ *
+ * <p>Changes must come from one thread at a time, while any number of threads read. Bits are
+ * set with atomic writes, and pages are added by publishing a grown copy of the page table, so
+ * readers see each word either before or after a change.
+ */
+class IdBitmap {
+
+    static final int WORDS_PER_PAGE = 1024;
+    private static final int PAGE_BITS = 16;
+
+    // Replaced, never modified, when a page is added
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    void add(long id) {
+        int index = (int) (id >>> PAGE_BITS);
+        AtomicLongArray[] current = pages;
+        if (index >= current.length || current[index] == null) {
+            AtomicLongArray[] grown = Arrays.copyOf(current, Math.max(current.length, index + 1));
+            grown[index] = new AtomicLongArray(WORDS_PER_PAGE);
+            pages = grown;
+            current = grown;
+        }
+        int word = (int) (id >>> 6) & (WORDS_PER_PAGE - 1);
+        AtomicLongArray page = current[index];
+        page.set(word, page.get(word) | 1L << id);
+    }
+
+    void remove(long id) {
+        int index = (int) (id >>> PAGE_BITS);
+        AtomicLongArray[] current = pages;
+        if (index < current.length && current[index] != null) {
+            int word = (int) (id >>> 6) & (WORDS_PER_PAGE - 1);
+            AtomicLongArray page = current[index];
+            page.set(word, page.get(word) & ~(1L << id));
+        }
+    }
+
+    boolean contains(long id) {
+        if (id < 1 || id > UserIndex.MAX_ID) {
+            return false;
+        }
+        return (word(id >>> 6) & 1L << id) != 0;
+    }
+
+    void clear() {
+        pages = new AtomicLongArray[0];
+    }
+
+    /**
+     * Number of words the set spans; words from here on are 0.
+     */
+    long words() {
+        return (long) pages.length * WORDS_PER_PAGE;
+    }
+
+    /**
+     * Whether the page holding word {@code index} has been allocated. The words of other pages
+     * are all 0, so a scan can skip them whole.
+     */
+    boolean hasPage(long index) {
+        int page = (int) (index / WORDS_PER_PAGE);
+        AtomicLongArray[] current = pages;
+        return page < current.length && current[page] != null;
+    }
+
+    /**
+     * The 64 bits for ids {@code 64 * index} to {@code 64 * index + 63}, lowest id in the lowest
+     * bit.
+     */
+    long word(long index) {
+        int page = (int) (index / WORDS_PER_PAGE);
+        AtomicLongArray[] current = pages;
+        if (page >= current.length || current[page] == null) {
+            return 0;
+        }
+        return current[page].get((int) (index % WORDS_PER_PAGE));
+    }
+}
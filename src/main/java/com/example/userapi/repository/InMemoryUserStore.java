@@ -0,0 +1,139 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.User;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User store without persistence; everything is lost on restart. Meant for tests, demos and
+ * caches that are filled from elsewhere.
+ *
+ * <p>Changes run on a single writer thread, like those of {@link UserRepository}, as the index
+ * takes them from one thread at a time; nothing is committed after a batch. Readers never lock.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "userapi.storage", name = "engine", havingValue = "memory")
+public class InMemoryUserStore implements UserStore {
+
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private final UserIndex index = new HeapUserIndex();
+    private final AtomicLong idCounter = new AtomicLong(1);
+    private final UserChangeListeners listeners = new UserChangeListeners();
+    private final MutationPipeline pipeline = new MutationPipeline("memory-user-store-writer",
+        QUEUE_CAPACITY, () -> 0, ticket -> { });
+
+    @PreDestroy
+    public void close() {
+        pipeline.close();
+    }
+
+    @Override
+    public List<User> findAll() {
+        return index.findAll();
+    }
+
+    @Override
+    public Optional<User> findById(Long id) {
+        return index.findById(id);
+    }
+
+    @Override
+    public Optional<User> findByUsername(String username) {
+        return index.findByUsername(username);
+    }
+
+    @Override
+    public Optional<User> findByEmail(String email) {
+        return index.findByEmail(email);
+    }
+
+    @Override
+    public List<User> findAllById(Collection<Long> ids) {
+        return index.findAllById(ids);
+    }
+
+    @Override
+    public List<User> findAllByUsername(Collection<String> usernames) {
+        return index.findAllByUsername(usernames);
+    }
+
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        return index.searchByPrefix(prefix, limit);
+    }
+
+    @Override
+    public List<User> searchBySimilarUsername(String username, int maxDistance, int limit) {
+        return index.searchBySimilarUsername(username, maxDistance, limit);
+    }
+
+    @Override
+    public List<User> searchBySubstring(String text, long afterId, int limit) {
+        return index.searchBySubstring(text, afterId, limit);
+    }
+
+    @Override
+    public List<User> findAll(UserFilter filter, long afterId, int limit) {
+        return index.findAll(filter, afterId, limit);
+    }
+
+    @Override
+    public User save(User user) {
+        return pipeline.execute(() -> store(user));
+    }
+
+    /**
+     * Stores the whole batch in one mutation.
+     */
+    @Override
+    public List<RuntimeException> saveBatch(List<User> users) {
+        return pipeline.execute(() -> {
+            List<RuntimeException> failures = new ArrayList<>(users.size());
+            for (User user : users) {
+                try {
+                    store(user);
+                    failures.add(null);
+                } catch (RuntimeException e) {
+                    failures.add(e);
+                }
+            }
+            return failures;
+        });
+    }
+
+    private User store(User user) {
+        index.checkUnique(user);
+        if (user.getId() == null) {
+            user.setId(idCounter.getAndIncrement());
+        } else {
+            idCounter.accumulateAndGet(user.getId() + 1, Math::max);
+        }
+        index.put(user);
+        listeners.changed(user.getId());
+        return user;
+    }
+
+    @Override
+    public boolean deleteById(Long id) {
+        return id != null && pipeline.execute(() -> {
+            if (!index.remove(id)) {
+                return false;
+            }
+            listeners.changed(id);
+            return true;
+        });
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+}
@@ -0,0 +1,540 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * User store backed by a {@code users} table, by default in an embedded H2 database file.
+ * Connections come from a Hikari pool; writes that cover many users go out as JDBC batches of
+ * {@code userapi.storage.jdbc.batch-size} statements in one transaction.
+ *
+ * <p>Username and email uniqueness are enforced by the table's unique constraint and the unique
+ * index on {@code email_key}, the email as compared by {@link UserStore#emailKey(String)}, so
+ * concurrent saves need no lock in the application. Ids are handed out from a counter seeded
+ * with the highest id in the table, which assumes this process is the only writer.
+ *
+ * <p>Searches are served by an in-process {@link UserSearchIndex}, filled from the table on
+ * startup and updated after every write, which relies on the same assumption. Writes to the same
+ * user hold one of a fixed set of striped locks, so the index sees them in the order the table
+ * did; writes to different users still run in parallel.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "userapi.storage", name = "engine", havingValue = "jdbc")
+public class JdbcUserStore implements UserStore {
+
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final int WRITE_LOCKS = 64;
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS users ("
+        + "id BIGINT PRIMARY KEY, "
+        + "name VARCHAR(255), "
+        + "email VARCHAR(255), "
+        + "age INT, "
+        + "username VARCHAR(255) UNIQUE, "
+        + "password VARCHAR(255), "
+        + "role VARCHAR(32), "
+        + "enabled BOOLEAN NOT NULL)";
+    // Tables created before emails were unique get the column, filled in for the first user with
+    // each email; users sharing it keep a null key until they change their email
+    private static final String ADD_EMAIL_KEY = "ALTER TABLE users ADD COLUMN IF NOT EXISTS email_key VARCHAR(255)";
+    private static final String FILL_EMAIL_KEY = "UPDATE users u SET email_key = LOWER(TRIM(email)) "
+        + "WHERE email_key IS NULL AND email IS NOT NULL AND id = "
+        + "(SELECT MIN(id) FROM users d WHERE LOWER(TRIM(d.email)) = LOWER(TRIM(u.email)))";
+    private static final String EMAIL_INDEX = "USERS_EMAIL_KEY";
+    private static final String CREATE_EMAIL_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS " + EMAIL_INDEX
+        + " ON users(email_key)";
+    private static final String COLUMNS = "id, name, email, age, username, password, role, enabled";
+    private static final String SELECT = "SELECT " + COLUMNS + " FROM users";
+    private static final String UPSERT = "MERGE INTO users (" + COLUMNS + ", email_key) KEY (id) "
+        + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final StorageProperties properties;
+    private final StorageProperties.Jdbc settings;
+    private HikariDataSource dataSource;
+
+    private final AtomicLong idCounter = new AtomicLong(1);
+    private final UserSearchIndex search = new UserSearchIndex();
+    private final UserChangeListeners listeners = new UserChangeListeners();
+    private final ReentrantLock[] writeLocks = new ReentrantLock[WRITE_LOCKS];
+
+    // Bumped after every committed change; findAll() serves the cached snapshot for as long as
+    // it was taken at the current version
+    private final AtomicLong version = new AtomicLong();
+    private volatile UsersSnapshot snapshot;
+
+    @Autowired
+    public JdbcUserStore(StorageProperties properties) {
+        this.properties = properties;
+        this.settings = properties.getJdbc();
+        for (int i = 0; i < WRITE_LOCKS; i++) {
+            writeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (settings.getBatchSize() < 1) {
+            throw new IllegalStateException("userapi.storage.jdbc.batch-size must be positive, got "
+                + settings.getBatchSize());
+        }
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("user-store");
+        config.setJdbcUrl(settings.getUrl());
+        config.setUsername(settings.getUsername());
+        config.setPassword(settings.getPassword());
+        config.setMaximumPoolSize(settings.getPoolSize());
+        dataSource = new HikariDataSource(config);
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(CREATE_TABLE);
+            statement.execute(ADD_EMAIL_KEY);
+            statement.executeUpdate(FILL_EMAIL_KEY);
+            statement.execute(CREATE_EMAIL_INDEX);
+            try (ResultSet rows = statement.executeQuery("SELECT MAX(id), COUNT(*) FROM users")) {
+                rows.next();
+                idCounter.set(rows.getLong(1) + 1);
+                if (rows.getLong(2) == 0) {
+                    importDataFile();
+                } else {
+                    search.beginLoad();
+                    for (User user : query(SELECT + " ORDER BY id", null)) {
+                        search.update(null, user);
+                    }
+                    search.endLoad();
+                }
+            }
+        } catch (SQLException e) {
+            dataSource.close();
+            throw new IllegalStateException("Could not open user table at " + settings.getUrl(), e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    @Override
+    public List<User> findAll() {
+        long current = version.get();
+        UsersSnapshot cached = snapshot;
+        if (cached != null && cached.version == current) {
+            return cached.users;
+        }
+        List<User> users = query(SELECT + " ORDER BY id", null);
+        UsersSnapshot rebuilt = new UsersSnapshot(current, Collections.unmodifiableList(users));
+        snapshot = rebuilt;
+        return rebuilt.users;
+    }
+
+    @Override
+    public Optional<User> findById(Long id) {
+        if (id == null) {
+            return Optional.empty();
+        }
+        return query(SELECT + " WHERE id = ?", id).stream().findFirst();
+    }
+
+    @Override
+    public Optional<User> findByUsername(String username) {
+        if (username == null) {
+            return Optional.empty();
+        }
+        return query(SELECT + " WHERE username = ?", username).stream().findFirst();
+    }
+
+    @Override
+    public Optional<User> findByEmail(String email) {
+        if (email == null) {
+            return Optional.empty();
+        }
+        return query(SELECT + " WHERE email_key = ?", UserStore.emailKey(email)).stream().findFirst();
+    }
+
+    @Override
+    public List<User> findAllById(Collection<Long> ids) {
+        return queryIn("id", ids, User::getId);
+    }
+
+    @Override
+    public List<User> findAllByUsername(Collection<String> usernames) {
+        return queryIn("username", usernames, User::getUsername);
+    }
+
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        return resolve(search.findByPrefix(prefix, limit));
+    }
+
+    @Override
+    public List<User> searchBySimilarUsername(String username, int maxDistance, int limit) {
+        return resolve(search.findBySimilarUsername(username, maxDistance, limit));
+    }
+
+    @Override
+    public List<User> searchBySubstring(String text, long afterId, int limit) {
+        return search.findBySubstring(text, afterId, limit, this::resolve);
+    }
+
+    @Override
+    public List<User> findAll(UserFilter filter, long afterId, int limit) {
+        return search.findByFilter(filter, afterId, limit, this::resolve);
+    }
+
+    @Override
+    public User save(User user) {
+        boolean created = user.getId() == null;
+        if (created) {
+            user.setId(idCounter.getAndIncrement());
+        }
+        ReentrantLock lock = writeLock(user.getId());
+        lock.lock();
+        try {
+            User previous = created ? null : findById(user.getId()).orElse(null);
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement statement = connection.prepareStatement(UPSERT)) {
+                bind(statement, user, UserStore.emailKey(user.getEmail()));
+                statement.executeUpdate();
+            }
+            indexed(previous, user);
+            listeners.changed(user.getId());
+        } catch (SQLException e) {
+            if (created) {
+                user.setId(null);
+            }
+            throw translate(e, user);
+        } finally {
+            lock.unlock();
+        }
+        idCounter.accumulateAndGet(user.getId() + 1, Math::max);
+        version.incrementAndGet();
+        return user;
+    }
+
+    /**
+     * Inserts the batch as one transaction with {@link #saveAll(Collection)}. Only if that fails
+     * on a clash are the users saved one by one, to tell which of them clashed.
+     */
+    @Override
+    public List<RuntimeException> saveBatch(List<User> users) {
+        try {
+            saveAll(users);
+            return Arrays.asList(new RuntimeException[users.size()]);
+        } catch (DuplicateUserException e) {
+            return UserStore.super.saveBatch(users);
+        }
+    }
+
+    /**
+     * Saves all users in one transaction, sent as batches of {@code batch-size} statements.
+     * Either every user is stored or, if one fails, none is.
+     *
+     * @throws DuplicateUserException if a username or email is taken or appears twice
+     */
+    public void saveAll(Collection<User> users) {
+        saveAll(users, true);
+    }
+
+    /**
+     * @param uniqueEmails false while importing, as data files written before emails were unique
+     *                     may share one between users; only the first of them gets the key
+     */
+    private void saveAll(Collection<User> users, boolean uniqueEmails) {
+        // Users of the batch may be in any stripe
+        for (ReentrantLock lock : writeLocks) {
+            lock.lock();
+        }
+        try {
+            Map<Long, User> previous = new HashMap<>();
+            for (User user : users) {
+                if (user.getId() != null) {
+                    findById(user.getId()).ifPresent(stored -> previous.put(stored.getId(), stored));
+                }
+            }
+            insertAll(users, uniqueEmails);
+            for (User user : users) {
+                indexed(previous.get(user.getId()), user);
+                listeners.changed(user.getId());
+            }
+        } finally {
+            for (ReentrantLock lock : writeLocks) {
+                lock.unlock();
+            }
+        }
+        for (User user : users) {
+            idCounter.accumulateAndGet(user.getId() + 1, Math::max);
+        }
+        version.incrementAndGet();
+    }
+
+    private void insertAll(Collection<User> users, boolean uniqueEmails) {
+        List<User> assigned = new ArrayList<>();
+        Set<String> emailKeys = new HashSet<>();
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(UPSERT)) {
+                int pending = 0;
+                for (User user : users) {
+                    if (user.getId() == null) {
+                        user.setId(idCounter.getAndIncrement());
+                        assigned.add(user);
+                    }
+                    String emailKey = UserStore.emailKey(user.getEmail());
+                    if (!uniqueEmails && emailKey != null && !emailKeys.add(emailKey)) {
+                        emailKey = null;
+                    }
+                    bind(statement, user, emailKey);
+                    statement.addBatch();
+                    if (++pending == settings.getBatchSize()) {
+                        statement.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    statement.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            for (User user : assigned) {
+                user.setId(null);
+            }
+            throw translate(e, null);
+        }
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public boolean deleteById(Long id) {
+        if (id == null) {
+            return false;
+        }
+        ReentrantLock lock = writeLock(id);
+        lock.lock();
+        try {
+            Optional<User> previous = findById(id);
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement statement = connection.prepareStatement("DELETE FROM users WHERE id = ?")) {
+                statement.setLong(1, id);
+                if (statement.executeUpdate() == 0) {
+                    return false;
+                }
+            }
+            indexed(previous.orElse(null), null);
+            listeners.changed(id);
+        } catch (SQLException e) {
+            throw translate(e, null);
+        } finally {
+            lock.unlock();
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Fills an empty table with the users of the data file used by the file engine, so switching
+     * engines keeps the data.
+     */
+    private void importDataFile() {
+        if (!new File(properties.getDataFile()).exists()) {
+            return;
+        }
+        UserRepository repository = UserRepository.openForImport(properties);
+        try {
+            List<User> users = new ArrayList<>(repository.findAll().size());
+            for (User user : repository.findAll()) {
+                users.add(new User(user));
+            }
+            saveAll(users, false);
+        } finally {
+            repository.close();
+        }
+    }
+
+    private ReentrantLock writeLock(long id) {
+        return writeLocks[(int) (id & (WRITE_LOCKS - 1))];
+    }
+
+    private void indexed(User previous, User current) {
+        // The index takes one change at a time; the write locks already keep those to the same
+        // user in order
+        synchronized (search) {
+            search.update(previous, current);
+        }
+    }
+
+    /**
+     * Reads the users with these ids in one query, in the order of the ids; users removed since
+     * they were found are left out.
+     */
+    private List<User> resolve(long[] ids) {
+        List<Long> keys = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            keys.add(id);
+        }
+        return queryIn("id", keys, User::getId);
+    }
+
+    /**
+     * Reads the users whose {@code column} holds one of the keys in one query, in the order of
+     * the keys; keys no user has, and nulls, are left out.
+     */
+    private <K> List<User> queryIn(String column, Collection<K> keys, Function<User, K> keyOf) {
+        List<K> present = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            if (key != null) {
+                present.add(key);
+            }
+        }
+        if (present.isEmpty()) {
+            return new ArrayList<>();
+        }
+        StringBuilder sql = new StringBuilder(SELECT).append(" WHERE ").append(column).append(" IN (?");
+        for (int i = 1; i < present.size(); i++) {
+            sql.append(", ?");
+        }
+        Map<K, User> found = new HashMap<>();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql.append(')').toString())) {
+            for (int i = 0; i < present.size(); i++) {
+                statement.setObject(i + 1, present.get(i));
+            }
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    User user = read(rows);
+                    found.put(keyOf.apply(user), user);
+                }
+            }
+        } catch (SQLException e) {
+            throw translate(e, null);
+        }
+        List<User> users = new ArrayList<>(found.size());
+        for (K key : present) {
+            User user = found.get(key);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    private List<User> query(String sql, Object key) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            if (key != null) {
+                statement.setObject(1, key);
+            }
+            List<User> users = new ArrayList<>();
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    users.add(read(rows));
+                }
+            }
+            return users;
+        } catch (SQLException e) {
+            throw translate(e, null);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, User user, String emailKey) throws SQLException {
+        statement.setLong(1, user.getId());
+        statement.setString(2, user.getName());
+        statement.setString(3, user.getEmail());
+        if (user.getAge() != null) {
+            statement.setInt(4, user.getAge());
+        } else {
+            statement.setNull(4, Types.INTEGER);
+        }
+        statement.setString(5, user.getUsername());
+        statement.setString(6, user.getPassword());
+        statement.setString(7, user.getRole() != null ? user.getRole().name() : null);
+        statement.setBoolean(8, user.isEnabled());
+        statement.setString(9, emailKey);
+    }
+
+    private static User read(ResultSet rows) throws SQLException {
+        User user = new User();
+        user.setId(rows.getLong(1));
+        user.setName(rows.getString(2));
+        user.setEmail(rows.getString(3));
+        int age = rows.getInt(4);
+        user.setAge(rows.wasNull() ? null : age);
+        user.setUsername(rows.getString(5));
+        user.setPassword(rows.getString(6));
+        String role = rows.getString(7);
+        user.setRole(role != null ? Role.valueOf(role) : null);
+        user.setEnabled(rows.getBoolean(8));
+        return user;
+    }
+
+    private static RuntimeException translate(SQLException e, User user) {
+        // A failed batch reports the statement's own error as the next exception
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            if (UNIQUE_VIOLATION.equals(cause.getSQLState())) {
+                // The message names the violated index
+                boolean email = String.valueOf(cause.getMessage()).toUpperCase(Locale.ROOT).contains(EMAIL_INDEX);
+                if (user == null) {
+                    return new DuplicateUserException(email
+                        ? "An email in the batch is already registered"
+                        : "A username in the batch is already taken", e);
+                }
+                return email
+                    ? new DuplicateUserException("email", user.getEmail())
+                    : new DuplicateUserException("username", user.getUsername());
+            }
+        }
+        return new IllegalStateException("Error accessing user table: " + e.getMessage(), e);
+    }
+
+    private static final class UsersSnapshot {
+        private final long version;
+        private final List<User> users;
+
+        private UsersSnapshot(long version, List<User> users) {
+            this.version = version;
+            this.users = users;
+        }
+    }
+}
@@ -0,0 +1,752 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.Durability;
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * User store backed by a memory-mapped record file. Every user owns two fixed-size slots at
+ * {@code (id - 1) * 2 * slotSize}, each able to hold a {@link UserRecordCodec} record, so an
+ * update rewrites one slot and nothing else. Reads decode straight from the mapping and the OS
+ * page cache does the caching; on startup only the username and email of each record are
+ * decoded to rebuild their indexes. The search index is built from the full records the first
+ * time a search or filtered listing needs it.
+ *
+ * <p>File layout: a 4 KB header (magic {@code USRM}, version, slot size, next id), then the slots.
+ * A slot starts with a sequence number, a generation, the record length (0 for no user) and a
+ * CRC32 of generation, length and record. The file is mapped in 64 MB segments, added as ids grow.
+ *
+ * <p>Of a user's two slots, the one with the higher generation is current. A write goes to the
+ * other one with the next generation, so the current record stays intact until the new one is
+ * complete: a crash in the middle of a write leaves a slot whose CRC does not match, and startup
+ * falls back to the previous record. Only a slot written again before the batch is forced to disk
+ * is rewritten in place, as the other slot then still holds the last record that reached the disk.
+ *
+ * <p>Mutations run on a single writer thread, like {@link UserRepository}. Readers never lock:
+ * the writer makes the sequence number odd while it rewrites a slot, and a reader that saw it
+ * odd or changed reads the slot again.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "userapi.storage", name = "engine", havingValue = "mapped")
+public class MappedUserStore implements UserStore {
+
+    private static final int MAGIC = 0x5553524D; // "USRM"
+    private static final int VERSION = 2;
+    // Files of version 1 held one slot per user; they are converted on startup
+    private static final int VERSION_SINGLE_SLOT = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int NEXT_ID_OFFSET = 16;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int SLOT_SEQUENCE = 0;
+    private static final int SLOT_GENERATION = 4;
+    private static final int SLOT_LENGTH = 8;
+    private static final int SLOT_CRC = 12;
+    private static final int SLOT_RECORD = 16;
+    private static final int SINGLE_SLOT_LENGTH = 4;
+    private static final int SINGLE_SLOT_CRC = 8;
+    private static final int SINGLE_SLOT_RECORD = 12;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final File file;
+    private final StorageProperties properties;
+    private final Durability durability;
+    private int slotSize;
+    private int slotsPerSegment;
+
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    // Replaced, never modified, when a segment is added; entries are mapped on first use
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    // id -> username ("" if none) of every stored user, and the unique username and email indexes
+    private final Map<Long, String> usernamesById = new ConcurrentHashMap<>();
+    private final Map<String, Long> idsByUsername = new ConcurrentHashMap<>();
+    private final Map<String, Long> idsByEmail = new ConcurrentHashMap<>();
+    private final UserSearchIndex search = new UserSearchIndex();
+    // Set on the writer once the search index holds every user; until then changes skip it
+    private volatile boolean searchBuilt;
+    private final UserChangeListeners listeners = new UserChangeListeners();
+
+    private volatile long version;
+    private volatile UsersSnapshot snapshot;
+
+    private MutationPipeline pipeline;
+    // Writer thread only
+    private long nextId;
+    private final BitSet dirtySegments = new BitSet();
+    private boolean headerDirty;
+    // Ids written since the last force; their current slot is not on disk yet
+    private final Set<Long> unforced = new HashSet<>();
+
+    @Autowired
+    public MappedUserStore(StorageProperties properties) {
+        this.properties = properties;
+        this.file = new File(properties.getMapped().getFile());
+        this.durability = properties.getDurability();
+        this.slotSize = properties.getMapped().getSlotSize();
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (Integer.bitCount(slotSize) != 1 || slotSize < 64 || slotSize > SEGMENT_SIZE / 2) {
+            throw new IllegalStateException("userapi.storage.mapped.slot-size must be a power of two, got " + slotSize);
+        }
+        boolean created = !file.exists();
+        openFile();
+        List<User> singleSlotUsers = null;
+        long singleSlotNextId = 1;
+        if (!created && header.getInt(0) == MAGIC && header.getInt(4) == VERSION_SINGLE_SLOT) {
+            File converted = new File(file.getPath() + ".v1");
+            int singleSlotSize = header.getInt(8);
+            singleSlotNextId = header.getLong(NEXT_ID_OFFSET);
+            channel.close();
+            Files.move(file.toPath(), converted.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            singleSlotUsers = readSingleSlotFile(converted, singleSlotSize);
+            // The slot header grew, so a record that filled its old slot needs a larger one
+            slotSize = Math.max(slotSize, singleSlotSize);
+            for (User user : singleSlotUsers) {
+                while (UserRecordCodec.encode(user).length > slotSize - SLOT_RECORD && slotSize < SEGMENT_SIZE / 2) {
+                    slotSize *= 2;
+                }
+            }
+            created = true;
+            openFile();
+        }
+        if (created || header.getInt(0) == 0) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, slotSize);
+            header.putLong(NEXT_ID_OFFSET, 1);
+            header.force();
+        } else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a mapped user file: " + file);
+        } else if (header.getInt(8) != slotSize) {
+            System.err.println("Mapped user file " + file + " uses " + header.getInt(8)
+                + "-byte slots; ignoring configured " + slotSize);
+            slotSize = header.getInt(8);
+        }
+        slotsPerSegment = SEGMENT_SIZE / (2 * slotSize);
+        nextId = header.getLong(NEXT_ID_OFFSET);
+        scanSlots();
+        // Nothing to index yet, so imported users go straight into it
+        searchBuilt = usernamesById.isEmpty();
+        if (singleSlotUsers != null) {
+            importUsers(singleSlotUsers);
+            nextId = Math.max(nextId, singleSlotNextId);
+            header.putLong(NEXT_ID_OFFSET, nextId);
+            header.force();
+        } else if (created) {
+            importDataFile();
+        }
+        pipeline = new MutationPipeline("mapped-user-store-writer",
+            properties.getWriterQueueCapacity(), this::commitBatch, ticket -> { });
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (channel == null) {
+            return;
+        }
+        forceAll();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing mapped user file: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public List<User> findAll() {
+        long current = version;
+        UsersSnapshot cached = snapshot;
+        if (cached != null && cached.version == current) {
+            return cached.users;
+        }
+        long[] ids = usernamesById.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        List<User> users = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            User user = readUser(id);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        UsersSnapshot rebuilt = new UsersSnapshot(current, Collections.unmodifiableList(users));
+        snapshot = rebuilt;
+        return rebuilt.users;
+    }
+
+    @Override
+    public Optional<User> findById(Long id) {
+        if (id == null || !usernamesById.containsKey(id)) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(readUser(id));
+    }
+
+    @Override
+    public Optional<User> findByUsername(String username) {
+        if (username == null) {
+            return Optional.empty();
+        }
+        Long id = idsByUsername.get(username);
+        return id != null ? findById(id) : Optional.empty();
+    }
+
+    @Override
+    public Optional<User> findByEmail(String email) {
+        String key = UserStore.emailKey(email);
+        Long id = key != null ? idsByEmail.get(key) : null;
+        return id != null ? findById(id) : Optional.empty();
+    }
+
+    @Override
+    public List<User> findAllById(Collection<Long> ids) {
+        List<User> users = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            findById(id).ifPresent(users::add);
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> findAllByUsername(Collection<String> usernames) {
+        List<User> users = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            findByUsername(username).ifPresent(users::add);
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        return resolve(search().findByPrefix(prefix, limit));
+    }
+
+    @Override
+    public List<User> searchBySimilarUsername(String username, int maxDistance, int limit) {
+        return resolve(search().findBySimilarUsername(username, maxDistance, limit));
+    }
+
+    @Override
+    public List<User> searchBySubstring(String text, long afterId, int limit) {
+        return search().findBySubstring(text, afterId, limit, this::resolve);
+    }
+
+    @Override
+    public List<User> findAll(UserFilter filter, long afterId, int limit) {
+        return search().findByFilter(filter, afterId, limit, this::resolve);
+    }
+
+    /**
+     * The search index, built on the writer by the first caller that needs it, so no change can
+     * land between reading the records and indexing them.
+     */
+    private UserSearchIndex search() {
+        if (!searchBuilt) {
+            pipeline.execute(() -> {
+                if (!searchBuilt) {
+                    search.beginLoad();
+                    // In id order, so the search index can file them block by block
+                    long[] ids = usernamesById.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+                    for (long id : ids) {
+                        User user = readUser(id);
+                        if (user != null) {
+                            search.update(null, user);
+                        }
+                    }
+                    search.endLoad();
+                    searchBuilt = true;
+                }
+                return null;
+            });
+        }
+        return search;
+    }
+
+    @Override
+    public User save(User user) {
+        return pipeline.execute(() -> store(user, true));
+    }
+
+    /**
+     * Stores the whole batch in one mutation, so it is committed with one flush of the file.
+     */
+    @Override
+    public List<RuntimeException> saveBatch(List<User> users) {
+        return pipeline.execute(() -> {
+            List<RuntimeException> failures = new ArrayList<>(users.size());
+            for (User user : users) {
+                try {
+                    store(user, true);
+                    failures.add(null);
+                } catch (RuntimeException e) {
+                    failures.add(e);
+                }
+            }
+            return failures;
+        });
+    }
+
+    /**
+     * @param checkEmail false while importing, as data files written before emails were unique
+     *                   may share one between users
+     */
+    private User store(User user, boolean checkEmail) {
+        String username = user.getUsername();
+        Long owner = username != null ? idsByUsername.get(username) : null;
+        if (owner != null && !owner.equals(user.getId())) {
+            throw new DuplicateUserException("username", username);
+        }
+        String emailKey = UserStore.emailKey(user.getEmail());
+        owner = checkEmail && emailKey != null ? idsByEmail.get(emailKey) : null;
+        if (owner != null && !owner.equals(user.getId()) && !keepsEmail(user, emailKey)) {
+            throw new DuplicateUserException("email", user.getEmail());
+        }
+        boolean created = user.getId() == null;
+        if (created) {
+            user.setId(nextId);
+        } else if (user.getId() < 1 || user.getId() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("User id out of range for the mapped store: " + user.getId());
+        }
+        long id = user.getId();
+        byte[] record = UserRecordCodec.encode(user);
+        if (record.length > slotSize - SLOT_RECORD) {
+            if (created) {
+                user.setId(null);
+            }
+            throw new IllegalArgumentException("User needs " + record.length
+                + " bytes, more than a " + slotSize + "-byte slot holds");
+        }
+        User replaced = usernamesById.containsKey(id) ? readUser(id) : null;
+        writeSlot(id, record);
+        if (id >= nextId) {
+            nextId = id + 1;
+            header.putLong(NEXT_ID_OFFSET, nextId);
+            headerDirty = true;
+        }
+        String previous = usernamesById.put(id, username != null ? username : "");
+        if (username != null) {
+            idsByUsername.put(username, id);
+        }
+        if (previous != null && !previous.isEmpty() && !previous.equals(username)) {
+            idsByUsername.remove(previous, id);
+        }
+        String previousEmailKey = replaced != null ? UserStore.emailKey(replaced.getEmail()) : null;
+        if (emailKey != null && !emailKey.equals(previousEmailKey)) {
+            indexEmail(id, user.getEmail());
+        }
+        if (previousEmailKey != null && !previousEmailKey.equals(emailKey)) {
+            idsByEmail.remove(previousEmailKey, id);
+        }
+        if (searchBuilt) {
+            search.update(replaced, user);
+        }
+        version++;
+        listeners.changed(id);
+        return user;
+    }
+
+    // A user loaded with an email that an earlier user already had may still be saved with it
+    private boolean keepsEmail(User user, String emailKey) {
+        return findById(user.getId())
+            .filter(current -> emailKey.equals(UserStore.emailKey(current.getEmail())))
+            .isPresent();
+    }
+
+    /**
+     * Data written before emails were unique may share one between users; the first one indexed
+     * keeps it for lookups by email.
+     */
+    private void indexEmail(long id, String email) {
+        Long owner = idsByEmail.putIfAbsent(UserStore.emailKey(email), id);
+        if (owner != null && owner != id) {
+            System.err.println("User " + id + " has the email of user " + owner
+                + ", which keeps it for lookups by email: " + email);
+        }
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public boolean deleteById(Long id) {
+        if (id == null) {
+            return false;
+        }
+        return pipeline.execute(() -> {
+            User removed = usernamesById.containsKey(id) ? readUser(id) : null;
+            String username = usernamesById.remove(id);
+            if (username == null) {
+                return false;
+            }
+            if (!username.isEmpty()) {
+                idsByUsername.remove(username, id);
+            }
+            if (removed != null && removed.getEmail() != null) {
+                idsByEmail.remove(UserStore.emailKey(removed.getEmail()), id);
+            }
+            if (searchBuilt) {
+                search.update(removed, null);
+            }
+            writeSlot(id, null);
+            version++;
+            listeners.changed(id);
+            return true;
+        });
+    }
+
+    /**
+     * Rebuilds the username and email indexes from the slots, decoding only those two fields of
+     * each record. A slot whose CRC does not match was torn by a crash in
+     * the middle of its write; the user's other slot then still holds the previous record, which
+     * becomes current again. A user is dropped only if neither slot holds a valid record.
+     */
+    private void scanSlots() throws IOException {
+        long ids = Math.max(0, (channel.size() - HEADER_SIZE) / (2L * slotSize));
+        byte[] record = new byte[slotSize];
+        for (long id = 1; id <= ids; id++) {
+            MappedByteBuffer segment = segment(id, true);
+            int offset = slotOffset(id);
+            boolean firstValid = checkSlot(segment, offset, record);
+            boolean secondValid = checkSlot(segment, offset + slotSize, record);
+            if (!firstValid && !secondValid) {
+                clearSlot(segment, offset, 0);
+                clearSlot(segment, offset + slotSize, 0);
+                System.err.println("Dropping corrupt user record " + id + " in " + file);
+                continue;
+            }
+            boolean torn = !firstValid || !secondValid;
+            if (torn) {
+                int valid = firstValid ? offset : offset + slotSize;
+                // An older, empty slot, so the writer keeps the valid one as current
+                clearSlot(segment, firstValid ? offset + slotSize : offset, segment.getInt(valid + SLOT_GENERATION) - 1);
+            }
+            int current = offset + currentSlot(segment, offset) * slotSize;
+            int length = segment.getInt(current + SLOT_LENGTH);
+            if (torn) {
+                System.err.println((length > 0 ? "Restoring the previous version of" : "Dropping corrupt")
+                    + " user record " + id + " in " + file);
+            }
+            if (length == 0) {
+                continue;
+            }
+            ByteBuffer view = segment.duplicate();
+            view.limit(current + SLOT_RECORD + length);
+            view.position(current + SLOT_RECORD);
+            UserRecordCodec.Keys keys;
+            try {
+                keys = UserRecordCodec.decodeKeys(view);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Dropping undecodable user record " + id + " in " + file);
+                continue;
+            }
+            usernamesById.put(id, keys.username != null ? keys.username : "");
+            if (keys.username != null) {
+                idsByUsername.put(keys.username, id);
+            }
+            if (keys.email != null) {
+                indexEmail(id, keys.email);
+            }
+            nextId = Math.max(nextId, id + 1);
+        }
+    }
+
+    /**
+     * Whether the slot is unused or holds a complete record; makes its sequence number even
+     * again if the last run stopped in the middle of a write. Slots left whole are only read, so
+     * their pages are not written back.
+     */
+    private boolean checkSlot(MappedByteBuffer segment, int slot, byte[] buffer) {
+        int sequence = segment.getInt(slot + SLOT_SEQUENCE);
+        if ((sequence & 1) != 0) {
+            segment.putInt(slot + SLOT_SEQUENCE, sequence & ~1);
+        }
+        int generation = segment.getInt(slot + SLOT_GENERATION);
+        int length = segment.getInt(slot + SLOT_LENGTH);
+        if (generation == 0 && length == 0) {
+            return true;
+        }
+        if (length < 0 || length > slotSize - SLOT_RECORD) {
+            return false;
+        }
+        ByteBuffer view = segment.duplicate();
+        view.position(slot + SLOT_RECORD);
+        view.get(buffer, 0, length);
+        return checksum(generation, buffer, length) == segment.getInt(slot + SLOT_CRC);
+    }
+
+    private void clearSlot(MappedByteBuffer segment, int slot, int generation) {
+        segment.putInt(slot + SLOT_GENERATION, generation);
+        segment.putInt(slot + SLOT_LENGTH, 0);
+        segment.putInt(slot + SLOT_CRC, checksum(generation, null, 0));
+    }
+
+    /**
+     * Fills a new record file with the users of the data file used by the file engine, so
+     * switching engines keeps the data.
+     */
+    private void importDataFile() {
+        if (!new File(properties.getDataFile()).exists()) {
+            return;
+        }
+        UserRepository repository = UserRepository.openForImport(properties);
+        try {
+            importUsers(repository.findAll());
+        } finally {
+            repository.close();
+        }
+    }
+
+    private void importUsers(List<User> users) {
+        for (User user : users) {
+            store(new User(user), false);
+        }
+        forceAll();
+        dirtySegments.clear();
+        headerDirty = false;
+        unforced.clear();
+    }
+
+    /**
+     * Reads the valid records of a version 1 file, which had a single slot per user with the
+     * record length, a CRC32 of the record and the record.
+     */
+    private List<User> readSingleSlotFile(File singleSlotFile, int singleSlotSize) throws IOException {
+        List<User> users = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(singleSlotFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer slot = ByteBuffer.allocate(singleSlotSize);
+            CRC32 crc = new CRC32();
+            for (long position = HEADER_SIZE; position + singleSlotSize <= in.size(); position += singleSlotSize) {
+                slot.clear();
+                while (slot.hasRemaining() && in.read(slot, position + slot.position()) >= 0) {
+                    // Reads until the slot is full
+                }
+                int length = slot.getInt(SINGLE_SLOT_LENGTH);
+                if (length <= 0 || length > singleSlotSize - SINGLE_SLOT_RECORD) {
+                    continue;
+                }
+                crc.reset();
+                crc.update(slot.array(), SINGLE_SLOT_RECORD, length);
+                try {
+                    if ((int) crc.getValue() != slot.getInt(SINGLE_SLOT_CRC)) {
+                        throw new IllegalArgumentException("CRC mismatch");
+                    }
+                    users.add(UserRecordCodec.decode(ByteBuffer.wrap(slot.array(), SINGLE_SLOT_RECORD, length)));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Dropping corrupt user record at " + position + " in " + singleSlotFile);
+                }
+            }
+        }
+        return users;
+    }
+
+    private List<User> resolve(long[] ids) {
+        List<User> users = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            // Removed since the search
+            findById(id).ifPresent(users::add);
+        }
+        return users;
+    }
+
+    private User readUser(long id) {
+        byte[] record = readSlot(id);
+        return record != null ? UserRecordCodec.decode(ByteBuffer.wrap(record)) : null;
+    }
+
+    /**
+     * Copies a slot's record out of the mapping, retrying while the writer is changing it.
+     */
+    private byte[] readSlot(long id) {
+        MappedByteBuffer[] current = segments;
+        int index = segmentIndex(id);
+        if (index >= current.length || current[index] == null) {
+            return null;
+        }
+        MappedByteBuffer segment = current[index];
+        int offset = slotOffset(id);
+        while (true) {
+            int slot = offset + currentSlot(segment, offset) * slotSize;
+            int sequence = (int) INT.getAcquire(segment, slot + SLOT_SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int length = segment.getInt(slot + SLOT_LENGTH);
+            byte[] record = null;
+            if (length > 0 && length <= slotSize - SLOT_RECORD) {
+                record = new byte[length];
+                ByteBuffer view = segment.duplicate();
+                view.position(slot + SLOT_RECORD);
+                view.get(record);
+            }
+            VarHandle.acquireFence();
+            if ((int) INT.getVolatile(segment, slot + SLOT_SEQUENCE) == sequence) {
+                return record;
+            }
+        }
+    }
+
+    /**
+     * 0 or 1 for the slot of the user at {@code offset} with the higher generation. A slot being
+     * written already carries its new generation, so readers go to it and wait for the write.
+     */
+    private int currentSlot(MappedByteBuffer segment, int offset) {
+        int first = (int) INT.getAcquire(segment, offset + SLOT_GENERATION);
+        int second = (int) INT.getAcquire(segment, offset + slotSize + SLOT_GENERATION);
+        // Compared by difference, so generations may wrap around
+        return second - first > 0 ? 1 : 0;
+    }
+
+    /**
+     * Writes the user's record to the slot that is not current, with the next generation, which
+     * makes it current; a null record marks the user as deleted. Runs on the writer thread.
+     */
+    private void writeSlot(long id, byte[] record) {
+        MappedByteBuffer segment = segment(id, true);
+        int offset = slotOffset(id);
+        int current = currentSlot(segment, offset);
+        int generation = segment.getInt(offset + current * slotSize + SLOT_GENERATION) + 1;
+        // The other slot holds the last record on disk, so one written since is replaced in place
+        int slot = offset + (unforced.add(id) ? 1 - current : current) * slotSize;
+        int length = record != null ? record.length : 0;
+        int sequence = segment.getInt(slot + SLOT_SEQUENCE);
+        INT.setOpaque(segment, slot + SLOT_SEQUENCE, sequence + 1);
+        VarHandle.storeStoreFence();
+        INT.setRelease(segment, slot + SLOT_GENERATION, generation);
+        if (record != null) {
+            ByteBuffer view = segment.duplicate();
+            view.position(slot + SLOT_RECORD);
+            view.put(record);
+        }
+        segment.putInt(slot + SLOT_LENGTH, length);
+        segment.putInt(slot + SLOT_CRC, checksum(generation, record, length));
+        INT.setRelease(segment, slot + SLOT_SEQUENCE, sequence + 2);
+        dirtySegments.set(segmentIndex(id));
+    }
+
+    private static int checksum(int generation, byte[] record, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(generation).putInt(length).flip());
+        if (length > 0) {
+            crc.update(record, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    private MappedByteBuffer segment(long id, boolean create) {
+        int index = segmentIndex(id);
+        MappedByteBuffer[] current = segments;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        if (!create) {
+            return null;
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(current, Math.max(current.length, index + 1));
+        try {
+            grown[index] = channel.map(FileChannel.MapMode.READ_WRITE,
+                HEADER_SIZE + (long) index * SEGMENT_SIZE, SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not map user file segment " + index, e);
+        }
+        segments = grown;
+        return grown[index];
+    }
+
+    private int segmentIndex(long id) {
+        return (int) ((id - 1) / slotsPerSegment);
+    }
+
+    private int slotOffset(long id) {
+        return (int) ((id - 1) % slotsPerSegment) * 2 * slotSize;
+    }
+
+    /**
+     * Runs on the writer thread after each batch; unless durability is async, the batch is on
+     * disk before its callers return.
+     */
+    private long commitBatch() {
+        if (durability != Durability.ASYNC) {
+            forceDirty();
+        } else {
+            // Nothing waits for the disk, so slots simply alternate
+            unforced.clear();
+        }
+        return 0;
+    }
+
+    private void forceDirty() {
+        MappedByteBuffer[] current = segments;
+        for (int index = dirtySegments.nextSetBit(0); index >= 0; index = dirtySegments.nextSetBit(index + 1)) {
+            current[index].force();
+        }
+        dirtySegments.clear();
+        unforced.clear();
+        if (headerDirty) {
+            header.force();
+            headerDirty = false;
+        }
+    }
+
+    private void forceAll() {
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        header.force();
+    }
+
+    private static final class UsersSnapshot {
+        private final long version;
+        private final List<User> users;
+
+        private UsersSnapshot(long version, List<User> users) {
+            this.version = version;
+            this.users = users;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.userapi.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs every mutation of a store on one dedicated writer thread, fed by a bounded queue.
+ * Callers block until their mutation is applied; a full queue pushes back on them instead of
+ * growing without limit. The writer drains whatever is queued as one batch and commits it once,
+ * so writes need no lock and readers never wait for a writer.
+ */
+class MutationPipeline {
+
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * A change to apply on the writer thread.
+     */
+    @FunctionalInterface
+    interface Mutation<T> {
+        T apply();
+    }
+
+    /**
+     * Called on the writer thread after each batch. An exception fails every mutation of the
+     * batch that had succeeded.
+     *
+     * @return a ticket handed to {@link CommitWait} on each caller thread of the batch
+     */
+    @FunctionalInterface
+    interface BatchCommit {
+        long commit();
+    }
+
+    /**
+     * Called on the caller thread once its mutation is applied, e.g. to wait for the disk. An
+     * exception is rethrown to the caller in place of the mutation's result.
+     */
+    @FunctionalInterface
+    interface CommitWait {
+        void await(long ticket);
+    }
+
+    private final BlockingQueue<Task<?>> queue;
+    private final BatchCommit batchCommit;
+    private final CommitWait commitWait;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    MutationPipeline(String name, int capacity, BatchCommit batchCommit, CommitWait commitWait) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchCommit = batchCommit;
+        this.commitWait = commitWait;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Applies the mutation on the writer thread and returns its result. Runtime exceptions thrown
+     * by the mutation, by the batch commit or by the commit wait are rethrown to the caller.
+     */
+    <T> T execute(Mutation<T> mutation) {
+        if (Thread.currentThread() == thread) {
+            return mutation.apply();
+        }
+        if (closed) {
+            throw new IllegalStateException("User store is closed");
+        }
+        Task<T> task = new Task<>(mutation);
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing a user store change", e);
+        }
+        task.awaitApplied();
+        commitWait.await(task.ticket);
+        if (task.failure != null) {
+            throw task.failure;
+        }
+        return task.result;
+    }
+
+    /**
+     * Applies everything already queued, then stops the writer thread.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(new Task<>(null));
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Task<?>> batch = new ArrayList<>(MAX_BATCH);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            for (Task<?> task : batch) {
+                if (task.mutation == null) {
+                    stop = true;
+                } else {
+                    task.apply();
+                }
+            }
+            long ticket = 0;
+            RuntimeException commitFailure = null;
+            try {
+                ticket = batchCommit.commit();
+            } catch (RuntimeException e) {
+                System.err.println("Error committing user store changes: " + e.getMessage());
+                commitFailure = e;
+            }
+            for (Task<?> task : batch) {
+                task.ticket = ticket;
+                // The change is applied but may not be on disk, which the caller must hear about
+                if (commitFailure != null && task.failure == null) {
+                    task.failure = commitFailure;
+                }
+                task.applied.countDown();
+            }
+            batch.clear();
+        }
+        // Anything that slipped in behind the stop marker is rejected rather than left waiting
+        queue.drainTo(batch);
+        for (Task<?> task : batch) {
+            task.failure = new IllegalStateException("User store is closed");
+            task.applied.countDown();
+        }
+    }
+
+    private static final class Task<T> {
+        private final Mutation<T> mutation;
+        private final CountDownLatch applied = new CountDownLatch(1);
+        // Written by the writer thread before the latch opens
+        private T result;
+        private RuntimeException failure;
+        private long ticket;
+
+        private Task(Mutation<T> mutation) {
+            this.mutation = mutation;
+        }
+
+        private void apply() {
+            try {
+                result = mutation.apply();
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+
+        private void awaitApplied() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    applied.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
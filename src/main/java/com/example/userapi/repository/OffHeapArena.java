@@ -0,0 +1,199 @@
+package com.example.userapi.repository;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Slab allocator for encoded user records in direct {@link ByteBuffer}s, outside the Java heap.
+ * Memory is taken from the OS in 64 MB chunks and cut into slots of a few size classes, from
+ * 64 bytes up to 1 MB, each growing by half the previous step. A record goes into the smallest
+ * class that holds it, so at most a third of a slot is wasted. A location is a {@code long}
+ * packing size class, chunk and offset; 0 is never a location.
+ *
+ * <p>A slot starts with a sequence number and the record length. The writer makes the sequence
+ * odd while it fills a slot, and a reader that saw it odd or changed copies the slot again, as
+ * in {@link MappedUserStore}.
+ *
+ * <p>Freed slots are not reused right away: a listing taken earlier may still read them. Each
+ * free is tagged with a version of the owning index, and {@link #reclaim(long)} hands slots
+ * back to their size class once no reader can need them any more.
+ *
+ * <p>Only one thread at a time may allocate, free or reclaim; {@link #read(long)} is safe from
+ * any thread.
+ */
+class OffHeapArena {
+
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+    // Kept free at the start of every chunk, so no slot is at location 0
+    private static final int CHUNK_RESERVED = 64;
+    private static final int SIZE_CLASSES = 29;
+    private static final int SLOT_SEQUENCE = 0;
+    private static final int SLOT_LENGTH = 4;
+    private static final int SLOT_RECORD = 8;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    // Replaced, never modified, when a chunk is added
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    // Writer only: the chunk slots are cut from, free slots per size class, and freed slots
+    // waiting for readers as (location, version) pairs in the order they were freed
+    private int bumpOffset = CHUNK_SIZE;
+    private final long[][] free = new long[SIZE_CLASSES][];
+    private final int[] freeCount = new int[SIZE_CLASSES];
+    private long[] pending = new long[64];
+    private int pendingStart;
+    private int pendingEnd;
+    private long allocatedBytes;
+
+    /**
+     * Largest record that fits in a slot.
+     */
+    static int maxRecordSize() {
+        return slotSize(SIZE_CLASSES - 1) - SLOT_RECORD;
+    }
+
+    /**
+     * Copies a record into a free slot.
+     *
+     * @return the location of the slot
+     * @throws IllegalArgumentException if the record is larger than {@link #maxRecordSize()}
+     */
+    long allocate(byte[] record) {
+        int sizeClass = sizeClass(record.length + SLOT_RECORD);
+        long location = freeCount[sizeClass] > 0
+            ? free[sizeClass][--freeCount[sizeClass]]
+            : cut(sizeClass);
+        ByteBuffer chunk = chunks[chunkIndex(location)];
+        int offset = offset(location);
+        int sequence = chunk.getInt(offset + SLOT_SEQUENCE);
+        INT.setOpaque(chunk, offset + SLOT_SEQUENCE, sequence + 1);
+        VarHandle.storeStoreFence();
+        ByteBuffer view = chunk.duplicate();
+        view.position(offset + SLOT_RECORD);
+        view.put(record);
+        chunk.putInt(offset + SLOT_LENGTH, record.length);
+        INT.setRelease(chunk, offset + SLOT_SEQUENCE, sequence + 2);
+        return location;
+    }
+
+    /**
+     * Marks a slot free as of {@code version}. Its contents stay readable until it is reclaimed.
+     */
+    void free(long location, long version) {
+        if (pendingEnd + 2 > pending.length) {
+            int size = pendingEnd - pendingStart;
+            long[] grown = size + 2 > pending.length / 2 ? new long[pending.length * 2] : pending;
+            System.arraycopy(pending, pendingStart, grown, 0, size);
+            pending = grown;
+            pendingStart = 0;
+            pendingEnd = size;
+        }
+        pending[pendingEnd++] = location;
+        pending[pendingEnd++] = version;
+    }
+
+    /**
+     * Makes every slot freed at or before {@code version} available again.
+     */
+    void reclaim(long version) {
+        while (pendingStart < pendingEnd && pending[pendingStart + 1] <= version) {
+            long location = pending[pendingStart];
+            int sizeClass = sizeClass(location);
+            long[] slots = free[sizeClass];
+            if (slots == null || freeCount[sizeClass] == slots.length) {
+                free[sizeClass] = slots = Arrays.copyOf(slots != null ? slots : new long[0],
+                    Math.max(16, freeCount[sizeClass] * 2));
+            }
+            slots[freeCount[sizeClass]++] = location;
+            pendingStart += 2;
+        }
+    }
+
+    /**
+     * Whether some freed slots are still waiting to be reclaimed.
+     */
+    boolean hasPending() {
+        return pendingStart < pendingEnd;
+    }
+
+    /**
+     * Bytes taken from the OS so far.
+     */
+    long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Copies the record out of a slot, retrying while the writer is filling it.
+     */
+    byte[] read(long location) {
+        ByteBuffer chunk = chunks[chunkIndex(location)];
+        int offset = offset(location);
+        int capacity = slotSize(sizeClass(location)) - SLOT_RECORD;
+        while (true) {
+            int sequence = (int) INT.getAcquire(chunk, offset + SLOT_SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int length = chunk.getInt(offset + SLOT_LENGTH);
+            byte[] record = null;
+            if (length >= 0 && length <= capacity) {
+                record = new byte[length];
+                ByteBuffer view = chunk.duplicate();
+                view.position(offset + SLOT_RECORD);
+                view.get(record);
+            }
+            VarHandle.acquireFence();
+            if ((int) INT.getVolatile(chunk, offset + SLOT_SEQUENCE) == sequence && record != null) {
+                return record;
+            }
+        }
+    }
+
+    private long cut(int sizeClass) {
+        int size = slotSize(sizeClass);
+        if (bumpOffset + size > CHUNK_SIZE) {
+            ByteBuffer[] current = chunks;
+            ByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            chunks = grown;
+            allocatedBytes += CHUNK_SIZE;
+            bumpOffset = CHUNK_RESERVED;
+        }
+        long location = ((long) sizeClass << 56) | ((long) (chunks.length - 1) << 32) | bumpOffset;
+        bumpOffset += size;
+        return location;
+    }
+
+    // 64, 96, 128, 192, 256, ... bytes; all multiples of 32, so slots stay aligned for INT
+    private static int slotSize(int sizeClass) {
+        return ((sizeClass & 1) == 0 ? 64 : 96) << (sizeClass >> 1);
+    }
+
+    private static int sizeClass(int slotBytes) {
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            if (slotSize(sizeClass) >= slotBytes) {
+                return sizeClass;
+            }
+        }
+        throw new IllegalArgumentException("User record of " + (slotBytes - SLOT_RECORD)
+            + " bytes is larger than the off-heap limit of " + maxRecordSize());
+    }
+
+    private static int sizeClass(long location) {
+        return (int) (location >>> 56);
+    }
+
+    private static int chunkIndex(long location) {
+        return (int) (location >>> 32) & 0xFFFFFF;
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+}
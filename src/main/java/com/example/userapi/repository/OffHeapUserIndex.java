@@ -0,0 +1,425 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.User;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link UserIndex} that keeps the users themselves outside the Java heap, as
+ * {@link UserRecordCodec} records in an {@link OffHeapArena}. What stays on the heap is the
+ * location of every user, in pages of a {@code long} array addressed by id, the username and
+ * email indexes and the {@link UserSearchIndex}, so the GC has a handful of small objects per
+ * user to trace instead of every field. Records are decoded when they are read, and listings
+ * decode each user only when the element is read, e.g. while the response is serialized.
+ *
+ * <p>Ids must be between 1 and {@link Integer#MAX_VALUE}; ids are handed out sequentially, so the
+ * location pages stay dense.
+ *
+ * <p>Changing a user writes a new record and frees the old one, so readers never see a record
+ * being rewritten in place. A lookup that raced with a change and read a location that has been
+ * replaced since looks the user up again. A slot freed while a listing that may still read it is
+ * reachable is reused only after the GC has collected the listing.
+ */
+class OffHeapUserIndex implements UserIndex {
+
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final OffHeapArena arena = new OffHeapArena();
+    // Location of the user with each id, or 0; replaced, never modified, when a page is added
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+    private final Map<String, Long> idsByUsername = new ConcurrentHashMap<>();
+    private final Map<String, Long> idsByEmail = new ConcurrentHashMap<>();
+    private final UserSearchIndex search = new UserSearchIndex();
+    // Listings that may still read slots, with the version each was taken at
+    private final ConcurrentLinkedQueue<PinReference> pins = new ConcurrentLinkedQueue<>();
+
+    private volatile int size;
+    private volatile long version;
+    private volatile UsersSnapshot snapshot;
+    // Writer only
+    private long maxId;
+
+    /**
+     * The list holds only the locations of the users, in id order; each element is decoded when
+     * it is read.
+     */
+    @Override
+    public List<User> findAll() {
+        long current = version;
+        UsersSnapshot cached = snapshot;
+        if (cached != null && cached.version == current) {
+            return cached;
+        }
+        // Registered before the locations are read, so none of them can be reused while the
+        // listing is reachable
+        Pin pin = new Pin(current);
+        pins.add(pin.reference);
+        long[] locations = new long[size];
+        int count = 0;
+        for (AtomicLongArray page : pages) {
+            if (page == null) {
+                continue;
+            }
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                long location = page.get(i);
+                if (location != 0) {
+                    if (count == locations.length) {
+                        locations = Arrays.copyOf(locations, Math.max(16, count * 2));
+                    }
+                    locations[count++] = location;
+                }
+            }
+        }
+        UsersSnapshot rebuilt = new UsersSnapshot(current, pin, Arrays.copyOf(locations, count));
+        Reference.reachabilityFence(pin);
+        snapshot = rebuilt;
+        return rebuilt;
+    }
+
+    @Override
+    public Optional<User> findById(Long id) {
+        if (id == null || id < 1 || id > MAX_ID) {
+            return Optional.empty();
+        }
+        while (true) {
+            long location = location(id);
+            if (location == 0) {
+                return Optional.empty();
+            }
+            byte[] record = arena.read(location);
+            // Still the user's record after the copy, so it was not replaced in the meantime
+            if (location(id) == location) {
+                return Optional.of(UserRecordCodec.decode(ByteBuffer.wrap(record)));
+            }
+        }
+    }
+
+    @Override
+    public Optional<User> findByUsername(String username) {
+        if (username == null) {
+            return Optional.empty();
+        }
+        Long id = idsByUsername.get(username);
+        if (id == null) {
+            return Optional.empty();
+        }
+        // The user may have been renamed since the username index was read
+        return findById(id).filter(user -> username.equals(user.getUsername()));
+    }
+
+    @Override
+    public Optional<User> findByEmail(String email) {
+        String key = UserStore.emailKey(email);
+        Long id = key != null ? idsByEmail.get(key) : null;
+        if (id == null) {
+            return Optional.empty();
+        }
+        return findById(id).filter(user -> key.equals(UserStore.emailKey(user.getEmail())));
+    }
+
+    @Override
+    public List<User> findAllById(Collection<Long> ids) {
+        List<User> users = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            findById(id).ifPresent(users::add);
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> findAllByUsername(Collection<String> usernames) {
+        List<User> users = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            findByUsername(username).ifPresent(users::add);
+        }
+        return users;
+    }
+
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        return resolve(search.findByPrefix(prefix, limit));
+    }
+
+    @Override
+    public List<User> searchBySimilarUsername(String username, int maxDistance, int limit) {
+        return resolve(search.findBySimilarUsername(username, maxDistance, limit));
+    }
+
+    @Override
+    public List<User> searchBySubstring(String text, long afterId, int limit) {
+        return search.findBySubstring(text, afterId, limit, this::resolve);
+    }
+
+    @Override
+    public List<User> findAll(UserFilter filter, long afterId, int limit) {
+        return search.findByFilter(filter, afterId, limit, this::resolve);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long maxId() {
+        return maxId;
+    }
+
+    @Override
+    public void checkUnique(User user) {
+        UserIndex.checkId(user.getId());
+        String username = user.getUsername();
+        Long owner = username != null ? idsByUsername.get(username) : null;
+        if (owner != null && !owner.equals(user.getId())) {
+            throw new DuplicateUserException("username", username);
+        }
+        String email = user.getEmail();
+        owner = email != null ? idsByEmail.get(UserStore.emailKey(email)) : null;
+        if (owner != null && !owner.equals(user.getId()) && !keepsEmail(user)) {
+            throw new DuplicateUserException("email", email);
+        }
+    }
+
+    // A user loaded with an email that an earlier user already had may still be saved with it
+    private boolean keepsEmail(User user) {
+        return findById(user.getId())
+            .filter(current -> UserStore.emailKey(user.getEmail()).equals(UserStore.emailKey(current.getEmail())))
+            .isPresent();
+    }
+
+    /**
+     * Only the encoded record is kept.
+     *
+     * @throws IllegalArgumentException if the id is out of range or the record is too large
+     */
+    @Override
+    public void put(User user) {
+        Long id = user.getId();
+        if (id == null || id < 1 || id > MAX_ID) {
+            throw new IllegalArgumentException("User id out of range for the off-heap store: " + id);
+        }
+        reclaim();
+        long location = arena.allocate(UserRecordCodec.encode(user));
+        AtomicLongArray page = page(id, true);
+        long previous = page.getAndSet((int) (id & (PAGE_SIZE - 1)), location);
+        User replaced = null;
+        if (previous != 0) {
+            replaced = UserRecordCodec.decode(ByteBuffer.wrap(arena.read(previous)));
+        } else {
+            size++;
+        }
+        String username = user.getUsername();
+        if (username != null) {
+            idsByUsername.put(username, id);
+        }
+        String previousUsername = replaced != null ? replaced.getUsername() : null;
+        if (previousUsername != null && !previousUsername.equals(username)) {
+            idsByUsername.remove(previousUsername, id);
+        }
+        String emailKey = UserStore.emailKey(user.getEmail());
+        String previousEmailKey = replaced != null ? UserStore.emailKey(replaced.getEmail()) : null;
+        if (emailKey != null) {
+            Long owner = idsByEmail.putIfAbsent(emailKey, id);
+            if (owner != null && !owner.equals(id) && !emailKey.equals(previousEmailKey)) {
+                // Left by data written before emails were unique; the first user keeps the email
+                System.err.println("User " + id + " has the email of user " + owner
+                    + ", which keeps it for lookups by email: " + user.getEmail());
+            }
+        }
+        if (previousEmailKey != null && !previousEmailKey.equals(emailKey)) {
+            idsByEmail.remove(previousEmailKey, id);
+        }
+        search.update(replaced, user);
+        maxId = Math.max(maxId, id);
+        changed(previous);
+    }
+
+    @Override
+    public boolean remove(Long id) {
+        AtomicLongArray page = id != null && id >= 1 && id <= MAX_ID ? page(id, false) : null;
+        if (page == null) {
+            return false;
+        }
+        long previous = page.getAndSet((int) (id & (PAGE_SIZE - 1)), 0);
+        if (previous == 0) {
+            return false;
+        }
+        User removed = UserRecordCodec.decode(ByteBuffer.wrap(arena.read(previous)));
+        if (removed.getUsername() != null) {
+            idsByUsername.remove(removed.getUsername(), id);
+        }
+        if (removed.getEmail() != null) {
+            idsByEmail.remove(UserStore.emailKey(removed.getEmail()), id);
+        }
+        search.update(removed, null);
+        size--;
+        changed(previous);
+        return true;
+    }
+
+    /**
+     * Drops every user; their slots are reused like those of removed users.
+     */
+    @Override
+    public void clear() {
+        AtomicLongArray[] current = pages;
+        pages = new AtomicLongArray[0];
+        long next = version + 1;
+        for (AtomicLongArray page : current) {
+            for (int i = 0; page != null && i < PAGE_SIZE; i++) {
+                long location = page.get(i);
+                if (location != 0) {
+                    arena.free(location, next);
+                }
+            }
+        }
+        idsByUsername.clear();
+        idsByEmail.clear();
+        search.clear();
+        size = 0;
+        maxId = 0;
+        changed(0);
+    }
+
+    @Override
+    public void beginLoad() {
+        search.beginLoad();
+    }
+
+    @Override
+    public void endLoad() {
+        search.endLoad();
+    }
+
+    /**
+     * Bytes of off-heap memory taken so far; it is not given back while the store is open.
+     */
+    long offHeapBytes() {
+        return arena.allocatedBytes();
+    }
+
+    private void changed(long freed) {
+        long next = version + 1;
+        if (freed != 0) {
+            // Readers of listings taken before this change may still need the old record
+            arena.free(freed, next);
+        }
+        version = next;
+        // Let the GC collect the cached listing, which would otherwise keep its slots in use
+        snapshot = null;
+    }
+
+    /**
+     * Hands freed slots back to the arena once every listing that could read them is gone.
+     */
+    private void reclaim() {
+        if (!arena.hasPending()) {
+            return;
+        }
+        // A listing taken at version v reads only slots freed after v
+        long oldest = Long.MAX_VALUE;
+        for (Iterator<PinReference> it = pins.iterator(); it.hasNext(); ) {
+            PinReference reference = it.next();
+            if (reference.get() == null) {
+                it.remove();
+            } else {
+                oldest = Math.min(oldest, reference.version);
+            }
+        }
+        arena.reclaim(oldest);
+    }
+
+    private List<User> resolve(long[] ids) {
+        List<User> users = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            // Removed since the search
+            findById(id).ifPresent(users::add);
+        }
+        return users;
+    }
+
+    private long location(long id) {
+        AtomicLongArray[] current = pages;
+        int index = (int) (id >>> PAGE_BITS);
+        if (index >= current.length || current[index] == null) {
+            return 0;
+        }
+        return current[index].get((int) (id & (PAGE_SIZE - 1)));
+    }
+
+    private AtomicLongArray page(long id, boolean create) {
+        int index = (int) (id >>> PAGE_BITS);
+        AtomicLongArray[] current = pages;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        if (!create) {
+            return null;
+        }
+        AtomicLongArray[] grown = Arrays.copyOf(current, Math.max(current.length, index + 1));
+        grown[index] = new AtomicLongArray(PAGE_SIZE);
+        pages = grown;
+        return grown[index];
+    }
+
+    /**
+     * Marker held by a listing; its reference is cleared once the listing is collected.
+     */
+    private static final class Pin {
+        private final PinReference reference;
+
+        private Pin(long version) {
+            this.reference = new PinReference(this, version);
+        }
+    }
+
+    private static final class PinReference extends WeakReference<Pin> {
+        private final long version;
+
+        private PinReference(Pin pin, long version) {
+            super(pin);
+            this.version = version;
+        }
+    }
+
+    /**
+     * Read-only list over the locations of the users as of one version.
+     */
+    private final class UsersSnapshot extends AbstractList<User> {
+        private final long version;
+        // Keeps the slots of this listing from being reused while it is reachable
+        private final Pin pin;
+        private final long[] locations;
+
+        private UsersSnapshot(long version, Pin pin, long[] locations) {
+            this.version = version;
+            this.pin = pin;
+            this.locations = locations;
+        }
+
+        @Override
+        public User get(int index) {
+            return UserRecordCodec.decode(ByteBuffer.wrap(arena.read(locations[index])));
+        }
+
+        @Override
+        public int size() {
+            return locations.length;
+        }
+    }
+}
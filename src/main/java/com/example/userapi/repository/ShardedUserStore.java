@@ -0,0 +1,611 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User store that partitions users by a hash of their id over {@code userapi.storage.shards}
+ * {@link UserRepository} shards. Every shard has its own indexes, writer thread and data file
+ * ({@code users.json} becomes {@code users-shard-0.json}, {@code users-shard-1.json}, ...), so
+ * writes to different shards run in parallel and the shards load concurrently on startup.
+ *
+ * <p>Ids are handed out here, so they stay unique across shards. Usernames and emails are unique
+ * across shards through shared indexes. A save reserves its keys there and frees those of the
+ * user it replaces on the writer thread of the user's shard, so the user read as the one being
+ * replaced cannot change in between.
+ *
+ * <p>If no shard file exists yet, an existing single data file is split into the shards on
+ * startup and renamed to {@code <data-file>.migrated}.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "userapi.storage", name = "engine", havingValue = "sharded")
+public class ShardedUserStore implements UserStore {
+
+    private final StorageProperties properties;
+    private final int shardCount;
+    private UserRepository[] shards;
+
+    // username and email key -> id of its owner across all shards; a save reserves them here first
+    private final Map<String, Long> idsByUsername = new ConcurrentHashMap<>();
+    private final Map<String, Long> idsByEmail = new ConcurrentHashMap<>();
+    private final AtomicLong idCounter = new AtomicLong(1);
+    private final UserChangeListeners listeners = new UserChangeListeners();
+
+    private volatile UsersSnapshot snapshot;
+
+    @Autowired
+    public ShardedUserStore(StorageProperties properties) {
+        this.properties = properties;
+        this.shardCount = properties.getShards();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (shardCount < 1) {
+            throw new IllegalStateException("userapi.storage.shards must be positive, got " + shardCount);
+        }
+        if (shardFilesExist(shardCount)) {
+            throw new IllegalStateException("Found " + shardFile(shardCount) + " but userapi.storage.shards is "
+                + shardCount + "; the shard count cannot be lowered");
+        }
+        File legacyFile = new File(properties.getDataFile());
+        if (legacyFile.exists() || new File(legacyFile.getPath() + ".log").exists()) {
+            if (!anyShardFilesExist()) {
+                migrate(legacyFile);
+            } else {
+                System.err.println("Ignoring " + legacyFile + ": the shard files already exist");
+            }
+        }
+        shards = new UserRepository[shardCount];
+        ExecutorService loader = Executors.newFixedThreadPool(
+            Math.min(shardCount, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<?>> loads = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                int shard = i;
+                loads.add(loader.submit(() -> loadShard(shard)));
+            }
+            for (Future<?> load : loads) {
+                load.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading user shards", e);
+        } catch (ExecutionException e) {
+            close();
+            throw new IllegalStateException("Could not load user shards: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            loader.shutdown();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (shards == null) {
+            return;
+        }
+        for (UserRepository shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+
+    private void loadShard(int index) {
+        UserRepository shard = new UserRepository(shardProperties(index));
+        // Every shard reports its changes to the listeners of this store
+        shard.addChangeListener(listeners::changed);
+        shards[index] = shard;
+        shard.init();
+        for (User user : shard.findAll()) {
+            if (shardIndex(user.getId()) != index) {
+                throw new IllegalStateException("User " + user.getId() + " in " + shardFile(index)
+                    + " belongs to another shard; userapi.storage.shards was changed");
+            }
+            if (user.getUsername() != null) {
+                idsByUsername.put(user.getUsername(), user.getId());
+            }
+            if (user.getEmail() != null) {
+                indexEmail(user);
+            }
+        }
+        idCounter.accumulateAndGet(shard.nextId(), Math::max);
+    }
+
+    /**
+     * Data written before emails were unique may share one between users. Shards load in
+     * parallel, so the lowest id rather than the first loaded keeps it for lookups by email.
+     */
+    private void indexEmail(User user) {
+        long id = user.getId();
+        idsByEmail.compute(UserStore.emailKey(user.getEmail()), (key, owner) -> {
+            if (owner == null) {
+                return id;
+            }
+            long kept = Math.min(owner, id);
+            System.err.println("User " + Math.max(owner, id) + " has the email of user " + kept
+                + ", which keeps it for lookups by email: " + user.getEmail());
+            return kept;
+        });
+    }
+
+    /**
+     * Splits the single data file of the file engine into the shard files, streaming it so the
+     * file is never held in memory twice.
+     */
+    private void migrate(File legacyFile) {
+        // Fold a write-ahead log left by the file engine into the data file first
+        UserRepository source = UserRepository.openForImport(properties);
+        idCounter.set(source.nextId());
+        source.close();
+        if (!legacyFile.exists()) {
+            return;
+        }
+        UserSnapshotFile snapshotFile = new UserSnapshotFile(UserSnapshotFile.persistenceMapper());
+        UserSnapshotFile.Writer[] writers = new UserSnapshotFile.Writer[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                writers[i] = snapshotFile.openWriter(shardFile(i), properties.getFormat());
+            }
+            snapshotFile.read(legacyFile, (user, bytesRead) -> {
+                if (user.getId() == null) {
+                    System.err.println("Skipping user without id in " + legacyFile);
+                    return;
+                }
+                writers[shardIndex(user.getId())].write(user);
+            });
+            for (UserSnapshotFile.Writer writer : writers) {
+                writer.commit(true);
+            }
+            Files.move(legacyFile.toPath(), new File(legacyFile.getPath() + ".migrated").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error migrating users into shards: " + e.getMessage(), e);
+        } finally {
+            for (UserSnapshotFile.Writer writer : writers) {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        System.err.println("Error closing shard file: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<User> findAll() {
+        List<List<User>> parts = new ArrayList<>(shardCount);
+        for (UserRepository shard : shards) {
+            parts.add(shard.findAll());
+        }
+        // Shards hand out the same list until they change, so an unchanged set of lists means
+        // the merged one is still current
+        UsersSnapshot cached = snapshot;
+        if (cached != null && cached.sameParts(parts)) {
+            return cached;
+        }
+        UsersSnapshot rebuilt = new UsersSnapshot(parts);
+        snapshot = rebuilt;
+        return rebuilt;
+    }
+
+    @Override
+    public Optional<User> findById(Long id) {
+        if (id == null) {
+            return Optional.empty();
+        }
+        return shardFor(id).findById(id);
+    }
+
+    @Override
+    public Optional<User> findByUsername(String username) {
+        if (username == null) {
+            return Optional.empty();
+        }
+        Long id = idsByUsername.get(username);
+        if (id == null) {
+            return Optional.empty();
+        }
+        // The name may be reserved by a save that has not reached its shard yet
+        return findById(id).filter(user -> username.equals(user.getUsername()));
+    }
+
+    /**
+     * Asks each shard once for its part of the ids.
+     */
+    @Override
+    public List<User> findAllById(Collection<Long> ids) {
+        Map<UserRepository, List<Long>> idsByShard = new IdentityHashMap<>();
+        for (Long id : ids) {
+            if (id != null) {
+                idsByShard.computeIfAbsent(shardFor(id), key -> new ArrayList<>()).add(id);
+            }
+        }
+        Map<Long, User> found = new HashMap<>();
+        for (Map.Entry<UserRepository, List<Long>> entry : idsByShard.entrySet()) {
+            for (User user : entry.getKey().findAllById(entry.getValue())) {
+                found.put(user.getId(), user);
+            }
+        }
+        List<User> users = new ArrayList<>(found.size());
+        for (Long id : ids) {
+            User user = id != null ? found.get(id) : null;
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Looks the usernames up in the shared username index, then the users by id.
+     */
+    @Override
+    public List<User> findAllByUsername(Collection<String> usernames) {
+        List<Long> ids = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            ids.add(username != null ? idsByUsername.get(username) : null);
+        }
+        Map<Long, User> found = new HashMap<>();
+        for (User user : findAllById(ids)) {
+            found.put(user.getId(), user);
+        }
+        List<User> users = new ArrayList<>(found.size());
+        int i = 0;
+        for (String username : usernames) {
+            Long id = ids.get(i++);
+            User user = id != null ? found.get(id) : null;
+            // The name may be reserved by a save that has not reached its shard yet
+            if (user != null && username.equals(user.getUsername())) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public Optional<User> findByEmail(String email) {
+        String key = UserStore.emailKey(email);
+        Long id = key != null ? idsByEmail.get(key) : null;
+        if (id == null) {
+            return Optional.empty();
+        }
+        // The email may be reserved by a save that has not reached its shard yet
+        return findById(id).filter(user -> key.equals(UserStore.emailKey(user.getEmail())));
+    }
+
+    /**
+     * Takes the best {@code limit} matches of every shard and keeps the best of those.
+     */
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        List<User> found = new ArrayList<>();
+        for (UserRepository shard : shards) {
+            found.addAll(shard.searchByPrefix(prefix, limit));
+        }
+        return UserSearchIndex.mergeByPrefix(found, prefix, limit);
+    }
+
+    @Override
+    public List<User> searchBySimilarUsername(String username, int maxDistance, int limit) {
+        List<User> found = new ArrayList<>();
+        for (UserRepository shard : shards) {
+            found.addAll(shard.searchBySimilarUsername(username, maxDistance, limit));
+        }
+        return UserSearchIndex.mergeBySimilarUsername(found, username, limit);
+    }
+
+    @Override
+    public List<User> searchBySubstring(String text, long afterId, int limit) {
+        List<User> found = new ArrayList<>();
+        for (UserRepository shard : shards) {
+            found.addAll(shard.searchBySubstring(text, afterId, limit));
+        }
+        return UserSearchIndex.mergeById(found, limit);
+    }
+
+    @Override
+    public List<User> findAll(UserFilter filter, long afterId, int limit) {
+        List<User> found = new ArrayList<>();
+        for (UserRepository shard : shards) {
+            found.addAll(shard.findAll(filter, afterId, limit));
+        }
+        return UserSearchIndex.mergeById(found, limit);
+    }
+
+    @Override
+    public User save(User user) {
+        boolean created = assignId(user);
+        UserRepository shard = shardFor(user.getId());
+        try {
+            return shard.executeOnWriter(() -> store(shard, user));
+        } catch (RuntimeException e) {
+            // Unless the user was stored and only its write to disk failed
+            if (created && !shard.findById(user.getId()).isPresent()) {
+                user.setId(null);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Hands each shard its part of the batch as one mutation, so every shard commits its part
+     * with one write. A username or email that an earlier user of the batch takes fails the later
+     * one, whichever shard either goes to.
+     */
+    @Override
+    public List<RuntimeException> saveBatch(List<User> users) {
+        RuntimeException[] failures = new RuntimeException[users.size()];
+        boolean[] created = new boolean[users.size()];
+        Map<String, Long> batchUsernames = new HashMap<>();
+        Map<String, Long> batchEmails = new HashMap<>();
+        Map<UserRepository, List<Integer>> positionsByShard = new IdentityHashMap<>();
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            created[i] = assignId(user);
+            try {
+                reserve(batchUsernames, user.getUsername(), user.getId(), "username", user.getUsername());
+                reserve(batchEmails, UserStore.emailKey(user.getEmail()), user.getId(), "email", user.getEmail());
+            } catch (DuplicateUserException e) {
+                failures[i] = e;
+                continue;
+            }
+            positionsByShard.computeIfAbsent(shardFor(user.getId()), key -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<UserRepository, List<Integer>> entry : positionsByShard.entrySet()) {
+            UserRepository shard = entry.getKey();
+            shard.executeOnWriter(() -> {
+                for (int position : entry.getValue()) {
+                    try {
+                        store(shard, users.get(position));
+                    } catch (RuntimeException e) {
+                        failures[position] = e;
+                    }
+                }
+                return null;
+            });
+        }
+        for (int i = 0; i < users.size(); i++) {
+            if (failures[i] != null && created[i]) {
+                users.get(i).setId(null);
+            }
+        }
+        return Arrays.asList(failures);
+    }
+
+    private boolean assignId(User user) {
+        if (user.getId() == null) {
+            user.setId(idCounter.getAndIncrement());
+            return true;
+        }
+        idCounter.accumulateAndGet(user.getId() + 1, Math::max);
+        return false;
+    }
+
+    /**
+     * Claims the user's username and email, saves it to the shard and frees the keys of the user
+     * it replaced. Runs on the shard's writer thread, so no other save of the user can run in
+     * between.
+     *
+     * @throws DuplicateUserException if another user holds either key; nothing stays claimed then
+     */
+    private User store(UserRepository shard, User user) {
+        Long id = user.getId();
+        String username = user.getUsername();
+        String emailKey = UserStore.emailKey(user.getEmail());
+        Optional<User> previous = shard.findById(id);
+        // A user loaded with an email that another user keeps may still be saved with it
+        boolean keepsEmail = emailKey != null
+            && emailKey.equals(previous.map(User::getEmail).map(UserStore::emailKey).orElse(null));
+        boolean usernameReserved = false;
+        boolean emailReserved = false;
+        try {
+            usernameReserved = reserve(idsByUsername, username, id, "username", username);
+            emailReserved = !keepsEmail && reserve(idsByEmail, emailKey, id, "email", user.getEmail());
+            shard.save(user);
+        } catch (RuntimeException e) {
+            if (usernameReserved) {
+                idsByUsername.remove(username, id);
+            }
+            if (emailReserved) {
+                idsByEmail.remove(emailKey, id);
+            }
+            throw e;
+        }
+        released(previous, user);
+        return user;
+    }
+
+    /**
+     * Frees the username and email the user had before it was saved, if they changed.
+     */
+    private void released(Optional<User> previous, User user) {
+        Long id = user.getId();
+        String previousUsername = previous.map(User::getUsername).orElse(null);
+        if (previousUsername != null && !previousUsername.equals(user.getUsername())) {
+            idsByUsername.remove(previousUsername, id);
+        }
+        String previousEmailKey = previous.map(User::getEmail).map(UserStore::emailKey).orElse(null);
+        if (previousEmailKey != null && !previousEmailKey.equals(UserStore.emailKey(user.getEmail()))) {
+            idsByEmail.remove(previousEmailKey, id);
+        }
+    }
+
+    /**
+     * Claims {@code key} for the user with {@code id}, unless another user holds it.
+     *
+     * @return whether the key was claimed now, rather than already held by this user
+     */
+    private static boolean reserve(Map<String, Long> ids, String key, Long id, String field, String value) {
+        if (key == null) {
+            return false;
+        }
+        Long owner = ids.putIfAbsent(key, id);
+        if (owner != null && !owner.equals(id)) {
+            throw new DuplicateUserException(field, value);
+        }
+        return owner == null;
+    }
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public boolean deleteById(Long id) {
+        if (id == null) {
+            return false;
+        }
+        UserRepository shard = shardFor(id);
+        return shard.executeOnWriter(() -> {
+            Optional<User> existing = shard.findById(id);
+            if (!shard.deleteById(id)) {
+                return false;
+            }
+            existing.map(User::getUsername).ifPresent(username -> idsByUsername.remove(username, id));
+            existing.map(User::getEmail).ifPresent(email -> idsByEmail.remove(UserStore.emailKey(email), id));
+            return true;
+        });
+    }
+
+    int shardIndex(long id) {
+        // Spread the bits so that ids which share a stride still land on different shards
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(hash ^ (hash >>> 32), (long) shardCount);
+    }
+
+    private UserRepository shardFor(long id) {
+        return shards[shardIndex(id)];
+    }
+
+    /**
+     * Data file of one shard: the index is added to the configured file name before its
+     * extension.
+     */
+    File shardFile(int index) {
+        String dataFile = properties.getDataFile();
+        String suffix = "-shard-" + index;
+        int dot = dataFile.lastIndexOf('.');
+        int slash = Math.max(dataFile.lastIndexOf('/'), dataFile.lastIndexOf(File.separatorChar));
+        return new File(dot > slash
+            ? dataFile.substring(0, dot) + suffix + dataFile.substring(dot)
+            : dataFile + suffix);
+    }
+
+    private boolean anyShardFilesExist() {
+        for (int i = 0; i < shardCount; i++) {
+            if (shardFilesExist(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean shardFilesExist(int index) {
+        String path = shardFile(index).getPath();
+        return new File(path).exists() || new File(path + ".log").exists() || new File(path + ".log.sealed").exists();
+    }
+
+    private StorageProperties shardProperties(int index) {
+        StorageProperties shard = new StorageProperties();
+        shard.setDataFile(shardFile(index).getPath());
+        shard.setFormat(properties.getFormat());
+        shard.setRecords(properties.getRecords());
+        shard.setPersistence(properties.getPersistence());
+        shard.setDurability(properties.getDurability());
+        shard.setGroupCommitWindow(properties.getGroupCommitWindow());
+        shard.setWriterQueueCapacity(properties.getWriterQueueCapacity());
+        shard.getCompaction().setSnapshotInterval(properties.getCompaction().getSnapshotInterval());
+        shard.getCompaction().setMaxLogSize(properties.getCompaction().getMaxLogSize());
+        shard.getCompaction().setMaxLogRecords(properties.getCompaction().getMaxLogRecords());
+        return shard;
+    }
+
+    /**
+     * Read-only view of the shards' lists merged in id order. Only the position of each user in
+     * its shard's list is kept, so the users are not copied.
+     */
+    private static final class UsersSnapshot extends AbstractList<User> {
+        private final List<List<User>> parts;
+        // Shard in the high half, index in its list in the low half, in id order
+        private final long[] positions;
+
+        private UsersSnapshot(List<List<User>> parts) {
+            this.parts = parts;
+            int size = 0;
+            for (List<User> part : parts) {
+                size += part.size();
+            }
+            this.positions = new long[size];
+            // Each shard lists its users in id order; take the lowest head until all are used
+            int[] next = new int[parts.size()];
+            long[] headIds = new long[parts.size()];
+            for (int i = 0; i < parts.size(); i++) {
+                headIds[i] = headId(parts.get(i), 0);
+            }
+            for (int n = 0; n < size; n++) {
+                int lowest = 0;
+                for (int i = 1; i < headIds.length; i++) {
+                    if (headIds[i] < headIds[lowest]) {
+                        lowest = i;
+                    }
+                }
+                positions[n] = ((long) lowest << 32) | next[lowest];
+                headIds[lowest] = headId(parts.get(lowest), ++next[lowest]);
+            }
+        }
+
+        private static long headId(List<User> part, int index) {
+            return index < part.size() ? part.get(index).getId() : Long.MAX_VALUE;
+        }
+
+        private boolean sameParts(List<List<User>> current) {
+            for (int i = 0; i < parts.size(); i++) {
+                if (parts.get(i) != current.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public User get(int index) {
+            long position = positions[index];
+            return parts.get((int) (position >>> 32)).get((int) position);
+        }
+
+        @Override
+        public int size() {
+            return positions.length;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.example.userapi.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Inverted index from every three-character sequence of a text to the ids of the texts that
+ * contain it. Any text containing a query contains all of the query's trigrams, so intersecting
+ * their postings yields every match without reading the texts; the owner still checks the
+ * candidates, as having all trigrams does not make the query a substring.
+ *
+ * <p>Postings are ascending ids in blocks of up to {@value #MAX_BLOCK} ids, each stored as the
+ * varint-encoded gaps between them. Dense ids, the common case, take about a byte each. Blocks
+ * are immutable and kept in a sorted map by first id, so a change rewrites one block and an
+ * intersection skips to the block holding an id in O(log n) without decoding those before it.
+ *
+ * <p>Rewriting a block per id would make filling the index with all users at startup cost
+ * O(users x trigrams x block size). Between {@link #beginLoad()} and {@link #endLoad()}, ids of
+ * added texts are collected per trigram instead. Ids that come in ascending order, as they do
+ * from a data file, are encoded into whole blocks every {@value #MAX_BLOCK} ids. The rest are
+ * sorted and merged into their postings once, at the end.
+ *
+ * <p>Changes must come from one thread at a time, while any number of threads search.
+ */
+class TrigramIndex {
+
+    private static final int MAX_BLOCK = 256;
+
+    private final Map<Long, Postings> postings = new ConcurrentHashMap<>();
+    // Trigram -> ids added since beginLoad() and not yet in its postings; null when not loading
+    private Map<Long, PendingIds> loading;
+
+    /**
+     * Files {@code id} under the trigrams of {@code texts} that are not also in {@code previous},
+     * and removes it from those only in {@code previous}. Either may be empty.
+     */
+    void update(long id, List<String> previous, List<String> texts) {
+        if (loading != null) {
+            if (previous.isEmpty()) {
+                for (long trigram : trigrams(texts)) {
+                    loading.computeIfAbsent(trigram, PendingIds::new).add(id);
+                }
+                return;
+            }
+            // Changes an indexed text, so what was collected has to be in place first
+            endLoad();
+        }
+        long[] removed = trigrams(previous);
+        long[] added = trigrams(texts);
+        for (long trigram : removed) {
+            if (Arrays.binarySearch(added, trigram) < 0) {
+                Postings list = postings.get(trigram);
+                if (list != null && list.remove(id) && list.size == 0) {
+                    postings.remove(trigram);
+                }
+            }
+        }
+        for (long trigram : added) {
+            if (Arrays.binarySearch(removed, trigram) < 0) {
+                postings.computeIfAbsent(trigram, key -> new Postings()).add(id);
+            }
+        }
+    }
+
+    void clear() {
+        postings.clear();
+        if (loading != null) {
+            loading.clear();
+        }
+    }
+
+    /**
+     * Starts collecting the ids of added texts rather than filing each one as it comes. Searches
+     * do not find them until {@link #endLoad()}. A change to a text already indexed ends the
+     * load early.
+     */
+    void beginLoad() {
+        if (loading == null) {
+            loading = new HashMap<>();
+        }
+    }
+
+    /**
+     * Files the ids collected since {@link #beginLoad()}.
+     */
+    void endLoad() {
+        if (loading == null) {
+            return;
+        }
+        Map<Long, PendingIds> collected = loading;
+        loading = null;
+        collected.values().forEach(PendingIds::flush);
+    }
+
+    /**
+     * Ids above {@code after} filed under every trigram of {@code query}, ascending; at most
+     * {@code limit}. The query must have at least three characters.
+     */
+    long[] candidates(String query, long after, int limit) {
+        long[] trigrams = trigrams(List.of(query));
+        if (trigrams.length == 0) {
+            throw new IllegalArgumentException("Query must have at least 3 characters");
+        }
+        List<Postings> lists = new ArrayList<>(trigrams.length);
+        for (long trigram : trigrams) {
+            Postings list = postings.get(trigram);
+            if (list == null) {
+                return new long[0];
+            }
+            lists.add(list);
+        }
+        // Led by the shortest list, whose ids are looked up in the others
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        Cursor[] cursors = new Cursor[lists.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = new Cursor(lists.get(i));
+        }
+        long[] ids = new long[limit];
+        int count = 0;
+        long id = cursors[0].advance(after + 1);
+        while (id >= 0 && count < limit) {
+            long candidate = id;
+            for (int i = 1; i < cursors.length && candidate == id; i++) {
+                candidate = cursors[i].advance(id);
+            }
+            if (candidate < 0) {
+                break;
+            }
+            if (candidate == id) {
+                ids[count++] = id;
+                id = cursors[0].advance(id + 1);
+            } else {
+                id = cursors[0].advance(candidate);
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * The distinct trigrams of the texts, sorted, each packed into the low 48 bits of a long.
+     */
+    private static long[] trigrams(List<String> texts) {
+        int total = 0;
+        for (String text : texts) {
+            total += Math.max(0, text.length() - 2);
+        }
+        long[] trigrams = new long[total];
+        int count = 0;
+        for (String text : texts) {
+            for (int i = 0; i + 2 < text.length(); i++) {
+                trigrams[count++] = (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+            }
+        }
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || trigrams[i] != trigrams[distinct - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+
+    /**
+     * Sorted ids of one trigram.
+     */
+    private static final class Postings {
+        private final ConcurrentSkipListMap<Long, Block> blocks = new ConcurrentSkipListMap<>();
+        private volatile int size;
+
+        /**
+         * Adds ascending, distinct ids that all come after the last id of the list, as whole
+         * blocks without decoding any block already there.
+         */
+        private void append(long[] ids, int from, int to) {
+            for (int start = from; start < to; start += MAX_BLOCK) {
+                int end = Math.min(to, start + MAX_BLOCK);
+                blocks.put(ids[start], Block.encode(ids, start, end));
+            }
+            size += to - from;
+        }
+
+        private long last() {
+            Map.Entry<Long, Block> entry = blocks.lastEntry();
+            return entry != null ? entry.getValue().last : 0;
+        }
+
+        /**
+         * The ids of this list and the ascending, distinct {@code ids}, as a new list.
+         */
+        private Postings merge(long[] ids, int count) {
+            long[] merged = new long[size + count];
+            int length = 0;
+            int next = 0;
+            for (Block block : blocks.values()) {
+                for (long id : block.decode()) {
+                    while (next < count && ids[next] < id) {
+                        merged[length++] = ids[next++];
+                    }
+                    if (next < count && ids[next] == id) {
+                        next++;
+                    }
+                    merged[length++] = id;
+                }
+            }
+            while (next < count) {
+                merged[length++] = ids[next++];
+            }
+            Postings list = new Postings();
+            list.append(merged, 0, length);
+            return list;
+        }
+
+        private void add(long id) {
+            Map.Entry<Long, Block> entry = blocks.floorEntry(id);
+            if (entry == null) {
+                entry = blocks.firstEntry();
+            }
+            if (entry == null) {
+                blocks.put(id, Block.encode(new long[] {id}, 0, 1));
+                size++;
+                return;
+            }
+            long[] ids = entry.getValue().decode();
+            int at = Arrays.binarySearch(ids, id);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            long[] grown = new long[ids.length + 1];
+            System.arraycopy(ids, 0, grown, 0, at);
+            grown[at] = id;
+            System.arraycopy(ids, at, grown, at + 1, ids.length - at);
+            if (grown.length > MAX_BLOCK) {
+                int half = grown.length / 2;
+                blocks.put(grown[half], Block.encode(grown, half, grown.length));
+                replace(entry.getKey(), Block.encode(grown, 0, half));
+            } else {
+                replace(entry.getKey(), Block.encode(grown, 0, grown.length));
+            }
+            size++;
+        }
+
+        private boolean remove(long id) {
+            Map.Entry<Long, Block> entry = blocks.floorEntry(id);
+            if (entry == null) {
+                return false;
+            }
+            long[] ids = entry.getValue().decode();
+            int at = Arrays.binarySearch(ids, id);
+            if (at < 0) {
+                return false;
+            }
+            if (ids.length == 1) {
+                blocks.remove(entry.getKey());
+            } else {
+                long[] shrunk = new long[ids.length - 1];
+                System.arraycopy(ids, 0, shrunk, 0, at);
+                System.arraycopy(ids, at + 1, shrunk, at, shrunk.length - at);
+                replace(entry.getKey(), Block.encode(shrunk, 0, shrunk.length));
+            }
+            size--;
+            return true;
+        }
+
+        /**
+         * Swaps in the block replacing the one at {@code key}. A new first id gets its own entry
+         * before the old one goes, so readers may briefly see ids twice but never miss one.
+         */
+        private void replace(long key, Block block) {
+            blocks.put(block.first, block);
+            if (block.first != key) {
+                blocks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Ids of one trigram collected while loading. While they keep coming after the last id of
+     * the postings, each full block of them is appended as it fills up; once one does not, the
+     * rest are kept and merged by {@link #flush()}.
+     */
+    private final class PendingIds {
+        private final long trigram;
+        private long[] ids = new long[8];
+        private int count;
+        private boolean appending = true;
+
+        private PendingIds(long trigram) {
+            this.trigram = trigram;
+        }
+
+        private void add(long id) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+            if (appending && count == MAX_BLOCK) {
+                sort();
+                Postings list = postings.computeIfAbsent(trigram, key -> new Postings());
+                if (ids[0] > list.last()) {
+                    list.append(ids, 0, count);
+                    count = 0;
+                } else {
+                    appending = false;
+                }
+            }
+        }
+
+        private void flush() {
+            if (count == 0) {
+                return;
+            }
+            sort();
+            Postings list = postings.computeIfAbsent(trigram, key -> new Postings());
+            if (ids[0] > list.last()) {
+                list.append(ids, 0, count);
+            } else {
+                // Swapped in whole, so searches see either list complete
+                postings.put(trigram, list.merge(ids, count));
+            }
+        }
+
+        // Sorts the ids and drops repeated ones
+        private void sort() {
+            Arrays.sort(ids, 0, count);
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                    ids[distinct++] = ids[i];
+                }
+            }
+            count = distinct;
+        }
+    }
+
+    private static final class Block {
+        private final long first;
+        private final long last;
+        private final int count;
+        private final byte[] gaps;
+
+        private Block(long first, long last, int count, byte[] gaps) {
+            this.first = first;
+            this.last = last;
+            this.count = count;
+            this.gaps = gaps;
+        }
+
+        private static Block encode(long[] ids, int from, int to) {
+            byte[] buffer = new byte[(to - from) * 10];
+            int length = 0;
+            for (int i = from + 1; i < to; i++) {
+                long gap = ids[i] - ids[i - 1];
+                while ((gap & ~0x7FL) != 0) {
+                    buffer[length++] = (byte) (gap & 0x7F | 0x80);
+                    gap >>>= 7;
+                }
+                buffer[length++] = (byte) gap;
+            }
+            return new Block(ids[from], ids[to - 1], to - from, Arrays.copyOf(buffer, length));
+        }
+
+        private long[] decode() {
+            long[] ids = new long[count];
+            ids[0] = first;
+            int position = 0;
+            for (int i = 1; i < count; i++) {
+                long gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = gaps[position++];
+                    gap |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                ids[i] = ids[i - 1] + gap;
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Reads a postings list forward, decoding one block at a time.
+     */
+    private static final class Cursor {
+        private final Postings list;
+        private Block block;
+        private long[] ids;
+        private int position;
+
+        private Cursor(Postings list) {
+            this.list = list;
+        }
+
+        /**
+         * The first id at or above {@code target}, or -1 if there is none. Targets never
+         * decrease.
+         */
+        private long advance(long target) {
+            if (block == null || block.last < target) {
+                Map.Entry<Long, Block> entry = list.blocks.floorEntry(target);
+                if (entry == null || entry.getValue().last < target) {
+                    entry = list.blocks.higherEntry(target);
+                }
+                if (entry == null) {
+                    return -1;
+                }
+                block = entry.getValue();
+                ids = block.decode();
+                position = 0;
+            }
+            while (ids[position] < target) {
+                position++;
+            }
+            return ids[position];
+        }
+    }
+}
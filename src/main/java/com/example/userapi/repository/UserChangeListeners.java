@@ -0,0 +1,31 @@
+package com.example.userapi.repository;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The {@link UserStore.ChangeListener}s of one store. Listeners are added at startup and called on
+ * every change, so the list is copied on add and read without locking.
+ */
+final class UserChangeListeners {
+
+    private final List<UserStore.ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    void add(UserStore.ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Tells every listener that the user changed. A failing listener is reported and does not
+     * fail the change, which is already stored.
+     */
+    void changed(long id) {
+        for (UserStore.ChangeListener listener : listeners) {
+            try {
+                listener.userChanged(id);
+            } catch (RuntimeException e) {
+                System.err.println("User change listener failed for user " + id + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties.FileFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Offline converter between the JSON and binary data file formats. Stop the application first;
+ * the input is streamed, so files of any size convert in constant memory.
+ *
+ * <pre>
+ * java -cp userapi.jar -Dloader.main=com.example.userapi.repository.UserDataFileConverter \
+ *     org.springframework.boot.loader.PropertiesLauncher users.json users.bin [binary|json]
+ * </pre>
+ *
+ * Without a target format the file is converted to the format it is not in.
+ */
+public final class UserDataFileConverter {
+
+    private UserDataFileConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: UserDataFileConverter <input> <output> [json|binary]");
+            System.exit(2);
+        }
+        File input = new File(args[0]);
+        File output = new File(args[1]);
+        if (!input.isFile()) {
+            System.err.println("Input file not found: " + input);
+            System.exit(1);
+        }
+        FileFormat from = UserSnapshotFile.detect(input);
+        FileFormat to = args.length == 3
+            ? FileFormat.valueOf(args[2].toUpperCase(Locale.ROOT))
+            : (from == FileFormat.JSON ? FileFormat.BINARY : FileFormat.JSON);
+
+        long start = System.nanoTime();
+        long count = convert(input, output, to);
+        System.out.printf("Converted %d users from %s (%d bytes) to %s (%d bytes) in %d ms%n",
+            count, from, input.length(), to, output.length(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Writes every user of {@code input} to {@code output} in the given format.
+     *
+     * @return the number of users converted
+     */
+    static long convert(File input, File output, FileFormat format) throws IOException {
+        UserSnapshotFile snapshotFile = new UserSnapshotFile(UserSnapshotFile.persistenceMapper());
+        try (UserSnapshotFile.Writer writer = snapshotFile.openWriter(output, format)) {
+            long count = snapshotFile.read(input, (user, bytesRead) -> writer.write(user));
+            writer.commit(true);
+            return count;
+        }
+    }
+}
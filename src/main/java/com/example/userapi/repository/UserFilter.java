@@ -0,0 +1,60 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+
+/**
+ * Conditions a listing of users must meet; a null condition matches every user. Age bounds are
+ * inclusive, and users without an age match only when neither bound is set.
+ */
+public final class UserFilter {
+
+    private final Role role;
+    private final Boolean enabled;
+    private final Integer minAge;
+    private final Integer maxAge;
+
+    public UserFilter(Role role, Boolean enabled, Integer minAge, Integer maxAge) {
+        this.role = role;
+        this.enabled = enabled;
+        this.minAge = minAge;
+        this.maxAge = maxAge;
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    public Integer getMinAge() {
+        return minAge;
+    }
+
+    public Integer getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Whether there are no conditions, so every user matches.
+     */
+    public boolean isEmpty() {
+        return role == null && enabled == null && minAge == null && maxAge == null;
+    }
+
+    public boolean matches(User user) {
+        if (role != null && user.getRole() != role) {
+            return false;
+        }
+        if (enabled != null && user.isEnabled() != enabled) {
+            return false;
+        }
+        if (minAge == null && maxAge == null) {
+            return true;
+        }
+        Integer age = user.getAge();
+        return age != null && (minAge == null || age >= minAge) && (maxAge == null || age <= maxAge);
+    }
+}
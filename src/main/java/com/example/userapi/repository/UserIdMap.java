@@ -0,0 +1,290 @@
+package com.example.userapi.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open-addressing hash table from user id to {@link CompactUser}. Ids are kept as primitive
+ * {@code long}s next to the entries, so lookups never box a {@code Long} and a probe compares
+ * ids without dereferencing the entries it passes.
+ *
+ * <p>Slots are probed linearly from a hash of the id; removed entries leave a
+ * tombstone so probes for other ids keep going past them. When the table fills up, a table of
+ * twice the size (or the same size, if most of the load is tombstones) is installed and the old
+ * one is moved over a few slots per later change, so no single change pays for a full rehash.
+ *
+ * <p>Like {@link UserIndex}, any number of threads may read while changes come from one thread
+ * at a time. Slots are read and written with volatile semantics. During a resize readers look
+ * in the old table first and then in the new one, and a change is applied to the new table
+ * before the old one, so a reader never misses an entry that was present throughout its
+ * lookup.
+ */
+class UserIdMap {
+
+    private static final int MIN_CAPACITY = 16;
+    // Used slots, live and tombstones, per capacity that triggers a resize
+    private static final double MAX_LOAD = 0.5;
+    // Old slots moved to the new table with every change during a resize. The new table
+    // cannot reach its own limit before the old one is drained, as long as this is at
+    // least 1 / MAX_LOAD.
+    private static final int MIGRATE_PER_CHANGE = 8;
+
+    private static final Object TOMBSTONE = new Object();
+
+    private volatile Tables tables = new Tables(new Table(MIN_CAPACITY), null);
+    private volatile int size;
+
+    // Next slot of the old table to move; only touched by the writer
+    private int migrated;
+
+    CompactUser get(long id) {
+        Tables current = tables;
+        if (current.old != null) {
+            CompactUser user = current.old.get(id);
+            if (user != null) {
+                return user;
+            }
+        }
+        return current.table.get(id);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Inserts or replaces the entry under its id.
+     *
+     * @return the entry it replaced, or null
+     */
+    CompactUser put(CompactUser user) {
+        Tables current = tables;
+        CompactUser previous = current.table.put(user);
+        if (current.old != null) {
+            // Replaced rather than removed: a reader that started before the resize still
+            // takes the old table for the current one
+            CompactUser moved = current.old.replace(user);
+            if (previous == null) {
+                previous = moved;
+            }
+        }
+        if (previous == null) {
+            size++;
+        }
+        afterChange(current);
+        return previous;
+    }
+
+    /**
+     * @return the removed entry, or null if there was none with this id
+     */
+    CompactUser remove(long id) {
+        Tables current = tables;
+        CompactUser removed = current.table.remove(id);
+        if (current.old != null) {
+            CompactUser moved = current.old.remove(id);
+            if (removed == null) {
+                removed = moved;
+            }
+        }
+        if (removed != null) {
+            size--;
+            afterChange(current);
+        }
+        return removed;
+    }
+
+    void clear() {
+        tables = new Tables(new Table(MIN_CAPACITY), null);
+        migrated = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns every entry. Changes made while this runs may or may not be included.
+     */
+    List<CompactUser> values() {
+        Tables current = tables;
+        List<CompactUser> users = new ArrayList<>(size);
+        current.table.forEach(users, null);
+        if (current.old != null) {
+            // Entries already moved are in both tables; they were taken from the new one
+            current.old.forEach(users, current.table);
+        }
+        return users;
+    }
+
+    long maxId() {
+        long max = 0;
+        for (CompactUser user : values()) {
+            max = Math.max(max, user.id());
+        }
+        return max;
+    }
+
+    private void afterChange(Tables current) {
+        if (current.old != null) {
+            migrate(current, MIGRATE_PER_CHANGE);
+            current = tables;
+        }
+        if (current.old == null && current.table.used > current.table.capacity() * MAX_LOAD) {
+            // Mostly tombstones: rebuilding at the same size is enough
+            int capacity = size > current.table.capacity() * MAX_LOAD / 2
+                ? current.table.capacity() * 2
+                : current.table.capacity();
+            tables = new Tables(new Table(capacity), current.table);
+            migrated = 0;
+        }
+    }
+
+    private void migrate(Tables current, int slots) {
+        Table old = current.old;
+        int end = Math.min(old.capacity(), migrated + slots);
+        for (int i = migrated; i < end; i++) {
+            Object slot = old.slots.get(i);
+            if (slot != null && slot != TOMBSTONE) {
+                current.table.put((CompactUser) slot);
+            }
+        }
+        migrated = end;
+        if (end == old.capacity()) {
+            tables = new Tables(current.table, null);
+        }
+    }
+
+    private static int hash(long id, int mask) {
+        // Ids are handed out sequentially, so they fill the table without collisions as long as
+        // the low bits survive; the high bits are folded in for ids that were set explicitly
+        int h = (int) (id ^ (id >>> 32));
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static final class Tables {
+        private final Table table;
+        // The table being drained into table during a resize, otherwise null
+        private final Table old;
+
+        private Tables(Table table, Table old) {
+            this.table = table;
+            this.old = old;
+        }
+    }
+
+    private static final class Table {
+        private final AtomicReferenceArray<Object> slots;
+        // Id of the entry last stored in each slot, written before the slot itself
+        private final long[] ids;
+        private final int mask;
+        // Slots holding an entry or a tombstone; only touched by the writer
+        private int used;
+
+        private Table(int capacity) {
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.ids = new long[capacity];
+            this.mask = capacity - 1;
+        }
+
+        private int capacity() {
+            return mask + 1;
+        }
+
+        private CompactUser get(long id) {
+            int i = hash(id, mask);
+            while (true) {
+                Object slot = slots.get(i);
+                if (slot == null) {
+                    return null;
+                }
+                if (slot != TOMBSTONE && ids[i] == id) {
+                    // The id may belong to a later entry if the writer reused the slot after
+                    // the read above. Entries are never stored twice, so an unchanged slot
+                    // means the id is the entry's; a changed one is read again.
+                    if (slots.get(i) == slot) {
+                        return (CompactUser) slot;
+                    }
+                    continue;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private CompactUser put(CompactUser user) {
+            long id = user.id();
+            int free = -1;
+            for (int i = hash(id, mask); ; i = (i + 1) & mask) {
+                Object slot = slots.get(i);
+                if (slot == null) {
+                    if (free < 0) {
+                        free = i;
+                        used++;
+                    }
+                    ids[free] = id;
+                    slots.set(free, user);
+                    return null;
+                }
+                if (slot == TOMBSTONE) {
+                    if (free < 0) {
+                        free = i;
+                    }
+                } else if (ids[i] == id) {
+                    slots.set(i, user);
+                    return (CompactUser) slot;
+                }
+            }
+        }
+
+        /**
+         * Swaps in {@code user} if its id is present; never adds it.
+         */
+        private CompactUser replace(CompactUser user) {
+            int i = find(user.id());
+            if (i < 0) {
+                return null;
+            }
+            CompactUser previous = (CompactUser) slots.get(i);
+            slots.set(i, user);
+            return previous;
+        }
+
+        private CompactUser remove(long id) {
+            int i = find(id);
+            if (i < 0) {
+                return null;
+            }
+            CompactUser removed = (CompactUser) slots.get(i);
+            slots.set(i, TOMBSTONE);
+            return removed;
+        }
+
+        /**
+         * For the writer only.
+         *
+         * @return the slot holding the entry with this id, or -1
+         */
+        private int find(long id) {
+            for (int i = hash(id, mask); ; i = (i + 1) & mask) {
+                Object slot = slots.get(i);
+                if (slot == null) {
+                    return -1;
+                }
+                if (slot != TOMBSTONE && ids[i] == id) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * Adds every entry to {@code users}, skipping ids that {@code except} holds.
+         */
+        private void forEach(List<CompactUser> users, Table except) {
+            for (int i = 0; i < slots.length(); i++) {
+                Object slot = slots.get(i);
+                if (slot != null && slot != TOMBSTONE
+                        && (except == null || except.get(((CompactUser) slot).id()) == null)) {
+                    users.add((CompactUser) slot);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.User;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Indexes of the stores that keep every user in memory, by id, by unique username and by unique
+ * email, the latter compared by {@link UserStore#emailKey(String)}.
+ *
+ * <p>Any number of threads may read. Changes must come from one thread at a time (the owning
+ * store serializes them); reads never wait for them.
+ */
+interface UserIndex {
+
+    /**
+     * Highest user id an index holds. The id sets of {@link UserSearchIndex} and the pages of
+     * {@link OffHeapUserIndex} are addressed with an int.
+     */
+    long MAX_ID = Integer.MAX_VALUE;
+
+    /**
+     * Returns an immutable snapshot of all users in id order. Until the next change every call
+     * returns the same list without copying; the first call after a change builds a new one.
+     */
+    List<User> findAll();
+
+    /**
+     * @see UserStore#findAll(UserFilter, long, int)
+     */
+    List<User> findAll(UserFilter filter, long afterId, int limit);
+
+    Optional<User> findById(Long id);
+
+    Optional<User> findByUsername(String username);
+
+    Optional<User> findByEmail(String email);
+
+    /**
+     * @see UserStore#findAllById(Collection)
+     */
+    List<User> findAllById(Collection<Long> ids);
+
+    /**
+     * @see UserStore#findAllByUsername(Collection)
+     */
+    List<User> findAllByUsername(Collection<String> usernames);
+
+    /**
+     * @see UserStore#searchByPrefix(String, int)
+     */
+    List<User> searchByPrefix(String prefix, int limit);
+
+    /**
+     * @see UserStore#searchBySimilarUsername(String, int, int)
+     */
+    List<User> searchBySimilarUsername(String username, int maxDistance, int limit);
+
+    /**
+     * @see UserStore#searchBySubstring(String, long, int)
+     */
+    List<User> searchBySubstring(String text, long afterId, int limit);
+
+    int size();
+
+    long maxId();
+
+    /**
+     * Throws if another user already has the username or the email of {@code user}. Called by
+     * the writer right before {@link #put(User)}, so nothing can claim them in between.
+     *
+     * @throws com.example.userapi.exception.DuplicateUserException naming the field that clashed
+     * @throws IllegalArgumentException if the user has an id outside 1 to {@link #MAX_ID}
+     */
+    void checkUnique(User user);
+
+    /**
+     * Inserts or replaces the user. The index keeps its own copy, so the caller may go on using
+     * {@code user}.
+     *
+     * @throws IllegalArgumentException if the id is outside 1 to {@link #MAX_ID}
+     */
+    void put(User user);
+
+    /**
+     * @return whether there was a user with this id
+     */
+    boolean remove(Long id);
+
+    void clear();
+
+    /**
+     * Starts a run of {@link #put(User)}s that fill the index on startup. The search index
+     * collects their trigrams and files them all at {@link #endLoad()}, rather than rewriting
+     * postings user by user; until then, searches by text do not find these users.
+     */
+    void beginLoad();
+
+    void endLoad();
+
+    /**
+     * @throws IllegalArgumentException if {@code id} is outside 1 to {@link #MAX_ID}
+     */
+    static void checkId(Long id) {
+        if (id != null && (id < 1 || id > MAX_ID)) {
+            throw new IllegalArgumentException("User id out of range: " + id);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of a single user: a flags byte, the id, age and role when present, then name,
+ * email, username and password as UTF-8 with a varint length prefix. Field names are not stored,
+ * so a record is a fraction of its JSON size and decodes without any text parsing.
+ *
+ * <p>Roles are stored by ordinal; new roles have to be added at the end of {@link Role}.
+ */
+final class UserRecordCodec {
+
+    private static final int HAS_ID = 1;
+    private static final int HAS_AGE = 1 << 1;
+    private static final int HAS_ROLE = 1 << 2;
+    private static final int ENABLED = 1 << 3;
+
+    private static final Role[] ROLES = Role.values();
+
+    private UserRecordCodec() {
+    }
+
+    static byte[] encode(User user) {
+        byte[] name = utf8(user.getName());
+        byte[] email = utf8(user.getEmail());
+        byte[] username = utf8(user.getUsername());
+        byte[] password = utf8(user.getPassword());
+        int flags = (user.getId() != null ? HAS_ID : 0)
+            | (user.getAge() != null ? HAS_AGE : 0)
+            | (user.getRole() != null ? HAS_ROLE : 0)
+            | (user.isEnabled() ? ENABLED : 0);
+        int size = 1
+            + ((flags & HAS_ID) != 0 ? Long.BYTES : 0)
+            + ((flags & HAS_AGE) != 0 ? Integer.BYTES : 0)
+            + ((flags & HAS_ROLE) != 0 ? 1 : 0)
+            + stringSize(name) + stringSize(email) + stringSize(username) + stringSize(password);
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) flags);
+        if ((flags & HAS_ID) != 0) {
+            buffer.putLong(user.getId());
+        }
+        if ((flags & HAS_AGE) != 0) {
+            buffer.putInt(user.getAge());
+        }
+        if ((flags & HAS_ROLE) != 0) {
+            buffer.put((byte) user.getRole().ordinal());
+        }
+        putString(buffer, name);
+        putString(buffer, email);
+        putString(buffer, username);
+        putString(buffer, password);
+        return buffer.array();
+    }
+
+    /**
+     * Reads one user starting at the buffer's position and leaves the position after it.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid record
+     */
+    static User decode(ByteBuffer buffer) {
+        try {
+            int flags = buffer.get();
+            User user = new User();
+            user.setId((flags & HAS_ID) != 0 ? buffer.getLong() : null);
+            user.setAge((flags & HAS_AGE) != 0 ? buffer.getInt() : null);
+            if ((flags & HAS_ROLE) != 0) {
+                int ordinal = buffer.get();
+                if (ordinal < 0 || ordinal >= ROLES.length) {
+                    throw new IllegalArgumentException("Unknown role ordinal " + ordinal);
+                }
+                user.setRole(ROLES[ordinal]);
+            } else {
+                user.setRole(null);
+            }
+            user.setEnabled((flags & ENABLED) != 0);
+            user.setName(getString(buffer));
+            user.setEmail(getString(buffer));
+            user.setUsername(getString(buffer));
+            user.setPassword(getString(buffer));
+            return user;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated user record", e);
+        }
+    }
+
+    /**
+     * Reads only the email and username of the record at the buffer's position, skipping the
+     * other fields.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid record
+     */
+    static Keys decodeKeys(ByteBuffer buffer) {
+        try {
+            int flags = buffer.get();
+            int skip = ((flags & HAS_ID) != 0 ? Long.BYTES : 0)
+                + ((flags & HAS_AGE) != 0 ? Integer.BYTES : 0)
+                + ((flags & HAS_ROLE) != 0 ? 1 : 0);
+            buffer.position(buffer.position() + skip);
+            skipString(buffer);
+            String email = getString(buffer);
+            return new Keys(getString(buffer), email);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Truncated user record", e);
+        }
+    }
+
+    /**
+     * The fields of a record that are unique between users.
+     */
+    static final class Keys {
+        final String username;
+        final String email;
+
+        private Keys(String username, String email) {
+            this.username = username;
+            this.email = email;
+        }
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = getVarint(buffer) - 1;
+        if (length > 0) {
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int stringSize(byte[] bytes) {
+        if (bytes == null) {
+            return 1;
+        }
+        return varintSize(bytes.length + 1) + bytes.length;
+    }
+
+    // Length is stored plus one, so 0 can mark null
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        putVarint(buffer, bytes.length + 1);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = getVarint(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated user record");
+        }
+        if (!buffer.hasArray()) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+            StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed length in user record");
+    }
+}
@@ -1,98 +1,533 @@
 package com.example.userapi.repository;
 
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.Durability;
+import com.example.userapi.config.StorageProperties.FileFormat;
+import com.example.userapi.config.StorageProperties.PersistenceMode;
+import com.example.userapi.config.StorageProperties.Records;
 import com.example.userapi.model.User;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Repository
-public class UserRepository {
-    
-    private String DATA_FILE = "users.json";
-    private final ObjectMapper objectMapper = new ObjectMapper();
+@ConditionalOnProperty(prefix = "userapi.storage", name = "engine", havingValue = "file", matchIfMissing = true)
+public class UserRepository implements UserStore {
+
+    // Byte progress is sampled every LOAD_PROGRESS_STEP users
+    private static final long LOAD_PROGRESS_STEP = 1_000;
+
+    private String DATA_FILE;
+    private final FileFormat fileFormat;
+    private final PersistenceMode persistenceMode;
+    private final Durability durability;
+    private final Duration groupCommitWindow;
+    private final int writerQueueCapacity;
+    private final StorageProperties.Compaction compaction;
+    private final ObjectMapper objectMapper = UserSnapshotFile.persistenceMapper();
+    private final UserSnapshotFile snapshotFile = new UserSnapshotFile(objectMapper);
     private final AtomicLong idCounter = new AtomicLong(1);
-    private List<User> users = new ArrayList<>();
+    private final UserChangeListeners listeners = new UserChangeListeners();
+    private final AtomicLong loadedUsers = new AtomicLong();
+    private final AtomicLong loadedBytes = new AtomicLong();
+    private volatile long loadTotalBytes;
+
+    // Only the writer thread of the pipeline changes the index, and it stores private copies
+    private final UserIndex index;
+
+    // The live log receives appends; the sealed one is a rotated log waiting to be folded
+    // into the next snapshot.
+    private UserWriteAheadLog writeAheadLog;
+    private File sealedLogFile;
+    private ScheduledExecutorService compactor;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private final Object compactionLock = new Object();
+    // Writes buffered changes in the background; not used with Durability.ALWAYS
+    private GroupCommitFlusher flusher;
+    private MutationPipeline pipeline;
+    // Writer thread only: whether the current batch changed anything
+    private boolean batchDirty;
+    // Opened by another engine to import from; init() then leaves the files as they are
+    private boolean readOnly;
+
+    public UserRepository() {
+        this(new StorageProperties());
+    }
+
+    @Autowired
+    public UserRepository(StorageProperties properties) {
+        this.DATA_FILE = properties.getDataFile();
+        this.fileFormat = properties.getFormat();
+        this.persistenceMode = properties.getPersistence();
+        this.durability = properties.getDurability();
+        this.groupCommitWindow = properties.getGroupCommitWindow();
+        this.writerQueueCapacity = properties.getWriterQueueCapacity();
+        this.compaction = properties.getCompaction();
+        this.index = properties.getRecords() == Records.OFF_HEAP ? new OffHeapUserIndex() : new HeapUserIndex();
+    }
+
+    /**
+     * Opens the data file of the file engine for other stores to import from when they start
+     * without data of their own. The files are only read: a data file in the other format is not
+     * converted, and logs left by WAL mode are replayed but neither folded in nor cut, so the
+     * file engine finds them as it left them. The caller reads the users and closes it.
+     */
+    static UserRepository openForImport(StorageProperties properties) {
+        StorageProperties source = new StorageProperties();
+        source.setDataFile(properties.getDataFile());
+        source.setFormat(properties.getFormat());
+        source.setPersistence(PersistenceMode.SNAPSHOT);
+        source.setDurability(Durability.ALWAYS);
+        UserRepository repository = new UserRepository(source);
+        repository.readOnly = true;
+        repository.init();
+        return repository;
+    }
 
     @PostConstruct
     public void init() {
-        loadUsersFromFile();
+        writeAheadLog = new UserWriteAheadLog(new File(DATA_FILE + ".log"), objectMapper);
+        sealedLogFile = new File(DATA_FILE + ".log.sealed");
+        boolean hadLog = writeAheadLog.exists() || sealedLogFile.exists();
+        long maxLoggedId;
+        index.beginLoad();
+        try {
+            loadUsersFromFile();
+            // Ids of users deleted later in the log still count, so they are never handed out twice
+            maxLoggedId = Math.max(
+                replayLog(new UserWriteAheadLog(sealedLogFile, objectMapper)),
+                replayLog(writeAheadLog));
+        } finally {
+            index.endLoad();
+        }
         // Update ID counter to avoid conflicts
-        if (!users.isEmpty()) {
-            long maxId = users.stream().mapToLong(User::getId).max().orElse(0);
-            idCounter.set(maxId + 1);
+        if (index.size() > 0 || maxLoggedId > 0) {
+            idCounter.set(Math.max(index.maxId(), maxLoggedId) + 1);
+        }
+        try {
+            if (persistenceMode == PersistenceMode.WAL) {
+                writeAheadLog.open();
+            } else if (hadLog && !readOnly) {
+                // Fold logs left behind by WAL mode into the snapshot, which is all this mode reads
+                saveUsersToFile();
+                writeAheadLog.delete();
+                Files.deleteIfExists(sealedLogFile.toPath());
+            }
+        } catch (IOException e) {
+            System.err.println("Error opening user log: " + e.getMessage());
+        }
+        if (durability != Durability.ALWAYS) {
+            boolean sync = durability == Durability.GROUP_COMMIT;
+            flusher = new GroupCommitFlusher("user-store-flusher", groupCommitWindow,
+                persistenceMode == PersistenceMode.WAL
+                    ? () -> writeAheadLog.flush(sync)
+                    : () -> writeSnapshot(findAll(), sync));
+        }
+        pipeline = new MutationPipeline("user-store-writer", writerQueueCapacity,
+            this::commitBatch, this::awaitDurable);
+        // Compactions run their rotation on the writer, so they start once it is up
+        if (persistenceMode == PersistenceMode.WAL) {
+            startCompactor();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        // The compactor hands its log rotation to the writer, so it stops first
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (flusher != null) {
+            flusher.close();
+        }
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.close();
+            } catch (IOException e) {
+                System.err.println("Error closing user log: " + e.getMessage());
+            }
         }
     }
 
+    @Override
     public List<User> findAll() {
-        return new ArrayList<>(users);
+        return index.findAll();
     }
 
+    @Override
     public Optional<User> findById(Long id) {
-        return users.stream()
-                .filter(user -> user.getId().equals(id))
-                .findFirst();
+        return index.findById(id);
     }
 
+    @Override
     public User save(User user) {
+        return pipeline.execute(() -> store(user));
+    }
+
+    /**
+     * Stores the whole batch in one mutation, so it is committed with one write to the log or
+     * the data file.
+     */
+    @Override
+    public List<RuntimeException> saveBatch(List<User> users) {
+        return pipeline.execute(() -> {
+            List<RuntimeException> failures = new ArrayList<>(users.size());
+            for (User user : users) {
+                try {
+                    store(user);
+                    failures.add(null);
+                } catch (RuntimeException e) {
+                    failures.add(e);
+                }
+            }
+            return failures;
+        });
+    }
+
+    private User store(User user) {
+        index.checkUnique(user);
         if (user.getId() == null) {
             // Create new user
             user.setId(idCounter.getAndIncrement());
-            users.add(user);
-        } else {
-            // Update existing user
-            Optional<User> existingUser = findById(user.getId());
-            if (existingUser.isPresent()) {
-                int index = users.indexOf(existingUser.get());
-                users.set(index, user);
-            } else {
-                users.add(user);
-            }
         }
-        saveUsersToFile();
+        User stored = new User(user);
+        persist(log -> log.appendSave(stored));
+        index.put(stored);
+        listeners.changed(stored.getId());
         return user;
     }
 
+    /**
+     * Runs the mutation on the writer thread as one change, so it sees and changes this store
+     * without any other change in between. {@link #save(User)} and {@link #deleteById(Long)}
+     * called from inside it run right away, as part of the same batch.
+     */
+    <T> T executeOnWriter(MutationPipeline.Mutation<T> mutation) {
+        return pipeline.execute(mutation);
+    }
+
+    @Override
     public boolean deleteById(Long id) {
-        boolean removed = users.removeIf(user -> user.getId().equals(id));
-        if (removed) {
-            saveUsersToFile();
+        if (id == null) {
+            return false;
         }
-        return removed;
+        return pipeline.execute(() -> {
+            if (index.findById(id).isEmpty()) {
+                return false;
+            }
+            persist(log -> log.appendDelete(id));
+            index.remove(id);
+            listeners.changed(id);
+            return true;
+        });
     }
-    
+
+    @Override
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
     public Optional<User> findByUsername(String username) {
-        return users.stream()
-            .filter(user -> username != null && username.equals(user.getUsername()))
-            .findFirst();
+        return index.findByUsername(username);
+    }
+
+    @Override
+    public Optional<User> findByEmail(String email) {
+        return index.findByEmail(email);
+    }
+
+    @Override
+    public List<User> findAllById(Collection<Long> ids) {
+        return index.findAllById(ids);
+    }
+
+    @Override
+    public List<User> findAllByUsername(Collection<String> usernames) {
+        return index.findAllByUsername(usernames);
+    }
+
+    @Override
+    public List<User> searchByPrefix(String prefix, int limit) {
+        return index.searchByPrefix(prefix, limit);
+    }
+
+    @Override
+    public List<User> searchBySimilarUsername(String username, int maxDistance, int limit) {
+        return index.searchBySimilarUsername(username, maxDistance, limit);
+    }
+
+    @Override
+    public List<User> searchBySubstring(String text, long afterId, int limit) {
+        return index.searchBySubstring(text, afterId, limit);
+    }
+
+    @Override
+    public List<User> findAll(UserFilter filter, long afterId, int limit) {
+        return index.findAll(filter, afterId, limit);
+    }
+
+    /**
+     * Id the next new user gets; above every id in the data file and the log, including those
+     * of users deleted since.
+     */
+    long nextId() {
+        return idCounter.get();
+    }
+
+    /**
+     * Number of users read from the data file so far. Grows while the file is loaded on
+     * startup, so it can be watched from another thread.
+     */
+    public long getLoadedUserCount() {
+        return loadedUsers.get();
+    }
+
+    /**
+     * Share of the data file read so far, from 0 to 1; 1 once loading is done or if there is
+     * no file.
+     */
+    public double getLoadProgress() {
+        long total = loadTotalBytes;
+        return total > 0 ? Math.min(1.0, (double) loadedBytes.get() / total) : 1.0;
     }
 
+    /**
+     * Streams the data file one user at a time straight into the indexes, so memory use is the
+     * users themselves plus one read buffer, whatever the size of the file. A file in the other
+     * format is rewritten in the configured one once it is loaded.
+     */
     private void loadUsersFromFile() {
+        index.clear();
+        loadedUsers.set(0);
+        loadedBytes.set(0);
+        File file = new File(DATA_FILE);
+        loadTotalBytes = file.length();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            snapshotFile.read(file, (user, bytesRead) -> {
+                index.put(user);
+                if (loadedUsers.incrementAndGet() % LOAD_PROGRESS_STEP == 0) {
+                    loadedBytes.set(bytesRead);
+                }
+            });
+            loadedBytes.set(loadTotalBytes);
+        } catch (IOException e) {
+            System.err.println("Error loading users from file: " + e.getMessage());
+            index.clear();
+            return;
+        }
         try {
-            File file = new File(DATA_FILE);
-            if (file.exists()) {
-                users = objectMapper.readValue(file, new TypeReference<List<User>>() {});
+            if (!readOnly && UserSnapshotFile.detect(file) != fileFormat) {
+                writeSnapshot(findAll(), true);
+            }
+        } catch (IOException e) {
+            System.err.println("Error converting users file: " + e.getMessage());
+        }
+    }
+
+    private long replayLog(UserWriteAheadLog log) {
+        AtomicLong maxId = new AtomicLong();
+        try {
+            log.replay(!readOnly, record -> {
+                maxId.accumulateAndGet(record.getId(), Math::max);
+                if (record.getOperation() == UserWriteAheadLog.Operation.SAVE) {
+                    index.put(record.getUser());
+                } else {
+                    index.remove(record.getId());
+                }
+            });
+        } catch (IOException e) {
+            // Starting without the logged changes would drop them for good at the next snapshot
+            throw new UncheckedIOException("Error replaying user log: " + e.getMessage(), e);
+        }
+        return maxId.get();
+    }
+
+    /**
+     * Hands a change to the persistence layer right before it is applied to the indexes, so a
+     * change that cannot be logged fails without being applied. Runs on the writer thread; the
+     * change reaches the disk with the rest of its batch in {@link #commitBatch()}.
+     */
+    private void persist(LogAppend append) {
+        if (persistenceMode == PersistenceMode.WAL) {
+            try {
+                append.appendTo(writeAheadLog);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error appending to user log: " + e.getMessage(), e);
+            }
+        }
+        batchDirty = true;
+        if (persistenceMode != PersistenceMode.WAL) {
+            return;
+        }
+        if (writeAheadLog.getRecordCount() >= compaction.getMaxLogRecords()
+                || writeAheadLog.getSize() >= compaction.getMaxLogSize().toBytes()) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Runs on the writer thread after each batch. Waiting for the disk happens afterwards on
+     * the caller threads in {@link #awaitDurable(long)}, while the writer moves on. A failed
+     * write fails every change of the batch, though they stay applied in memory and are written
+     * again by the next flush.
+     *
+     * @return the flusher sequence covering the batch, or 0 if it is already on disk
+     */
+    private long commitBatch() {
+        if (!batchDirty) {
+            return 0;
+        }
+        batchDirty = false;
+        if (flusher != null) {
+            return flusher.markDirty();
+        }
+        try {
+            if (persistenceMode == PersistenceMode.WAL) {
+                writeAheadLog.flush(true);
             } else {
-                users = new ArrayList<>();
+                writeSnapshot(findAll(), true);
             }
         } catch (IOException e) {
-            System.err.println("Error loading users from file: " + e.getMessage());
-            users = new ArrayList<>();
+            throw new UncheckedIOException("Error saving users to file: " + e.getMessage(), e);
+        }
+        return 0;
+    }
+
+    private void awaitDurable(long sequence) {
+        if (durability == Durability.GROUP_COMMIT && sequence > 0) {
+            flusher.awaitFlushed(sequence);
         }
     }
 
+    private void startCompactor() {
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = compaction.getSnapshotInterval().toMillis();
+        compactor.scheduleWithFixedDelay(this::compactLog, interval, interval, TimeUnit.MILLISECONDS);
+        if (sealedLogFile.exists()) {
+            // A previous run stopped between rotating the log and installing the snapshot
+            scheduleCompaction();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactor != null && compactionPending.compareAndSet(false, true)) {
+            compactor.execute(this::compactLog);
+        }
+    }
+
+    /**
+     * Folds the log into a fresh snapshot of the data file. Only the log rotation and the capture
+     * of the current users run on the writer thread; the snapshot is written while
+     * {@link #save(User)} and {@link #deleteById(Long)} keep appending to the new log.
+     *
+     * <p>On startup the sealed segment is replayed before the live log. Both only move users
+     * towards their latest state, so a crash at any point of a compaction loses nothing.
+     */
+    void compactLog() {
+        synchronized (compactionLock) {
+            compactionPending.set(false);
+            compactLogLocked();
+        }
+    }
+
+    private void compactLogLocked() {
+        List<User> users;
+        try {
+            users = pipeline.execute(this::rotateLog);
+        } catch (RuntimeException e) {
+            // Shares a batch whose write failed; the next compaction picks the sealed log up
+            System.err.println("Error rotating user log: " + e.getMessage());
+            return;
+        }
+        if (users == null) {
+            return;
+        }
+        try {
+            writeSnapshot(users, true);
+            Files.deleteIfExists(sealedLogFile.toPath());
+        } catch (IOException e) {
+            System.err.println("Error compacting user log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Seals the live log unless a sealed one is still waiting. Runs on the writer thread.
+     *
+     * @return the users to snapshot, or null if there is nothing to compact
+     */
+    private List<User> rotateLog() {
+        try {
+            if (!sealedLogFile.exists()) {
+                if (writeAheadLog.getRecordCount() == 0) {
+                    return null;
+                }
+                writeAheadLog.rotate(sealedLogFile);
+            }
+        } catch (IOException e) {
+            System.err.println("Error rotating user log: " + e.getMessage());
+            return null;
+        }
+        return findAll();
+    }
+
     private void saveUsersToFile() {
         try {
-            objectMapper.writeValue(new File(DATA_FILE), users);
+            writeSnapshot(findAll(), false);
         } catch (IOException e) {
             System.err.println("Error saving users to file: " + e.getMessage());
         }
     }
+
+    /**
+     * Writes the users to a temporary file and moves it over the data file, so a crash never
+     * leaves a half-written snapshot behind. With {@code sync} the file is forced to disk
+     * before it replaces the old one, which compaction needs before it drops the sealed log.
+     */
+    private void writeSnapshot(List<User> users, boolean sync) throws IOException {
+        try (UserSnapshotFile.Writer writer = snapshotFile.openWriter(new File(DATA_FILE), fileFormat)) {
+            for (User user : users) {
+                writer.write(user);
+            }
+            writer.commit(sync);
+        }
+    }
+
+    @FunctionalInterface
+    private interface LogAppend {
+        void appendTo(UserWriteAheadLog log) throws IOException;
+    }
 }
@@ -0,0 +1,521 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * Search indexes kept next to a store's primary indexes and updated with every change. They hold
+ * only ids; the owning store turns the ids a search finds into users.
+ *
+ * <p>Prefix search covers the username and every word of the name, ignoring case. Each of these
+ * is a key in a sorted set of (key, id) pairs, where a name contributes the rest of the name from
+ * every word on ("john doe" and "doe"). The keys that start with a prefix are one contiguous
+ * range of the set, so a search seeks to the prefix in O(log n) and reads k matches in O(k).
+ *
+ * <p>Search by similar username ignores case as well. It walks a second sorted set holding only
+ * the usernames as if it were a trie, carrying one row of the Levenshtein table per character
+ * of the walked prefix; rows are shared by all usernames with that prefix. Once every cell of a
+ * row exceeds the allowed distance, no username with the prefix can match, and the walk seeks
+ * past all of them at once. A search thus visits the prefixes within reach of the query rather
+ * than every username, which is what a Levenshtein automaton run over a trie does too.
+ *
+ * <p>Search for text anywhere in the name or email, ignoring case, intersects the postings of a
+ * {@link TrigramIndex} over both and then checks the few candidates it yields.
+ *
+ * <p>Listings filtered by role, enabled flag and age combine {@link IdBitmap}s of the ids with
+ * each role, of the enabled ids and of the ids with each age, the latter sorted by age so a range
+ * of ages is a range of bitmaps. The conditions are applied 64 ids at a time with bitwise
+ * operations, and only the ids that meet all of them are looked up.
+ *
+ * <p>Like the indexes it sits next to, changes must come from one thread at a time, while any
+ * number of threads search.
+ */
+class UserSearchIndex {
+
+    private final ConcurrentSkipListSet<Key> prefixKeys = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<Key> usernames = new ConcurrentSkipListSet<>();
+    private final TrigramIndex substrings = new TrigramIndex();
+    private final IdBitmap live = new IdBitmap();
+    private final IdBitmap enabled = new IdBitmap();
+    private final Map<Role, IdBitmap> roles = new EnumMap<>(Role.class);
+    private final ConcurrentSkipListMap<Integer, IdBitmap> ages = new ConcurrentSkipListMap<>();
+
+    UserSearchIndex() {
+        // Filled once, so concurrent readers never see the map change
+        for (Role role : Role.values()) {
+            roles.put(role, new IdBitmap());
+        }
+    }
+
+    /**
+     * Moves the user's entries from {@code previous} to {@code current}; either is null when
+     * the user is added or removed.
+     */
+    void update(User previous, User current) {
+        List<String> removed = previous != null ? prefixKeys(previous) : List.of();
+        List<String> added = current != null ? prefixKeys(current) : List.of();
+        if (previous != null) {
+            for (String key : removed) {
+                if (!added.contains(key)) {
+                    prefixKeys.remove(new Key(key, previous.getId()));
+                }
+            }
+        }
+        if (current != null) {
+            for (String key : added) {
+                prefixKeys.add(new Key(key, current.getId()));
+            }
+        }
+        String previousUsername = previous != null ? usernameKey(previous) : null;
+        String currentUsername = current != null ? usernameKey(current) : null;
+        if (!Objects.equals(previousUsername, currentUsername)) {
+            if (previousUsername != null) {
+                usernames.remove(new Key(previousUsername, previous.getId()));
+            }
+            if (currentUsername != null) {
+                usernames.add(new Key(currentUsername, current.getId()));
+            }
+        }
+        long id = current != null ? current.getId() : previous.getId();
+        substrings.update(id, previous != null ? substringTexts(previous) : List.of(),
+            current != null ? substringTexts(current) : List.of());
+        updateBitmaps(id, previous, current);
+    }
+
+    /**
+     * Sets the current bits before clearing the previous ones, and the live bit last for a new
+     * user and first for a removed one, so a filter never misses a user that matches throughout.
+     */
+    private void updateBitmaps(long id, User previous, User current) {
+        if (current == null) {
+            live.remove(id);
+        }
+        Role previousRole = previous != null ? previous.getRole() : null;
+        Role currentRole = current != null ? current.getRole() : null;
+        if (currentRole != previousRole) {
+            if (currentRole != null) {
+                roles.get(currentRole).add(id);
+            }
+            if (previousRole != null) {
+                roles.get(previousRole).remove(id);
+            }
+        }
+        if (current != null && current.isEnabled()) {
+            enabled.add(id);
+        } else {
+            enabled.remove(id);
+        }
+        Integer previousAge = previous != null ? previous.getAge() : null;
+        Integer currentAge = current != null ? current.getAge() : null;
+        if (!Objects.equals(currentAge, previousAge)) {
+            if (currentAge != null) {
+                ages.computeIfAbsent(currentAge, age -> new IdBitmap()).add(id);
+            }
+            if (previousAge != null) {
+                ages.get(previousAge).remove(id);
+            }
+        }
+        if (current != null) {
+            live.add(id);
+        }
+    }
+
+    void clear() {
+        prefixKeys.clear();
+        usernames.clear();
+        substrings.clear();
+        live.clear();
+        enabled.clear();
+        roles.values().forEach(IdBitmap::clear);
+        ages.clear();
+    }
+
+    /**
+     * @see TrigramIndex#beginLoad()
+     */
+    void beginLoad() {
+        substrings.beginLoad();
+    }
+
+    void endLoad() {
+        substrings.endLoad();
+    }
+
+    /**
+     * Ids of the users with a key starting with {@code prefix}, in order of their first such
+     * key; at most {@code limit}.
+     */
+    long[] findByPrefix(String prefix, int limit) {
+        String normalized = normalize(prefix);
+        long[] ids = new long[Math.max(0, limit)];
+        int count = 0;
+        for (Key key : prefixKeys.tailSet(new Key(normalized, Long.MIN_VALUE))) {
+            if (count == ids.length || !key.text.startsWith(normalized)) {
+                break;
+            }
+            // Users matching with several keys are listed at the first
+            if (!contains(ids, count, key.id)) {
+                ids[count++] = key.id;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Ids of the users whose username is at most {@code maxDistance} insertions, deletions or
+     * substitutions away from {@code username}, closest first; at most {@code limit}.
+     */
+    long[] findBySimilarUsername(String username, int maxDistance, int limit) {
+        String query = normalize(username);
+        if (limit <= 0 || maxDistance < 0) {
+            return new long[0];
+        }
+        // Matches per distance; the walk is in order of username, so each list already is too
+        long[][] found = new long[maxDistance + 1][limit];
+        int[] counts = new int[maxDistance + 1];
+        int bound = maxDistance;
+        // rows[i] is the row for the first i characters of the walked prefix, valid up to validRows
+        int[][] rows = new int[query.length() + maxDistance + 2][];
+        rows[0] = new int[query.length() + 1];
+        for (int j = 0; j <= query.length(); j++) {
+            rows[0][j] = j;
+        }
+        String walked = "";
+        int validRows = 0;
+        Key key = usernames.ceiling(new Key("", Long.MIN_VALUE));
+        while (key != null) {
+            String text = key.text;
+            validRows = Math.min(validRows, commonPrefixLength(walked, text));
+            walked = text;
+            int pruneAt = -1;
+            for (int i = validRows + 1; i <= text.length(); i++) {
+                if (rows[i] == null) {
+                    rows[i] = new int[query.length() + 1];
+                }
+                if (nextRow(rows[i - 1], rows[i], text.charAt(i - 1), query) > bound) {
+                    pruneAt = i;
+                    break;
+                }
+                validRows = i;
+            }
+            if (pruneAt < 0) {
+                int distance = rows[text.length()][query.length()];
+                if (distance <= bound && counts[distance] < limit) {
+                    found[distance][counts[distance]++] = key.id;
+                    // Enough matches this close; farther ones are no longer needed
+                    for (int total = 0, d = 0; d < bound; d++) {
+                        total += counts[d];
+                        if (total >= limit) {
+                            bound = d;
+                        }
+                    }
+                }
+                key = usernames.higher(key);
+            } else {
+                String skipTo = successor(text.substring(0, pruneAt));
+                key = skipTo != null ? usernames.ceiling(new Key(skipTo, Long.MIN_VALUE)) : null;
+            }
+        }
+        long[] ids = new long[limit];
+        int count = 0;
+        for (int d = 0; d <= bound && count < limit; d++) {
+            int taken = Math.min(counts[d], limit - count);
+            System.arraycopy(found[d], 0, ids, count, taken);
+            count += taken;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Users with an id above {@code after} whose name or email contains {@code text}, in order of
+     * id; at most {@code limit}. Candidates are turned into users in batches by {@code resolve},
+     * which returns those still stored in the order of the ids it is given.
+     *
+     * @throws IllegalArgumentException if the text is shorter than three characters
+     */
+    List<User> findBySubstring(String text, long after, int limit, Function<long[], List<User>> resolve) {
+        String query = normalize(text);
+        List<User> found = new ArrayList<>();
+        int batch = Math.max(limit, 64);
+        long from = after;
+        while (found.size() < limit) {
+            long[] candidates = substrings.candidates(query, from, batch);
+            for (User user : resolve.apply(candidates)) {
+                if (found.size() < limit && substringTexts(user).stream().anyMatch(field -> field.contains(query))) {
+                    found.add(user);
+                }
+            }
+            if (candidates.length < batch) {
+                break;
+            }
+            from = candidates[candidates.length - 1];
+        }
+        return found;
+    }
+
+    /**
+     * Users with an id above {@code after} that meet {@code filter}, in order of id; at most
+     * {@code limit}. Ids are turned into users in batches by {@code resolve}, as for
+     * {@link #findBySubstring}, and checked once more, as a user may change after its bits are
+     * read.
+     */
+    List<User> findByFilter(UserFilter filter, long after, int limit, Function<long[], List<User>> resolve) {
+        List<User> found = new ArrayList<>();
+        int batch = Math.min(Math.max(limit, 64), 1024);
+        long from = after;
+        while (found.size() < limit) {
+            long[] candidates = filteredIds(filter, from, batch);
+            for (User user : resolve.apply(candidates)) {
+                if (found.size() < limit && filter.matches(user)) {
+                    found.add(user);
+                }
+            }
+            if (candidates.length < batch) {
+                break;
+            }
+            from = candidates[candidates.length - 1];
+        }
+        return found;
+    }
+
+    private long[] filteredIds(UserFilter filter, long after, int limit) {
+        IdBitmap role = filter.getRole() != null ? roles.get(filter.getRole()) : null;
+        Boolean wantEnabled = filter.getEnabled();
+        IdBitmap[] ageSets = null;
+        if (filter.getMinAge() != null || filter.getMaxAge() != null) {
+            int minAge = filter.getMinAge() != null ? filter.getMinAge() : Integer.MIN_VALUE;
+            int maxAge = filter.getMaxAge() != null ? filter.getMaxAge() : Integer.MAX_VALUE;
+            if (minAge > maxAge) {
+                return new long[0];
+            }
+            ageSets = ages.subMap(minAge, true, maxAge, true).values().toArray(new IdBitmap[0]);
+        }
+        long[] ids = new long[limit];
+        int count = 0;
+        long first = (after + 1) >>> 6;
+        long words = live.words();
+        for (long word = first; word < words && count < limit; word++) {
+            if (!live.hasPage(word)) {
+                word += IdBitmap.WORDS_PER_PAGE - 1 - word % IdBitmap.WORDS_PER_PAGE;
+                continue;
+            }
+            long bits = live.word(word);
+            if (word == first) {
+                bits &= -1L << (after + 1);
+            }
+            if (bits != 0 && role != null) {
+                bits &= role.word(word);
+            }
+            if (bits != 0 && wantEnabled != null) {
+                bits &= wantEnabled ? enabled.word(word) : ~enabled.word(word);
+            }
+            if (bits != 0 && ageSets != null) {
+                long anyAge = 0;
+                for (IdBitmap ageSet : ageSets) {
+                    anyAge |= ageSet.word(word);
+                }
+                bits &= anyAge;
+            }
+            while (bits != 0 && count < limit) {
+                ids[count++] = word << 6 | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Keeps the {@code limit} lowest ids of users found by separate indexes, such as those of
+     * shards, in order of id.
+     */
+    static List<User> mergeById(List<User> users, int limit) {
+        List<User> sorted = new ArrayList<>(users);
+        sorted.sort(Comparator.comparing(User::getId));
+        return sorted.subList(0, Math.min(Math.max(0, limit), sorted.size()));
+    }
+
+    /**
+     * Orders users found by separate indexes, such as those of shards, as one prefix search
+     * would have, and keeps the first {@code limit}.
+     */
+    static List<User> mergeByPrefix(List<User> users, String prefix, int limit) {
+        String normalized = normalize(prefix);
+        List<User> sorted = new ArrayList<>(users);
+        sorted.sort(Comparator.comparing((User user) -> firstMatch(user, normalized))
+            .thenComparing(User::getId));
+        return sorted.subList(0, Math.min(Math.max(0, limit), sorted.size()));
+    }
+
+    /**
+     * Orders users found by separate indexes as one search by similar username would have, and
+     * keeps the first {@code limit}.
+     */
+    static List<User> mergeBySimilarUsername(List<User> users, String username, int limit) {
+        String normalized = normalize(username);
+        Map<Long, Integer> distances = new HashMap<>();
+        for (User user : users) {
+            String key = usernameKey(user);
+            distances.put(user.getId(), key != null ? editDistance(key, normalized) : Integer.MAX_VALUE);
+        }
+        List<User> sorted = new ArrayList<>(users);
+        sorted.sort(Comparator.comparing((User user) -> distances.get(user.getId()))
+            .thenComparing(user -> usernameKey(user), Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(User::getId));
+        return sorted.subList(0, Math.min(Math.max(0, limit), sorted.size()));
+    }
+
+    static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The username and the rest of the name from each word on, lower-cased.
+     */
+    private static List<String> prefixKeys(User user) {
+        List<String> keys = new ArrayList<>(4);
+        if (user.getUsername() != null) {
+            keys.add(usernameKey(user));
+        }
+        String name = user.getName();
+        if (name != null) {
+            name = normalize(name);
+            for (int i = 0; i < name.length(); i++) {
+                if (!Character.isWhitespace(name.charAt(i))
+                        && (i == 0 || Character.isWhitespace(name.charAt(i - 1)))) {
+                    keys.add(name.substring(i));
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Levenshtein distance: the fewest single-character insertions, deletions and
+     * substitutions that turn {@code text} into {@code query}.
+     */
+    static int editDistance(String text, String query) {
+        int[] previousRow = new int[query.length() + 1];
+        int[] currentRow = new int[query.length() + 1];
+        for (int j = 0; j <= query.length(); j++) {
+            previousRow[j] = j;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            nextRow(previousRow, currentRow, text.charAt(i), query);
+            int[] row = previousRow;
+            previousRow = currentRow;
+            currentRow = row;
+        }
+        return previousRow[query.length()];
+    }
+
+    /**
+     * Fills the row of the Levenshtein table that follows {@code previousRow} when the text gains
+     * {@code c}, and returns its smallest cell.
+     */
+    private static int nextRow(int[] previousRow, int[] row, char c, String query) {
+        row[0] = previousRow[0] + 1;
+        int min = row[0];
+        for (int j = 1; j < row.length; j++) {
+            int substitution = previousRow[j - 1] + (c == query.charAt(j - 1) ? 0 : 1);
+            row[j] = Math.min(substitution, Math.min(previousRow[j], row[j - 1]) + 1);
+            min = Math.min(min, row[j]);
+        }
+        return min;
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The first string after every string starting with {@code prefix}, or null if there is none.
+     */
+    private static String successor(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            if (prefix.charAt(i) != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (prefix.charAt(i) + 1);
+            }
+        }
+        return null;
+    }
+
+    private static List<String> substringTexts(User user) {
+        List<String> texts = new ArrayList<>(2);
+        if (user.getName() != null) {
+            texts.add(normalize(user.getName()));
+        }
+        if (user.getEmail() != null) {
+            texts.add(normalize(user.getEmail()));
+        }
+        return texts;
+    }
+
+    private static String usernameKey(User user) {
+        return user.getUsername() != null ? normalize(user.getUsername()) : null;
+    }
+
+    private static String firstMatch(User user, String prefix) {
+        String first = null;
+        for (String key : prefixKeys(user)) {
+            if (key.startsWith(prefix) && (first == null || key.compareTo(first) < 0)) {
+                first = key;
+            }
+        }
+        // Changed since it was found; sorts after every match
+        return first != null ? first : "\uffff";
+    }
+
+    private static boolean contains(long[] ids, int count, long id) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Key implements Comparable<Key> {
+        private final String text;
+        private final long id;
+
+        private Key(String text, long id) {
+            this.text = text;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int byText = text.compareTo(other.text);
+            return byText != 0 ? byText : Long.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && compareTo((Key) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode() * 31 + Long.hashCode(id);
+        }
+    }
+}
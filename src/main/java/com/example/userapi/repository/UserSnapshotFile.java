@@ -0,0 +1,255 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties.FileFormat;
+import com.example.userapi.model.User;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the data file in either {@link FileFormat}. Both directions stream one user at
+ * a time. The format of an existing file is detected from its first bytes, so a JSON file keeps
+ * loading after the configured format changes to binary.
+ *
+ * <p>The binary layout is a 4-byte magic ({@code USRB}), a version byte, then one
+ * {@link UserRecordCodec} record per user, each preceded by its length as a 4-byte int.
+ */
+class UserSnapshotFile {
+
+    private static final byte[] MAGIC = {'U', 'S', 'R', 'B'};
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives each user as it is read.
+     */
+    @FunctionalInterface
+    interface UserConsumer {
+        /**
+         * @param bytesRead how far into the file reading has got, for progress reporting
+         */
+        void accept(User user, long bytesRead) throws IOException;
+    }
+
+    private final ObjectMapper objectMapper;
+
+    UserSnapshotFile(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Mapper for the data file and the log, which unlike the API keep password hashes.
+     */
+    static ObjectMapper persistenceMapper() {
+        return new ObjectMapper().addMixIn(User.class, PersistedUserMixin.class);
+    }
+
+    /**
+     * Detects the format of an existing file; anything not starting with the binary magic is
+     * taken to be JSON.
+     */
+    static FileFormat detect(File file) throws IOException {
+        byte[] head = new byte[MAGIC.length];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = in.readNBytes(head, 0, head.length);
+            return read == head.length && Arrays.equals(head, MAGIC) ? FileFormat.BINARY : FileFormat.JSON;
+        }
+    }
+
+    /**
+     * Streams every user in the file to the consumer.
+     *
+     * @return the number of users read
+     */
+    long read(File file, UserConsumer consumer) throws IOException {
+        return detect(file) == FileFormat.BINARY ? readBinary(file, consumer) : readJson(file, consumer);
+    }
+
+    private long readJson(File file, UserConsumer consumer) throws IOException {
+        long count = 0;
+        try (MappingIterator<User> users = objectMapper.readerFor(User.class).readValues(file)) {
+            JsonParser parser = users.getParser();
+            if (!parser.getParsingContext().inArray()) {
+                throw new IOException("Expected a JSON array of users in " + file);
+            }
+            while (users.hasNextValue()) {
+                User user = users.nextValue();
+                count++;
+                consumer.accept(user, parser.getCurrentLocation().getByteOffset());
+            }
+        }
+        return count;
+    }
+
+    private long readBinary(File file, UserConsumer consumer) throws IOException {
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            in.readFully(new byte[MAGIC.length]);
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary user file version " + version + " in " + file);
+            }
+            long position = MAGIC.length + 1;
+            byte[] record = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0) {
+                    throw new IOException("Corrupt user record at byte " + position + " in " + file);
+                }
+                if (length > record.length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+                in.readFully(record, 0, length);
+                position += Integer.BYTES + length;
+                User user;
+                try {
+                    user = UserRecordCodec.decode(ByteBuffer.wrap(record, 0, length));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage() + " at byte " + position + " in " + file, e);
+                }
+                count++;
+                consumer.accept(user, position);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts writing a new version of {@code target}. Users go to a temporary file that replaces
+     * the target on {@link Writer#commit(boolean)}, so a crash never leaves a half-written file.
+     */
+    Writer openWriter(File target, FileFormat format) throws IOException {
+        File tempFile = new File(target.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tempFile);
+        return format == FileFormat.BINARY
+            ? new BinaryWriter(target, tempFile, file)
+            : new JsonWriter(target, tempFile, file, objectMapper);
+    }
+
+    /**
+     * Writes one data file. Closing without committing discards it.
+     */
+    abstract static class Writer implements Closeable {
+        private final File target;
+        private final File tempFile;
+        private final FileOutputStream file;
+        private boolean committed;
+
+        private Writer(File target, File tempFile, FileOutputStream file) {
+            this.target = target;
+            this.tempFile = tempFile;
+            this.file = file;
+        }
+
+        abstract void write(User user) throws IOException;
+
+        abstract void finish() throws IOException;
+
+        /**
+         * Completes the file and moves it over the target.
+         *
+         * @param sync whether to force the file to disk before it replaces the target
+         */
+        void commit(boolean sync) throws IOException {
+            finish();
+            if (sync) {
+                file.getFD().sync();
+            }
+            file.close();
+            Files.move(tempFile.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                file.close();
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+    }
+
+    private static final class JsonWriter extends Writer {
+        private final JsonGenerator generator;
+        private final ObjectWriter userWriter;
+
+        private JsonWriter(File target, File tempFile, FileOutputStream file, ObjectMapper objectMapper)
+                throws IOException {
+            super(target, tempFile, file);
+            this.generator = objectMapper.getFactory().createGenerator(file)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            this.userWriter = objectMapper.writerFor(User.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            generator.writeStartArray();
+        }
+
+        @Override
+        void write(User user) throws IOException {
+            userWriter.writeValue(generator, user);
+        }
+
+        @Override
+        void finish() throws IOException {
+            generator.writeEndArray();
+            generator.close();
+        }
+    }
+
+    private static final class BinaryWriter extends Writer {
+        private final DataOutputStream out;
+
+        private BinaryWriter(File target, File tempFile, FileOutputStream file) throws IOException {
+            super(target, tempFile, file);
+            this.out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+        }
+
+        @Override
+        void write(User user) throws IOException {
+            byte[] record = UserRecordCodec.encode(user);
+            out.writeInt(record.length);
+            out.write(record);
+        }
+
+        @Override
+        void finish() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * The API never serializes password hashes; the data file and the log have to keep them.
+     */
+    private abstract static class PersistedUserMixin {
+        @JsonProperty(access = JsonProperty.Access.READ_WRITE)
+        private String password;
+    }
+}
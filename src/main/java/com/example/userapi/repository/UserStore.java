@@ -0,0 +1,129 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Storage for users. The implementation is selected with {@code userapi.storage.engine}.
+ */
+public interface UserStore {
+
+    /**
+     * Returns all users in id order. The list is read-only and may be shared between callers.
+     */
+    List<User> findAll();
+
+    /**
+     * Returns the users with an id above {@code afterId} that meet {@code filter}, in order of
+     * id, at most {@code limit} of them.
+     */
+    List<User> findAll(UserFilter filter, long afterId, int limit);
+
+    Optional<User> findById(Long id);
+
+    Optional<User> findByUsername(String username);
+
+    /**
+     * Finds the users with these ids in one pass, in the order of the ids. Ids without a user,
+     * and nulls, are left out.
+     */
+    List<User> findAllById(Collection<Long> ids);
+
+    /**
+     * Finds the users with these usernames in one pass, in the order of the usernames.
+     * Usernames no user has, and nulls, are left out.
+     */
+    List<User> findAllByUsername(Collection<String> usernames);
+
+    /**
+     * Finds the user with this email, ignoring case and surrounding whitespace.
+     */
+    Optional<User> findByEmail(String email);
+
+    /**
+     * Finds users whose username, or a word of whose name, starts with {@code prefix}, ignoring
+     * case. Users come in order of the matching text, at most {@code limit} of them.
+     */
+    List<User> searchByPrefix(String prefix, int limit);
+
+    /**
+     * Finds users whose username is at most {@code maxDistance} single-character insertions,
+     * deletions or substitutions away from {@code username}, ignoring case. The closest come
+     * first, at most {@code limit} of them.
+     */
+    List<User> searchBySimilarUsername(String username, int maxDistance, int limit);
+
+    /**
+     * Finds users whose name or email contains {@code text}, ignoring case, in order of id.
+     * Only users with an id above {@code afterId} are returned, at most {@code limit} of them,
+     * so the last id of a page is where the next one starts.
+     *
+     * @throws IllegalArgumentException if the text is shorter than three characters
+     */
+    List<User> searchBySubstring(String text, long afterId, int limit);
+
+    /**
+     * Inserts the user, assigning an id if it has none, or replaces the stored user with the same
+     * id. The store keeps its own copy, so later changes to the passed instance have no effect
+     * until it is saved again.
+     *
+     * <p>Username and email are checked and claimed in one step with the save, so of two
+     * concurrent saves with the same username or email exactly one succeeds.
+     *
+     * @throws com.example.userapi.exception.DuplicateUserException if another user has the username
+     *     or, compared by {@link #emailKey(String)}, the email
+     */
+    User save(User user);
+
+    /**
+     * Saves each user as {@link #save(User)} would, in order, so a user clashing with one earlier
+     * in the batch is rejected. Engines that persist changes commit the batch with one write
+     * where they can, rather than one per user.
+     *
+     * @return for each user, null if it was saved or the exception that rejected it, such as a
+     *     {@link com.example.userapi.exception.DuplicateUserException}
+     */
+    default List<RuntimeException> saveBatch(List<User> users) {
+        List<RuntimeException> failures = new ArrayList<>(users.size());
+        for (User user : users) {
+            try {
+                save(user);
+                failures.add(null);
+            } catch (RuntimeException e) {
+                failures.add(e);
+            }
+        }
+        return failures;
+    }
+
+    boolean deleteById(Long id);
+
+    /**
+     * Registers a listener that is told about every user saved or deleted from now on, through
+     * any of the methods above. It is called once the change is visible to readers and before
+     * the call that made it returns, possibly on a writer thread of the store, so it must be
+     * quick and must not change the store.
+     */
+    void addChangeListener(ChangeListener listener);
+
+    /**
+     * @see #addChangeListener(ChangeListener)
+     */
+    @FunctionalInterface
+    interface ChangeListener {
+        void userChanged(long id);
+    }
+
+    /**
+     * Key under which emails are unique: trimmed and lower-cased, so addresses that differ only
+     * in case are the same.
+     */
+    static String emailKey(String email) {
+        return email != null ? email.trim().toLowerCase(Locale.ROOT) : null;
+    }
+}
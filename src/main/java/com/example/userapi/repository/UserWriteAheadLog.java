@@ -0,0 +1,268 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.User;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of user mutations, stored next to the data file with one JSON record per line.
+ * Each mutation costs one small append instead of a rewrite of the whole data file; on boot the
+ * records are replayed on top of the last snapshot.
+ *
+ * <p>Appends are buffered in memory until {@link #flush(boolean)} writes them, so one write (and
+ * one fsync) can cover a whole batch of mutations.
+ */
+class UserWriteAheadLog implements Closeable {
+
+    private static final byte NEWLINE = '\n';
+
+    private final File file;
+    private final ObjectMapper objectMapper;
+    private FileChannel channel;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+    private long recordCount;
+    private long size;
+
+    UserWriteAheadLog(File file, ObjectMapper objectMapper) {
+        this.file = file;
+        this.objectMapper = objectMapper;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Number of records in the log, counting replayed and appended ones.
+     */
+    synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Size of the log in bytes.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Feeds every complete record to the consumer in write order. A torn record at the end of
+     * the file (a crash in the middle of an append) is cut off so the next append starts clean.
+     * A record that cannot be read but has valid records after it was not torn by a crash;
+     * cutting it off would lose those later changes too, so the replay fails instead.
+     *
+     * @param cutTornEnd whether to cut off a torn end; false to leave the file untouched
+     * @return the number of records replayed
+     * @throws IOException if the file cannot be read or a record in the middle of it is corrupt
+     */
+    long replay(boolean cutTornEnd, Consumer<LogRecord> consumer) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        long records = 0;
+        long validLength = 0;
+        long position = 0;
+        long lineNumber = 0;
+        // First unreadable line; only records after it tell it apart from a torn end
+        long corruptLine = 0;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b != NEWLINE) {
+                    line.write(b);
+                    continue;
+                }
+                lineNumber++;
+                if (line.size() > 0) {
+                    LogRecord record;
+                    try {
+                        record = objectMapper.readValue(line.toByteArray(), LogRecord.class);
+                    } catch (IOException e) {
+                        record = null;
+                        if (corruptLine == 0) {
+                            corruptLine = lineNumber;
+                        }
+                    }
+                    if (record != null && corruptLine > 0) {
+                        throw new IOException("Corrupt record at line " + corruptLine + " of " + file
+                            + " is followed by valid records");
+                    }
+                    if (record != null) {
+                        consumer.accept(record);
+                        records++;
+                    }
+                }
+                if (corruptLine == 0) {
+                    validLength = position;
+                }
+                line.reset();
+            }
+        }
+        if (cutTornEnd && validLength < file.length()) {
+            truncate(validLength);
+        }
+        recordCount = records;
+        size = validLength;
+        return records;
+    }
+
+    synchronized void open() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    void appendSave(User user) throws IOException {
+        append(new LogRecord(Operation.SAVE, user.getId(), user));
+    }
+
+    void appendDelete(Long id) throws IOException {
+        append(new LogRecord(Operation.DELETE, id, null));
+    }
+
+    private synchronized void append(LogRecord record) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(record);
+        pending.write(json);
+        pending.write(NEWLINE);
+        recordCount++;
+        size += json.length + 1;
+    }
+
+    /**
+     * Writes the buffered records to the log file. If the write fails, whatever part of it
+     * reached the file is cut off again and the records stay buffered for the next flush.
+     *
+     * @param force whether to fsync the file afterwards
+     */
+    synchronized void flush(boolean force) throws IOException {
+        if (channel == null) {
+            return;
+        }
+        if (pending.size() > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+            long length = channel.size();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                try {
+                    channel.truncate(length);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            pending.reset();
+        }
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Seals the current log by renaming it to {@code sealed} and starts an empty log in its place.
+     * Records appended afterwards are not part of the sealed segment.
+     */
+    synchronized void rotate(File sealed) throws IOException {
+        close();
+        Files.move(file.toPath(), sealed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        recordCount = 0;
+        size = 0;
+        open();
+    }
+
+    private void truncate(long length) throws IOException {
+        try (FileChannel truncating = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            truncating.truncate(length);
+        }
+    }
+
+    /**
+     * Closes the log and removes it from disk, e.g. once its records are part of a snapshot.
+     */
+    synchronized void delete() throws IOException {
+        close();
+        recordCount = 0;
+        size = 0;
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    /**
+     * Flushes and syncs buffered records, then closes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            flush(true);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    enum Operation {
+        SAVE,
+        DELETE
+    }
+
+    /**
+     * A single logged mutation.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static class LogRecord {
+        @JsonProperty("op")
+        private Operation operation;
+
+        @JsonProperty("id")
+        private Long id;
+
+        @JsonProperty("user")
+        private User user;
+
+        LogRecord() {
+        }
+
+        LogRecord(Operation operation, Long id, User user) {
+            this.operation = operation;
+            this.id = id;
+            this.user = user;
+        }
+
+        Operation getOperation() {
+            return operation;
+        }
+
+        Long getId() {
+            return id;
+        }
+
+        User getUser() {
+            return user;
+        }
+    }
+}
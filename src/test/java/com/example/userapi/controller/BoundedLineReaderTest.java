@@ -0,0 +1,40 @@
+package com.example.userapi.controller;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the line reader of the bulk import.
+ */
+class BoundedLineReaderTest {
+
+    @Test
+    void testReadsLinesWithAnyLineEnd() throws IOException {
+        BoundedLineReader reader = new BoundedLineReader(new StringReader("a\nb\r\nc\r\rd"), 10);
+
+        assertEquals("a", reader.readLine());
+        assertEquals("b", reader.readLine());
+        assertEquals("c", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("d", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    void testCutsLongLinesAndGoesOnAfterThem() throws IOException {
+        String longLine = "x".repeat(100_000);
+        BoundedLineReader reader = new BoundedLineReader(new StringReader("short\n" + longLine + "\nnext\n"), 16);
+
+        assertEquals("short", reader.readLine());
+        assertFalse(reader.truncated());
+        assertEquals("x".repeat(16), reader.readLine());
+        assertTrue(reader.truncated());
+        assertEquals("next", reader.readLine());
+        assertFalse(reader.truncated());
+        assertNull(reader.readLine());
+    }
+}
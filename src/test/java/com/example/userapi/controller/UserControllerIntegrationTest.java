@@ -1,7 +1,11 @@
 package com.example.userapi.controller;
 
+import com.example.userapi.dto.UserLookupRequest;
+import com.example.userapi.exception.DuplicateUserException;
 import com.example.userapi.model.User;
+import com.example.userapi.repository.UserFilter;
 import com.example.userapi.repository.UserRepository;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -10,14 +14,24 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -31,6 +45,9 @@ class UserControllerIntegrationTest {
     @MockBean
     private UserRepository userRepository;
 
+    @Autowired
+    private UserJsonCache userJsonCache;
+
     private MockMvc mockMvc;
     private ObjectMapper objectMapper;
 
@@ -59,6 +76,73 @@ class UserControllerIntegrationTest {
         verify(userRepository, times(1)).save(any(User.class));
     }
 
+    @Test
+    void testBulkCreateUsers() throws Exception {
+        when(userRepository.saveBatch(anyList())).thenAnswer(invocation -> {
+            List<User> users = invocation.getArgument(0);
+            users.get(0).setId(7L);
+            return Arrays.asList(null, new DuplicateUserException("username", "jane"));
+        });
+        String body = "{\"name\":\"John Doe\",\"email\":\"john@example.com\",\"age\":30,\"username\":\"john\",\"password\":\"Password123\"}\n"
+                + "\n"
+                + "{\"name\":\"Jane Smith\",\"email\":\"jane@example.com\",\"age\":25,\"username\":\"jane\",\"password\":\"Password123\"}\n"
+                + "{\"name\":\"J\",\"email\":\"not-an-email\",\"age\":25,\"username\":\"short\",\"password\":\"Short1\"}\n"
+                + "{not json\n";
+
+        MvcResult started = mockMvc.perform(post("/api/users/bulk")
+                        .contentType("application/x-ndjson")
+                        .content(body))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn();
+
+        // One result per non-blank line, numbered as in the request
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("{\"line\":1,\"status\":\"created\",\"id\":7}", lines[0]);
+        JsonNode duplicate = objectMapper.readTree(lines[1]);
+        assertEquals(3, duplicate.get("line").asInt());
+        assertEquals("duplicate", duplicate.get("status").asText());
+        assertEquals("username", duplicate.get("field").asText());
+        JsonNode invalid = objectMapper.readTree(lines[2]);
+        assertEquals("invalid", invalid.get("status").asText());
+        assertEquals(3, invalid.get("validationErrors").size());
+        assertEquals("password", invalid.get("validationErrors").get(2).get("field").asText());
+        assertTrue(invalid.get("validationErrors").get(2).get("rejectedValue").isNull());
+        assertEquals("invalid", objectMapper.readTree(lines[3]).get("status").asText());
+        assertEquals(5, objectMapper.readTree(lines[3]).get("line").asInt());
+        verify(userRepository, times(1)).saveBatch(anyList());
+        verify(userRepository, never()).save(any(User.class));
+    }
+
+    @Test
+    void testBulkCreateUsersReportsNullAndOverlongLinesAndFailedCommits() throws Exception {
+        when(userRepository.saveBatch(anyList())).thenThrow(new UncheckedIOException(new IOException("Disk full")));
+        String body = "null\n"
+                + "{\"name\":\"" + "x".repeat(20_000) + "\"}\r\n"
+                + "{\"name\":\"John Doe\",\"email\":\"john@example.com\",\"age\":30,\"username\":\"john\",\"password\":\"Password123\"}\n";
+
+        MvcResult started = mockMvc.perform(post("/api/users/bulk")
+                        .contentType("application/x-ndjson")
+                        .content(body))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("{\"line\":1,\"status\":\"invalid\",\"message\":\"Expected a JSON object\"}", lines[0]);
+        assertEquals("{\"line\":2,\"status\":\"invalid\",\"message\":\"Line is longer than 16384 characters\"}", lines[1]);
+        JsonNode failed = objectMapper.readTree(lines[2]);
+        assertEquals(3, failed.get("line").asInt());
+        assertEquals("failed", failed.get("status").asText());
+    }
+
     @Test
     void testCreateUserWithInvalidData() throws Exception {
         // Test with empty request body
@@ -97,6 +181,136 @@ class UserControllerIntegrationTest {
         verify(userRepository, times(1)).findAll();
     }
 
+    @Test
+    void testSearchUsersByTextPages() throws Exception {
+        User user1 = new User(1L, "John Doe", "john@acme.com", 30);
+        User user2 = new User(4L, "Jane Smith", "jane@acme.com", 25);
+        User user3 = new User(6L, "Joe Bloggs", "joe@acme.com", 41);
+
+        // One more user than the page size is asked for, to tell whether there is a next page
+        when(userRepository.searchBySubstring("acme", 0L, 3)).thenReturn(Arrays.asList(user1, user2, user3));
+        when(userRepository.searchBySubstring("acme", 4L, 3)).thenReturn(Arrays.asList(user3));
+
+        mockMvc.perform(get("/api/users/contains").param("text", "acme").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "4"))
+                .andExpect(jsonPath("$.length()").value(2));
+        mockMvc.perform(get("/api/users/contains").param("text", "acme").param("after", "4").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("X-Next-Cursor"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(6));
+        mockMvc.perform(get("/api/users/contains").param("text", "ac"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void testGetAllUsersWithFilters() throws Exception {
+        User manager = new User(3L, "Mia Manager", "mia@example.com", 28);
+
+        when(userRepository.findAll(any(UserFilter.class), eq(0L), eq(Integer.MAX_VALUE))).thenReturn(Arrays.asList(manager));
+
+        mockMvc.perform(get("/api/users").param("role", "MANAGER").param("enabled", "true")
+                        .param("minAge", "18").param("maxAge", "30"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(3));
+        mockMvc.perform(get("/api/users").param("role", "OWNER"))
+                .andExpect(status().isBadRequest());
+
+        verify(userRepository, never()).findAll();
+    }
+
+    @Test
+    void testGetAllUsersInPages() throws Exception {
+        User user1 = new User(1L, "John Doe", "john@example.com", 30);
+        User user2 = new User(2L, "Jane Smith", "jane@example.com", 25);
+        User user3 = new User(5L, "Joe Bloggs", "joe@example.com", 41);
+
+        when(userRepository.findAll(any(UserFilter.class), eq(0L), eq(3))).thenReturn(Arrays.asList(user1, user2, user3));
+        when(userRepository.findAll(any(UserFilter.class), eq(2L), eq(3))).thenReturn(Arrays.asList(user3));
+
+        mockMvc.perform(get("/api/users").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "2"))
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[1].id").value(2));
+        mockMvc.perform(get("/api/users").param("after", "2").param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("X-Next-Cursor"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(5));
+
+        verify(userRepository, never()).findAll();
+    }
+
+    @Test
+    void testExportUsersAsNdjson() throws Exception {
+        User user1 = new User(1L, "John Doe", "john@example.com", 30);
+        User user2 = new User(2L, "Jane Smith", "jane@example.com", 25);
+
+        when(userRepository.findAll()).thenReturn(Arrays.asList(user1, user2));
+
+        MvcResult started = mockMvc.perform(get("/api/users/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andReturn();
+
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals(1, objectMapper.readTree(lines[0]).get("id").asLong());
+        assertEquals("Jane Smith", objectMapper.readTree(lines[1]).get("name").asText());
+        // One snapshot rather than pages read while users change
+        verify(userRepository, times(1)).findAll();
+        verify(userRepository, never()).findAll(any(UserFilter.class), anyLong(), anyInt());
+    }
+
+    @Test
+    void testLookupUsersByIdsAndUsernames() throws Exception {
+        User user1 = new User(1L, "John Doe", "john@example.com", 30);
+        user1.setUsername("john");
+        User user2 = new User(2L, "Jane Smith", "jane@example.com", 25);
+        user2.setUsername("jane");
+
+        when(userRepository.findAllById(anyCollection())).thenReturn(List.of(user1));
+        when(userRepository.findAllByUsername(anyCollection())).thenReturn(List.of(user1, user2));
+
+        // John is matched by id and by username but comes once
+        mockMvc.perform(get("/api/users/lookup?ids=1,7,1&usernames=john,jane,nobody"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users.length()").value(2))
+                .andExpect(jsonPath("$.users[0].id").value(1))
+                .andExpect(jsonPath("$.users[1].id").value(2))
+                .andExpect(jsonPath("$.missingIds[0]").value(7))
+                .andExpect(jsonPath("$.missingUsernames[0]").value("nobody"));
+
+        mockMvc.perform(post("/api/users/lookup")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ids\":[1,7]}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.users[0].name").value("John Doe"))
+                .andExpect(jsonPath("$.missingIds[0]").value(7));
+
+        verify(userRepository, times(2)).findAllById(anyCollection());
+        verify(userRepository, never()).findById(anyLong());
+    }
+
+    @Test
+    void testLookupUsersRejectsTooManyKeys() throws Exception {
+        Long[] ids = new Long[1001];
+        Arrays.setAll(ids, i -> (long) i + 1);
+
+        mockMvc.perform(post("/api/users/lookup")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new UserLookupRequest(Arrays.asList(ids), null))))
+                .andExpect(status().isBadRequest());
+
+        verify(userRepository, never()).findAllById(anyCollection());
+    }
+
     @Test
     void testGetAllUsersEmpty() throws Exception {
         when(userRepository.findAll()).thenReturn(Arrays.asList());
@@ -124,6 +338,53 @@ class UserControllerIntegrationTest {
         verify(userRepository, times(1)).findById(1L);
     }
 
+    @Test
+    void testGetUsersWithOnlyTheRequestedFields() throws Exception {
+        User user1 = new User(1L, "John Doe", "john@example.com", 30);
+        user1.setUsername("john");
+        User user2 = new User(2L, "Jane Smith", "jane@example.com", 25);
+        user2.setUsername("jane");
+
+        when(userRepository.findById(1L)).thenReturn(Optional.of(user1));
+        when(userRepository.findAll(any(UserFilter.class), eq(0L), eq(2))).thenReturn(Arrays.asList(user1, user2));
+
+        mockMvc.perform(get("/api/users/1?fields=id,username,role"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"id\":1,\"username\":\"john\",\"role\":\"USER\"}", true));
+
+        // Paging headers stay as they were
+        mockMvc.perform(get("/api/users?limit=1&fields=username"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "1"))
+                .andExpect(content().json("[{\"username\":\"john\"}]", true));
+
+        mockMvc.perform(get("/api/users/1?fields=id,password"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void testLookupAndExportWithOnlyTheRequestedFields() throws Exception {
+        User user = new User(1L, "John Doe", "john@example.com", 30);
+        user.setUsername("john");
+
+        when(userRepository.findAllById(anyCollection())).thenReturn(List.of(user));
+        when(userRepository.findAll()).thenReturn(List.of(user));
+
+        mockMvc.perform(post("/api/users/lookup?fields=id,email")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"ids\":[1,2]}"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("{\"users\":[{\"id\":1,\"email\":\"john@example.com\"}],\"missingIds\":[2],\"missingUsernames\":[]}", true));
+
+        MvcResult started = mockMvc.perform(get("/api/users/export?fields=username"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andReturn();
+        assertEquals("{\"username\":\"john\"}\n", result.getResponse().getContentAsString());
+    }
+
     @Test
     void testGetUserByIdNotFound() throws Exception {
         when(userRepository.findById(999L)).thenReturn(Optional.empty());
@@ -134,6 +395,50 @@ class UserControllerIntegrationTest {
         verify(userRepository, times(1)).findById(999L);
     }
 
+    @Test
+    void testGetUserByIdIsAnsweredFromCachedJsonUntilChanged() throws Exception {
+        User user = new User(42L, "John Doe", "john@example.com", 30);
+        User renamed = new User(42L, "John Renamed", "john@example.com", 30);
+
+        when(userRepository.findById(42L)).thenReturn(Optional.of(user));
+        // The mocked store reports its changes to the cache the way a real one does
+        when(userRepository.save(any(User.class))).thenAnswer(invocation -> {
+            userJsonCache.invalidate(42L);
+            return invocation.getArgument(0);
+        });
+
+        String first = mockMvc.perform(get("/api/users/42"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andReturn().getResponse().getContentAsString();
+        String second = mockMvc.perform(get("/api/users/42"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name").value("John Doe"))
+                .andReturn().getResponse().getContentAsString();
+        assertEquals(first, second);
+        verify(userRepository, times(1)).findById(42L);
+
+        // A change drops the cached JSON
+        mockMvc.perform(put("/api/users/42")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"name\":\"John Renamed\"}"))
+                .andExpect(status().isOk());
+        when(userRepository.findById(42L)).thenReturn(Optional.of(renamed));
+        mockMvc.perform(get("/api/users/42"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name").value("John Renamed"));
+
+        when(userRepository.deleteById(42L)).thenAnswer(invocation -> {
+            userJsonCache.invalidate(42L);
+            return true;
+        });
+        when(userRepository.findById(42L)).thenReturn(Optional.empty());
+        mockMvc.perform(delete("/api/users/42"))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(get("/api/users/42"))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     void testUpdateUser() throws Exception {
         User existingUser = new User(1L, "John Doe", "john@example.com", 30);
@@ -0,0 +1,141 @@
+package com.example.userapi.controller;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import com.example.userapi.repository.InMemoryUserStore;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the size-bounded cache of encoded users.
+ */
+class UserJsonCacheTest {
+
+    private static byte[] json(long id) {
+        return ("{\"id\":" + id + ",\"name\":\"User " + id + "\",\"padding\":\"" + "x".repeat(64) + "\"}")
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void read(UserJsonCache cache, long id) {
+        long version = cache.version(id);
+        if (cache.get(id, version) == null) {
+            cache.put(id, version, json(id));
+        }
+    }
+
+    @Test
+    void testJsonIsServedOnlyAtTheVersionItWasReadAt() {
+        UserJsonCache cache = new UserJsonCache(DataSize.ofMegabytes(1));
+        long version = cache.version(7);
+        cache.put(7, version, json(7));
+        assertArrayEquals(json(7), cache.get(7, version));
+
+        cache.invalidate(7);
+        assertNull(cache.get(7, version));
+        assertNull(cache.get(7, cache.version(7)));
+
+        // Read before the change, cached after it: kept out
+        long before = cache.version(8);
+        cache.invalidate(8);
+        cache.put(8, before, json(8));
+        assertNull(cache.get(8, cache.version(8)));
+        assertEquals(0, cache.weightedSize());
+    }
+
+    @Test
+    void testEveryChangeThroughTheStoreDropsTheCachedJson() {
+        InMemoryUserStore store = new InMemoryUserStore();
+        UserJsonCache cache = new UserJsonCache(DataSize.ofMegabytes(1), store);
+        try {
+            User user = store.save(new User("Name", "user@example.com", 30, "user", "hash", Role.USER));
+            long id = user.getId();
+            long version = cache.version(id);
+            cache.put(id, version, json(id));
+
+            User renamed = new User(user);
+            renamed.setName("Renamed");
+            store.saveBatch(List.of(renamed));
+            assertNull(cache.get(id, version));
+
+            version = cache.version(id);
+            cache.put(id, version, json(id));
+            store.deleteById(id);
+            assertNull(cache.get(id, version));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void testSizeStaysWithinTheBound() {
+        UserJsonCache cache = new UserJsonCache(DataSize.ofKilobytes(64));
+        for (long id = 1; id <= 10_000; id++) {
+            read(cache, id);
+            assertTrue(cache.weightedSize() <= 64 * 1024);
+        }
+        for (long id = 1; id <= 10_000; id += 3) {
+            cache.invalidate(id);
+        }
+        assertTrue(cache.weightedSize() <= 64 * 1024);
+    }
+
+    @Test
+    void testFrequentlyReadUsersSurviveAScan() {
+        // Room for about 200 users, while 150 hot users are read between reads of 10,000 others.
+        // Each hot user comes back after 300 other users, so an LRU cache would never hit
+        UserJsonCache cache = new UserJsonCache(DataSize.ofKilobytes(24));
+        int hits = 0;
+        for (long i = 0; i < 30_000; i++) {
+            long id = i % 2 == 0 ? 1 + i / 2 % 150 : 1_000 + i / 2 % 10_000;
+            long version = cache.version(id);
+            if (cache.get(id, version) != null) {
+                hits += id <= 150 && i >= 15_000 ? 1 : 0;
+            } else {
+                cache.put(id, version, json(id));
+            }
+        }
+        assertTrue(hits >= 0.9 * 7_500, "hot users hit " + hits + " of 7500 times");
+    }
+
+    @Test
+    void testConcurrentReadsAndChanges() throws Exception {
+        UserJsonCache cache = new UserJsonCache(DataSize.ofKilobytes(16));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            workers.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 50_000; i++) {
+                    long id = 1 + random.nextInt(500);
+                    if (random.nextInt(10) == 0) {
+                        cache.invalidate(id);
+                        continue;
+                    }
+                    long version = cache.version(id);
+                    byte[] cached = cache.get(id, version);
+                    if (cached == null) {
+                        cache.put(id, version, json(id));
+                    } else {
+                        assertArrayEquals(json(id), cached);
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+
+        assertTrue(cache.weightedSize() <= 16 * 1024);
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures the retained heap per user of {@link User} against {@link CompactUser} with JOL, for
+ * users shaped like real ones: a BCrypt hash and realistic name, email and username lengths.
+ * Prints the class histogram of both graphs.
+ */
+class CompactUserFootprintTest {
+
+    private static final int USERS = 10_000;
+
+    private static User newUser(long id) {
+        User user = new User("Firstname Lastname" + id, "user" + id + "@example.com", (int) (id % 90) + 10,
+            "user_" + id, "$2a$10$" + String.format("%053d", id), id % 10 == 0 ? Role.ADMIN : Role.USER);
+        user.setId(id);
+        return user;
+    }
+
+    @Test
+    void testCompactUserTakesMuchLessHeap() {
+        User[] users = new User[USERS];
+        CompactUser[] compact = new CompactUser[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = newUser(i + 1);
+            compact[i] = CompactUser.of(users[i]);
+        }
+
+        GraphLayout userLayout = GraphLayout.parseInstance((Object) users);
+        GraphLayout compactLayout = GraphLayout.parseInstance((Object) compact);
+        long userBytes = userLayout.totalSize() / USERS;
+        long compactBytes = compactLayout.totalSize() / USERS;
+        System.out.println(userLayout.toFootprint());
+        System.out.println(compactLayout.toFootprint());
+        System.out.printf("Bytes per user: User %d, CompactUser %d%n", userBytes, compactBytes);
+
+        assertTrue(compactBytes < userBytes * 2 / 3, "CompactUser takes " + compactBytes + " bytes, User " + userBytes);
+    }
+
+    @Test
+    void testRoundTrip() {
+        User user = newUser(42);
+        user.setName("Zoë 山田");
+        user.setEnabled(false);
+
+        User restored = CompactUser.of(user).toUser();
+
+        assertEquals(42L, restored.getId());
+        assertEquals("Zoë 山田", restored.getName());
+        assertEquals(user.getEmail(), restored.getEmail());
+        assertEquals(user.getAge(), restored.getAge());
+        assertEquals(user.getUsername(), restored.getUsername());
+        assertEquals(user.getPassword(), restored.getPassword());
+        assertEquals(Role.USER, restored.getRole());
+        assertFalse(restored.isEnabled());
+        assertNotSame(user, restored);
+    }
+
+    @Test
+    void testAgesOutsideOneByteAndNullsSurvive() {
+        User user = new User(7L, null, null, -5);
+        user.setRole(null);
+        assertEquals(-5, CompactUser.of(user).toUser().getAge());
+        user.setAge(150);
+        assertEquals(150, CompactUser.of(user).toUser().getAge());
+        user.setAge(null);
+
+        User restored = CompactUser.of(user).toUser();
+
+        assertNull(restored.getAge());
+        assertNull(restored.getName());
+        assertNull(restored.getRole());
+    }
+}
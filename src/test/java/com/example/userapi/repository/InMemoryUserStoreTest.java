@@ -0,0 +1,121 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the in-memory user store.
+ */
+class InMemoryUserStoreTest {
+
+    private final InMemoryUserStore store = new InMemoryUserStore();
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash-" + username, Role.USER);
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void testConcurrentSavesClaimEachUsernameOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> saves = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            User user = newUser("user" + i % 100);
+            saves.add(executor.submit(() -> {
+                try {
+                    store.save(user);
+                    return true;
+                } catch (DuplicateUserException e) {
+                    return false;
+                }
+            }));
+        }
+        int stored = 0;
+        for (Future<Boolean> save : saves) {
+            stored += save.get() ? 1 : 0;
+        }
+        executor.shutdown();
+
+        assertEquals(100, stored);
+        assertEquals(100, store.findAll().size());
+        assertEquals(100L, store.findAll().get(99).getId());
+    }
+
+    @Test
+    void testSaveFindUpdateDelete() {
+        User john = store.save(newUser("johndoe"));
+        User jane = store.save(newUser("janesmith"));
+
+        assertEquals(1L, john.getId());
+        assertEquals(2L, jane.getId());
+        assertEquals(2, store.findAll().size());
+
+        User renamed = new User(john);
+        renamed.setUsername("john_renamed");
+        store.save(renamed);
+        assertFalse(store.findByUsername("johndoe").isPresent());
+        assertEquals(1L, store.findByUsername("john_renamed").get().getId());
+
+        assertTrue(store.deleteById(2L));
+        assertFalse(store.deleteById(2L));
+        assertFalse(store.findById(2L).isPresent());
+    }
+
+    @Test
+    void testStoredUserIsACopy() {
+        User john = store.save(newUser("johndoe"));
+        john.setName("Changed without saving");
+
+        assertEquals("Name johndoe", store.findById(john.getId()).get().getName());
+    }
+
+    @Test
+    void testDuplicateUsernameIsRejected() {
+        store.save(newUser("johndoe"));
+
+        assertThrows(DuplicateUserException.class, () -> store.save(newUser("johndoe")));
+        assertEquals(1, store.findAll().size());
+    }
+
+    @Test
+    void testEmailIsUniqueIgnoringCase() {
+        User john = store.save(newUser("johndoe"));
+        User other = newUser("other");
+        other.setEmail(" JohnDoe@Example.com ");
+
+        DuplicateUserException e = assertThrows(DuplicateUserException.class, () -> store.save(other));
+        assertEquals("email", e.getField());
+        assertEquals(john.getId(), store.findByEmail("JOHNDOE@example.com").get().getId());
+
+        // Changing the email frees the old one
+        User changed = new User(john);
+        changed.setEmail("john@example.org");
+        store.save(changed);
+        assertFalse(store.findByEmail("johndoe@example.com").isPresent());
+        assertEquals("other", store.save(other).getUsername());
+    }
+
+    @Test
+    void testExplicitIdAdvancesCounter() {
+        User imported = newUser("imported");
+        imported.setId(41L);
+        store.save(imported);
+
+        assertEquals(42L, store.save(newUser("next")).getId());
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the JDBC user store against an embedded H2 database file.
+ */
+class JdbcUserStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final List<JdbcUserStore> opened = new ArrayList<>();
+
+    private StorageProperties properties() {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(tempDir.resolve("users.json").toFile().getAbsolutePath());
+        properties.getJdbc().setUrl("jdbc:h2:file:" + tempDir.resolve("users-db").toAbsolutePath());
+        properties.getJdbc().setPoolSize(2);
+        properties.getJdbc().setBatchSize(3);
+        return properties;
+    }
+
+    private JdbcUserStore openStore() {
+        JdbcUserStore store = new JdbcUserStore(properties());
+        store.init();
+        opened.add(store);
+        return store;
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (JdbcUserStore store : opened) {
+            store.close();
+        }
+    }
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash-" + username, Role.USER);
+    }
+
+    @Test
+    void testSaveFindUpdateDelete() {
+        JdbcUserStore store = openStore();
+
+        User john = store.save(newUser("johndoe"));
+        User jane = store.save(newUser("janesmith"));
+
+        assertEquals(1L, john.getId());
+        assertEquals(2L, jane.getId());
+        assertEquals("Name johndoe", store.findById(1L).get().getName());
+        assertEquals(Role.USER, store.findByUsername("janesmith").get().getRole());
+        assertEquals(2, store.findAll().size());
+
+        User renamed = new User(john);
+        renamed.setUsername("john_renamed");
+        renamed.setAge(null);
+        store.save(renamed);
+        assertFalse(store.findByUsername("johndoe").isPresent());
+        assertNull(store.findByUsername("john_renamed").get().getAge());
+
+        assertTrue(store.deleteById(2L));
+        assertFalse(store.deleteById(2L));
+        assertFalse(store.findById(2L).isPresent());
+        assertEquals(1, store.findAll().size());
+    }
+
+    @Test
+    void testUsersSurviveRestart() {
+        JdbcUserStore store = openStore();
+        store.save(newUser("johndoe"));
+        store.save(newUser("janesmith"));
+        store.close();
+
+        JdbcUserStore reopened = openStore();
+
+        assertEquals(2, reopened.findAll().size());
+        assertEquals("hash-johndoe", reopened.findByUsername("johndoe").get().getPassword());
+        assertEquals(3L, reopened.save(newUser("newuser")).getId());
+    }
+
+    @Test
+    void testFindAllByIdAndByUsernameInOneQuery() {
+        JdbcUserStore store = openStore();
+        for (int i = 0; i < 5; i++) {
+            store.save(newUser("user" + i));
+        }
+
+        List<User> byId = store.findAllById(Arrays.asList(4L, 99L, null, 1L));
+        List<User> byUsername = store.findAllByUsername(List.of("user3", "nobody", "user0"));
+
+        assertEquals(List.of("user3", "user0"), byId.stream().map(User::getUsername).collect(Collectors.toList()));
+        assertEquals(List.of(4L, 1L), byUsername.stream().map(User::getId).collect(Collectors.toList()));
+        assertTrue(store.findAllByUsername(List.of()).isEmpty());
+    }
+
+    @Test
+    void testDuplicateUsernameIsRejected() {
+        JdbcUserStore store = openStore();
+        store.save(newUser("johndoe"));
+        User duplicate = newUser("johndoe");
+
+        assertThrows(DuplicateUserException.class, () -> store.save(duplicate));
+        assertNull(duplicate.getId());
+        assertEquals(1, store.findAll().size());
+    }
+
+    @Test
+    void testDuplicateEmailIsRejected() {
+        JdbcUserStore store = openStore();
+        store.save(newUser("johndoe"));
+        User other = newUser("other");
+        other.setEmail(" JohnDoe@example.com");
+
+        DuplicateUserException e = assertThrows(DuplicateUserException.class, () -> store.save(other));
+        assertEquals("email", e.getField());
+        assertNull(other.getId());
+        assertEquals("johndoe", store.findByEmail("JOHNDOE@EXAMPLE.COM").get().getUsername());
+    }
+
+    @Test
+    void testSaveAllIsAllOrNothing() {
+        JdbcUserStore store = openStore();
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            users.add(newUser("user" + i));
+        }
+        store.saveAll(users);
+        assertEquals(7, store.findAll().size());
+
+        List<User> clashing = Arrays.asList(newUser("fresh1"), newUser("fresh2"), newUser("fresh3"),
+            newUser("fresh4"), newUser("user3"));
+
+        assertThrows(DuplicateUserException.class, () -> store.saveAll(clashing));
+        assertEquals(7, store.findAll().size());
+        assertFalse(store.findByUsername("fresh1").isPresent());
+        assertNull(clashing.get(0).getId());
+    }
+
+    @Test
+    void testDataFileIsImportedIntoEmptyTable() {
+        UserRepository repository = new UserRepository(properties());
+        repository.init();
+        for (int i = 0; i < 5; i++) {
+            repository.save(newUser("user" + i));
+        }
+        repository.close();
+
+        JdbcUserStore store = openStore();
+
+        assertEquals(5, store.findAll().size());
+        assertEquals("hash-user4", store.findByUsername("user4").get().getPassword());
+        assertEquals(6L, store.save(newUser("newuser")).getId());
+    }
+}
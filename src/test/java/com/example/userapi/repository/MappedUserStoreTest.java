@@ -0,0 +1,375 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the memory-mapped user store.
+ */
+class MappedUserStoreTest {
+
+    private static final int SLOT_SIZE = 512;
+    private static final int HEADER_SIZE = 4096;
+
+    @TempDir
+    Path tempDir;
+
+    private final List<MappedUserStore> opened = new ArrayList<>();
+
+    private File mappedFile() {
+        return tempDir.resolve("users.dat").toFile();
+    }
+
+    private MappedUserStore openStore() throws IOException {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(tempDir.resolve("users.json").toFile().getAbsolutePath());
+        properties.getMapped().setFile(mappedFile().getAbsolutePath());
+        properties.getMapped().setSlotSize(SLOT_SIZE);
+        MappedUserStore store = new MappedUserStore(properties);
+        store.init();
+        opened.add(store);
+        return store;
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (MappedUserStore store : opened) {
+            store.close();
+        }
+    }
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash-" + username, Role.USER);
+    }
+
+    // Both slots of the user
+    private byte[] slotBytes(long id) throws IOException {
+        byte[] slots = new byte[2 * SLOT_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(mappedFile(), "r")) {
+            file.seek(HEADER_SIZE + (id - 1) * 2 * SLOT_SIZE);
+            file.readFully(slots);
+        }
+        return slots;
+    }
+
+    // Flips a byte inside a record, as a torn write would
+    private void corruptSlot(long id, int slot) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mappedFile(), "rw")) {
+            long position = HEADER_SIZE + (id - 1) * 2 * SLOT_SIZE + slot * SLOT_SIZE + 24;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xFF);
+        }
+    }
+
+    @Test
+    void testSaveFindUpdateDelete() throws IOException {
+        MappedUserStore store = openStore();
+
+        User john = store.save(newUser("johndoe"));
+        User jane = store.save(newUser("janesmith"));
+
+        assertEquals(1L, john.getId());
+        assertEquals(2L, jane.getId());
+        assertEquals("Name johndoe", store.findById(1L).get().getName());
+        assertEquals(2L, store.findByUsername("janesmith").get().getId());
+        assertEquals(2, store.findAll().size());
+
+        User renamed = new User(john);
+        renamed.setUsername("john_renamed");
+        store.save(renamed);
+        assertFalse(store.findByUsername("johndoe").isPresent());
+        assertEquals(1L, store.findByUsername("john_renamed").get().getId());
+
+        assertTrue(store.deleteById(2L));
+        assertFalse(store.deleteById(2L));
+        assertFalse(store.findById(2L).isPresent());
+        assertFalse(store.findByUsername("janesmith").isPresent());
+    }
+
+    @Test
+    void testUsersSurviveRestart() throws IOException {
+        MappedUserStore store = openStore();
+        store.save(newUser("johndoe"));
+        store.save(newUser("janesmith"));
+        store.deleteById(2L);
+        store.close();
+
+        MappedUserStore reopened = openStore();
+
+        assertEquals(1, reopened.findAll().size());
+        assertEquals("hash-johndoe", reopened.findByUsername("johndoe").get().getPassword());
+        // The deleted id is not handed out again
+        assertEquals(3L, reopened.save(newUser("newuser")).getId());
+    }
+
+    @Test
+    void testSearchIndexIsBuiltAfterRestartWithChangesMadeBeforeIt() throws IOException {
+        MappedUserStore store = openStore();
+        store.save(newUser("johndoe"));
+        store.save(newUser("johnsmith"));
+        store.save(newUser("janesmith"));
+        store.close();
+
+        MappedUserStore reopened = openStore();
+        // Changes before the first search only reach the index once it is built
+        assertTrue(reopened.deleteById(2L));
+        User renamed = new User(reopened.findById(3L).get());
+        renamed.setUsername("johnny");
+        reopened.save(renamed);
+
+        assertEquals(List.of(1L, 3L), reopened.searchByPrefix("john", 10).stream()
+            .map(User::getId).sorted().collect(Collectors.toList()));
+        reopened.save(newUser("johnathan"));
+        assertEquals(3, reopened.searchByPrefix("john", 10).size());
+    }
+
+    @Test
+    void testUpdateRewritesOnlyItsOwnSlot() throws IOException {
+        MappedUserStore store = openStore();
+        for (int i = 0; i < 10; i++) {
+            store.save(newUser("user" + i));
+        }
+        byte[] neighbourBefore = slotBytes(6);
+        long sizeBefore = mappedFile().length();
+
+        User user = store.findById(5L).get();
+        user.setName("Changed Name");
+        store.save(user);
+
+        assertArrayEquals(neighbourBefore, slotBytes(6));
+        assertEquals(sizeBefore, mappedFile().length());
+        assertEquals("Changed Name", store.findById(5L).get().getName());
+    }
+
+    @Test
+    void testDuplicateUsernameIsRejected() throws IOException {
+        MappedUserStore store = openStore();
+        store.save(newUser("johndoe"));
+
+        assertThrows(DuplicateUserException.class, () -> store.save(newUser("johndoe")));
+        assertEquals(1, store.findAll().size());
+    }
+
+    @Test
+    void testDuplicateEmailIsRejected() throws IOException {
+        MappedUserStore store = openStore();
+        store.save(newUser("johndoe"));
+        User other = newUser("other");
+        other.setEmail("JOHNDOE@example.com");
+
+        DuplicateUserException e = assertThrows(DuplicateUserException.class, () -> store.save(other));
+        assertEquals("email", e.getField());
+        store.close();
+
+        MappedUserStore reopened = openStore();
+        assertEquals("johndoe", reopened.findByEmail("johndoe@EXAMPLE.com").get().getUsername());
+        assertThrows(DuplicateUserException.class, () -> reopened.save(other));
+        reopened.deleteById(1L);
+        assertEquals(2L, reopened.save(other).getId());
+    }
+
+    @Test
+    void testRecordLargerThanSlotIsRejected() throws IOException {
+        MappedUserStore store = openStore();
+        User user = newUser("johndoe");
+        user.setName(new String(new char[SLOT_SIZE]).replace('\0', 'x'));
+
+        assertThrows(IllegalArgumentException.class, () -> store.save(user));
+        assertNull(user.getId());
+        assertTrue(store.findAll().isEmpty());
+    }
+
+    @Test
+    void testFirstOfImportedUsersSharingAnEmailKeepsIt() throws IOException {
+        UserRepositoryTest.writeUsersSharingAnEmail(tempDir.resolve("users.json").toFile());
+
+        UserRepositoryTest.assertFirstUserKeepsSharedEmail(openStore());
+        opened.remove(0).close();
+
+        // And again from the slots after a restart
+        MappedUserStore reopened = openStore();
+        assertEquals(1L, reopened.findByEmail("shared@example.com").get().getId());
+        assertEquals("Second Renamed", reopened.findById(2L).get().getName());
+    }
+
+    @Test
+    void testDataFileIsImportedIntoNewRecordFile() throws IOException {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(tempDir.resolve("users.json").toFile().getAbsolutePath());
+        UserRepository repository = new UserRepository(properties);
+        repository.init();
+        repository.save(newUser("johndoe"));
+        repository.save(newUser("janesmith"));
+        repository.close();
+
+        MappedUserStore store = openStore();
+
+        assertEquals(2, store.findAll().size());
+        assertEquals("hash-janesmith", store.findByUsername("janesmith").get().getPassword());
+        assertEquals(3L, store.save(newUser("newuser")).getId());
+    }
+
+    @Test
+    void testCorruptRecordIsDroppedOnStartup() throws IOException {
+        MappedUserStore store = openStore();
+        store.save(newUser("johndoe"));
+        store.save(newUser("janesmith"));
+        store.close();
+        // A user's first record goes to its second slot
+        corruptSlot(2, 1);
+
+        MappedUserStore reopened = openStore();
+
+        assertTrue(reopened.findById(1L).isPresent());
+        assertFalse(reopened.findById(2L).isPresent());
+    }
+
+    @Test
+    void testTornUpdateFallsBackToThePreviousRecord() throws IOException {
+        MappedUserStore store = openStore();
+        User user = store.save(newUser("johndoe"));
+        user.setName("Changed Name");
+        user.setEmail("changed@example.com");
+        store.save(user);
+        store.close();
+        // The update went to the first slot, next to the original record
+        corruptSlot(1, 0);
+
+        MappedUserStore reopened = openStore();
+
+        assertEquals("Name johndoe", reopened.findById(1L).get().getName());
+        assertEquals(1L, reopened.findByEmail("johndoe@example.com").get().getId());
+        // The torn slot is the one written next
+        user.setName("Changed Again");
+        reopened.save(user);
+        reopened.close();
+        assertEquals("Changed Again", openStore().findById(1L).get().getName());
+    }
+
+    @Test
+    void testSlotLeftMidWriteIsReadableAfterRestart() throws IOException {
+        MappedUserStore store = openStore();
+        store.save(newUser("johndoe"));
+        store.close();
+        // An odd sequence number, as left by a crash between the two bumps of a write
+        try (RandomAccessFile file = new RandomAccessFile(mappedFile(), "rw")) {
+            file.seek(HEADER_SIZE);
+            int sequence = file.readInt();
+            file.seek(HEADER_SIZE);
+            file.writeInt(sequence | 1);
+        }
+
+        MappedUserStore reopened = openStore();
+
+        assertEquals("Name johndoe", reopened.findById(1L).get().getName());
+        reopened.close();
+        try (RandomAccessFile file = new RandomAccessFile(mappedFile(), "r")) {
+            file.seek(HEADER_SIZE);
+            assertEquals(0, file.readInt() & 1);
+        }
+    }
+
+    @Test
+    void testSingleSlotFileIsConverted() throws IOException {
+        byte[] record = UserRecordCodec.encode(withId(newUser("johndoe"), 2L));
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        try (RandomAccessFile file = new RandomAccessFile(mappedFile(), "rw")) {
+            file.writeInt(0x5553524D);
+            file.writeInt(1);
+            file.writeInt(SLOT_SIZE);
+            file.writeInt(0);
+            file.writeLong(4);
+            file.seek(HEADER_SIZE + SLOT_SIZE + 4);
+            file.writeInt(record.length);
+            file.writeInt((int) crc.getValue());
+            file.write(record);
+            file.setLength(HEADER_SIZE + 4 * SLOT_SIZE);
+        }
+
+        MappedUserStore store = openStore();
+
+        assertEquals("hash-johndoe", store.findById(2L).get().getPassword());
+        assertEquals(4L, store.save(newUser("newuser")).getId());
+        assertTrue(new File(mappedFile().getPath() + ".v1").exists());
+    }
+
+    private User withId(User user, long id) {
+        user.setId(id);
+        return user;
+    }
+
+    @Test
+    void testReadersNeverSeeTornRecords() throws Exception {
+        MappedUserStore store = openStore();
+        for (int i = 0; i < 10; i++) {
+            store.save(newUser("user" + i));
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            readers.add(executor.submit(() -> {
+                int inconsistent = 0;
+                while (running.get()) {
+                    for (long id = 1; id <= 10; id++) {
+                        User user = store.findById(id).get();
+                        String suffix = user.getName().substring(user.getName().lastIndexOf(' ') + 1);
+                        if (!user.getEmail().startsWith(suffix + "@")) {
+                            inconsistent++;
+                        }
+                    }
+                }
+                return inconsistent;
+            }));
+        }
+        for (int round = 0; round < 300; round++) {
+            for (long id = 1; id <= 10; id++) {
+                User user = store.findById(id).get();
+                // Emails are unique, so the tag names the user too
+                String tag = "r" + round + "u" + id + "x" + "y".repeat(round % 40);
+                user.setName("Name " + tag);
+                user.setEmail(tag + "@example.com");
+                store.save(user);
+            }
+        }
+        running.set(false);
+
+        for (Future<Integer> reader : readers) {
+            assertEquals(0, reader.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    void testRecordFileIsNotTheDataFile() throws IOException {
+        MappedUserStore store = openStore();
+        store.save(newUser("johndoe"));
+
+        assertTrue(mappedFile().exists());
+        assertFalse(Files.exists(tempDir.resolve("users.json")));
+    }
+}
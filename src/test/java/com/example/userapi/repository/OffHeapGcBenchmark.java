@@ -0,0 +1,137 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.Durability;
+import com.example.userapi.config.StorageProperties.PersistenceMode;
+import com.example.userapi.config.StorageProperties.Records;
+import com.example.userapi.model.User;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GC pauses of the file engine with users on the heap against users off the heap, under a mix
+ * of lookups, updates and listings.
+ *
+ * <p>Not part of the surefire suite; run {@link #main(String[])} from the test classpath with the
+ * heap of the target container, e.g. {@code -Xmx4g -XX:MaxDirectMemorySize=4g}, and optionally
+ * the number of users (default 2,000,000) and the mode ({@code heap} or {@code off-heap}; both
+ * by default). For the cleanest numbers run each mode in its own JVM. "full GC" is the pause of
+ * an explicit {@code System.gc()}, which has to trace every live object.
+ */
+public class OffHeapGcBenchmark {
+
+    private static final long WORKLOAD_MILLIS = 30_000;
+
+    private static final AtomicLong pauses = new AtomicLong();
+    private static final AtomicLong pauseMillis = new AtomicLong();
+    private static final AtomicLong maxPauseMillis = new AtomicLong();
+
+    public static void main(String[] args) throws IOException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Records[] modes = args.length > 1
+            ? new Records[] {Records.valueOf(args[1].toUpperCase().replace('-', '_'))}
+            : Records.values();
+        listenForPauses();
+
+        Path dir = Files.createTempDirectory("user-gc-bench");
+        File dataFile = dir.resolve("users.json").toFile();
+
+        System.out.printf("%10s %10s %14s %14s %12s %8s %14s %14s%n", "records", "users",
+            "heap used MB", "full GC ms", "ops/s", "pauses", "pause total ms", "max pause ms");
+        for (Records mode : modes) {
+            UserRepositoryLookupBenchmark.writeUsers(dataFile, users);
+            StorageProperties properties = new StorageProperties();
+            properties.setDataFile(dataFile.getAbsolutePath());
+            // Updates go to the log, so rewriting the data file does not drown out the GC
+            properties.setPersistence(PersistenceMode.WAL);
+            properties.setDurability(Durability.ASYNC);
+            properties.setRecords(mode);
+            UserRepository repository = new UserRepository(properties);
+            repository.init();
+
+            long heapUsed = heapUsedAfterGc();
+            long start = System.nanoTime();
+            System.gc();
+            long fullGcMillis = (System.nanoTime() - start) / 1_000_000;
+
+            pauses.set(0);
+            pauseMillis.set(0);
+            maxPauseMillis.set(0);
+            long operations = runWorkload(repository, users);
+
+            System.out.printf("%10s %10d %14d %14d %12d %8d %14d %14d%n", mode, users, heapUsed / (1024 * 1024),
+                fullGcMillis, operations * 1000 / WORKLOAD_MILLIS, pauses.get(), pauseMillis.get(), maxPauseMillis.get());
+            repository.close();
+            dataFile.delete();
+            new File(dataFile.getPath() + ".log").delete();
+            new File(dataFile.getPath() + ".log.sealed").delete();
+        }
+    }
+
+    /**
+     * Mostly lookups by id, one update per 20 operations and a full listing, read end to end
+     * as a response would be, every 200,000.
+     */
+    private static long runWorkload(UserRepository repository, int users) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long deadline = System.currentTimeMillis() + WORKLOAD_MILLIS;
+        long operations = 0;
+        while (System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < 1_000; i++, operations++) {
+                long id = random.nextInt(users) + 1;
+                if (operations % 200_000 == 0) {
+                    long ages = 0;
+                    for (User user : repository.findAll()) {
+                        ages += user.getAge();
+                    }
+                    if (ages == 0) {
+                        throw new IllegalStateException("Expected users");
+                    }
+                } else if (operations % 20 == 0) {
+                    User user = new User(repository.findById(id).get());
+                    user.setAge(18 + random.nextInt(60));
+                    repository.save(user);
+                } else if (!repository.findById(id).isPresent()) {
+                    throw new IllegalStateException("Missing user " + id);
+                }
+            }
+        }
+        return operations;
+    }
+
+    private static long heapUsedAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void listenForPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // Concurrent cycles run next to the application and are not pauses
+                if (info.getGcName().contains("Concurrent") || info.getGcCause().equals("System.gc()")) {
+                    return;
+                }
+                long duration = info.getGcInfo().getDuration();
+                pauses.incrementAndGet();
+                pauseMillis.addAndGet(duration);
+                maxPauseMillis.accumulateAndGet(duration, Math::max);
+            }, null, null);
+        }
+    }
+}
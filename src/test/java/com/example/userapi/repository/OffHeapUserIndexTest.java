@@ -0,0 +1,177 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.Records;
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the off-heap user index and the file engine running on it.
+ */
+class OffHeapUserIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final OffHeapUserIndex index = new OffHeapUserIndex();
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash-" + username, Role.USER);
+    }
+
+    private User newUser(long id, String username) {
+        User user = newUser(username);
+        user.setId(id);
+        return user;
+    }
+
+    @Test
+    void testPutFindRenameRemove() {
+        index.put(newUser(1, "johndoe"));
+        index.put(newUser(2, "janesmith"));
+
+        assertEquals("johndoe", index.findById(1L).get().getUsername());
+        assertEquals(2L, index.findByUsername("janesmith").get().getId());
+        assertEquals(2, index.size());
+        assertEquals(2, index.maxId());
+
+        User renamed = newUser(1, "johnny");
+        renamed.setEnabled(false);
+        index.put(renamed);
+        assertFalse(index.findByUsername("johndoe").isPresent());
+        assertFalse(index.findById(1L).get().isEnabled());
+        assertEquals(2, index.size());
+
+        assertThrows(DuplicateUserException.class, () -> index.checkUnique(newUser(3, "johnny")));
+        User sameEmail = newUser(3, "other");
+        sameEmail.setEmail("Johnny@Example.com");
+        assertEquals("email", assertThrows(DuplicateUserException.class, () -> index.checkUnique(sameEmail)).getField());
+        assertEquals(1L, index.findByEmail("JOHNNY@example.com").get().getId());
+        assertFalse(index.findByEmail("johndoe@example.com").isPresent());
+
+        assertTrue(index.remove(1L));
+        assertFalse(index.remove(1L));
+        assertFalse(index.findById(1L).isPresent());
+        assertFalse(index.findByUsername("johnny").isPresent());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void testRejectsIdsOutsideTheLocationPages() {
+        assertThrows(IllegalArgumentException.class, () -> index.put(newUser(0, "zero")));
+        assertThrows(IllegalArgumentException.class, () -> index.put(newUser(1L << 40, "huge")));
+        assertFalse(index.findById(1L << 40).isPresent());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void testListingKeepsItsUsersWhileTheyChange() {
+        for (long id = 1; id <= 100; id++) {
+            index.put(newUser(id, "user" + id));
+        }
+        List<User> listing = index.findAll();
+        assertSame(listing, index.findAll());
+
+        // Replacing and removing every user frees all the slots the listing reads; new users
+        // must not be written into them while it is reachable
+        for (long id = 1; id <= 100; id++) {
+            User changed = newUser(id, "renamed" + id);
+            index.put(changed);
+            index.remove(id);
+            index.put(newUser(id + 100, "other" + id));
+        }
+
+        assertEquals(100, listing.size());
+        for (int i = 0; i < listing.size(); i++) {
+            assertTrue(listing.get(i).getUsername().startsWith("user"), listing.get(i).getUsername());
+        }
+        assertEquals(100, index.findAll().size());
+        assertNotSame(listing, index.findAll());
+    }
+
+    @Test
+    void testReadersSeeWholeUsersWhileTheWriterChurns() throws InterruptedException {
+        for (long id = 1; id <= 100; id++) {
+            index.put(newUser(id, "user" + id));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                for (long id = 1; id <= 100; id++) {
+                    User user = index.findById(id).orElse(null);
+                    if (user == null || user.getId() != id || !user.getEmail().startsWith(user.getUsername())) {
+                        failure.compareAndSet(null, "Bad read of id " + id + ": " + user);
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int round = 0; round < 500; round++) {
+            for (long id = 1; id <= 100; id++) {
+                index.put(newUser(id, "user" + id + "_" + round));
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    void testFreedSlotsAreReused() {
+        // Without reuse this would take about 80 MB, more than the first chunk
+        for (int round = 0; round < 600_000; round++) {
+            index.put(newUser(1, "user" + round % 10));
+        }
+        assertEquals(64L * 1024 * 1024, index.offHeapBytes());
+    }
+
+    @Test
+    void testFirstOfUsersSharingAnEmailKeepsIt() throws IOException {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(tempDir.resolve("users.json").toFile().getAbsolutePath());
+        properties.setRecords(Records.OFF_HEAP);
+        UserRepositoryTest.writeUsersSharingAnEmail(tempDir.resolve("users.json").toFile());
+        UserRepository repository = new UserRepository(properties);
+        repository.init();
+        try {
+            UserRepositoryTest.assertFirstUserKeepsSharedEmail(repository);
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    void testFileEngineWithOffHeapRecordsSurvivesRestart() {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(tempDir.resolve("users.json").toFile().getAbsolutePath());
+        properties.setRecords(Records.OFF_HEAP);
+        UserRepository repository = new UserRepository(properties);
+        repository.init();
+        User john = repository.save(newUser("johndoe"));
+        repository.save(newUser("janesmith"));
+        repository.deleteById(john.getId());
+        repository.close();
+
+        UserRepository reopened = new UserRepository(properties);
+        reopened.init();
+        try {
+            assertEquals(1, reopened.findAll().size());
+            assertEquals("janesmith", reopened.findAll().get(0).getUsername());
+            assertEquals(3L, reopened.save(newUser("newcomer")).getId());
+        } finally {
+            reopened.close();
+        }
+    }
+}
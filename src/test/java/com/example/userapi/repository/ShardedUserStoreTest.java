@@ -0,0 +1,376 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the hash-partitioned user store.
+ */
+class ShardedUserStoreTest {
+
+    private static final int SHARDS = 4;
+
+    @TempDir
+    Path tempDir;
+
+    private final List<ShardedUserStore> opened = new ArrayList<>();
+
+    private StorageProperties properties(int shards) {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(tempDir.resolve("users.json").toFile().getAbsolutePath());
+        properties.setShards(shards);
+        return properties;
+    }
+
+    private ShardedUserStore openStore(int shards) {
+        ShardedUserStore store = new ShardedUserStore(properties(shards));
+        store.init();
+        opened.add(store);
+        return store;
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (ShardedUserStore store : opened) {
+            store.close();
+        }
+    }
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash-" + username, Role.USER);
+    }
+
+    @Test
+    void testUsersAreSpreadOverShardFiles() {
+        ShardedUserStore store = openStore(SHARDS);
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i + 1L, store.save(newUser("user" + i)).getId());
+        }
+
+        Set<Integer> used = new HashSet<>();
+        for (long id = 1; id <= 40; id++) {
+            used.add(store.shardIndex(id));
+            assertEquals("user" + (id - 1), store.findById(id).get().getUsername());
+        }
+        assertEquals(SHARDS, used.size());
+        for (int i = 0; i < SHARDS; i++) {
+            assertTrue(store.shardFile(i).exists());
+        }
+        assertEquals(tempDir.resolve("users-shard-2.json").toFile(), store.shardFile(2));
+        List<User> all = store.findAll();
+        assertEquals(40, all.size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i + 1L, all.get(i).getId());
+        }
+    }
+
+    @Test
+    void testUpdateDeleteAndRestart() {
+        ShardedUserStore store = openStore(SHARDS);
+        for (int i = 0; i < 10; i++) {
+            store.save(newUser("user" + i));
+        }
+        User renamed = new User(store.findById(3L).get());
+        renamed.setUsername("renamed");
+        store.save(renamed);
+        assertTrue(store.deleteById(5L));
+        assertFalse(store.deleteById(5L));
+        store.close();
+
+        ShardedUserStore reopened = openStore(SHARDS);
+
+        assertEquals(9, reopened.findAll().size());
+        assertFalse(reopened.findByUsername("user2").isPresent());
+        assertEquals(3L, reopened.findByUsername("renamed").get().getId());
+        assertFalse(reopened.findById(5L).isPresent());
+        assertEquals(11L, reopened.save(newUser("newuser")).getId());
+    }
+
+    @Test
+    void testUsernameIsUniqueAcrossShards() {
+        ShardedUserStore store = openStore(SHARDS);
+        store.save(newUser("johndoe"));
+        User duplicate = newUser("johndoe");
+
+        assertThrows(DuplicateUserException.class, () -> store.save(duplicate));
+        assertNull(duplicate.getId());
+
+        // A freed name can be taken by a user in another shard
+        store.deleteById(1L);
+        User next = store.save(newUser("johndoe"));
+        assertNotEquals(store.shardIndex(1L), store.shardIndex(next.getId()));
+        assertEquals(next.getId(), store.findByUsername("johndoe").get().getId());
+    }
+
+    @Test
+    void testConcurrentSavesClaimAnEmailOnce() throws Exception {
+        ShardedUserStore store = openStore(SHARDS);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> saves = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            User user = newUser("user" + i);
+            user.setEmail(i % 2 == 0 ? "shared@example.com" : "SHARED@example.com");
+            saves.add(executor.submit(() -> {
+                try {
+                    store.save(user);
+                    return true;
+                } catch (DuplicateUserException e) {
+                    return false;
+                }
+            }));
+        }
+        int stored = 0;
+        for (Future<Boolean> save : saves) {
+            stored += save.get() ? 1 : 0;
+        }
+        executor.shutdown();
+
+        assertEquals(1, stored);
+        assertEquals(1, store.findAll().size());
+        assertEquals(store.findAll().get(0).getId(), store.findByEmail("shared@example.com").get().getId());
+    }
+
+    @Test
+    void testConcurrentRenamesOfOneUserLeaveOnlyItsNameTaken() throws Exception {
+        ShardedUserStore store = openStore(SHARDS);
+        Long id = store.save(newUser("original")).getId();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> renames = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            String username = "name" + i % 4;
+            renames.add(executor.submit(() -> {
+                User renamed = new User(store.findById(id).get());
+                renamed.setUsername(username);
+                return store.save(renamed);
+            }));
+        }
+        for (Future<?> rename : renames) {
+            rename.get();
+        }
+        executor.shutdown();
+
+        // Every name the user no longer has is free again
+        String current = store.findById(id).get().getUsername();
+        for (int i = 0; i < 4; i++) {
+            String username = "name" + i;
+            if (!username.equals(current)) {
+                assertNotNull(store.save(newUser(username)).getId(), username);
+            }
+        }
+        User taker = newUser("original");
+        taker.setEmail("taker@example.com");
+        assertNotNull(store.save(taker).getId());
+        assertThrows(DuplicateUserException.class, () -> store.save(newUser(current)));
+    }
+
+    @Test
+    void testSaveBatchAcrossShards() {
+        ShardedUserStore store = openStore(SHARDS);
+        List<User> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(newUser("user" + i));
+        }
+        User clash = newUser("user3");
+        clash.setEmail("unique@example.com");
+        batch.add(clash);
+
+        List<RuntimeException> failures = store.saveBatch(batch);
+
+        assertEquals(21, failures.size());
+        assertTrue(failures.subList(0, 20).stream().allMatch(failure -> failure == null));
+        assertTrue(failures.get(20) instanceof DuplicateUserException);
+        assertNull(clash.getId());
+        // The rejected user's email was released along with its id
+        User unique = store.save(newUser("unique"));
+        assertEquals(unique.getId(), store.findByEmail("unique@example.com").get().getId());
+
+        store.close();
+        ShardedUserStore reopened = openStore(SHARDS);
+        assertEquals(21, reopened.findAll().size());
+        assertEquals(4L, reopened.findByUsername("user3").get().getId());
+    }
+
+    @Test
+    void testFindAllByIdAndByUsernameAcrossShards() {
+        ShardedUserStore store = openStore(SHARDS);
+        for (int i = 0; i < 12; i++) {
+            store.save(newUser("user" + i));
+        }
+
+        List<User> byId = store.findAllById(List.of(9L, 2L, 99L, 5L, 12L));
+        List<User> byUsername = store.findAllByUsername(List.of("user11", "nobody", "user0", "user7"));
+
+        assertEquals(List.of(9L, 2L, 5L, 12L), byId.stream().map(User::getId).collect(Collectors.toList()));
+        assertEquals(List.of(12L, 1L, 8L), byUsername.stream().map(User::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testPrefixSearchMergesShards() {
+        ShardedUserStore store = openStore(SHARDS);
+        for (int i = 0; i < 40; i++) {
+            store.save(newUser("user" + i));
+        }
+
+        List<User> found = store.searchByPrefix("user1", 4);
+
+        assertEquals(4, found.size());
+        assertEquals("user1", found.get(0).getUsername());
+        assertEquals("user10", found.get(1).getUsername());
+        assertEquals("user11", found.get(2).getUsername());
+        assertEquals("user12", found.get(3).getUsername());
+    }
+
+    @Test
+    void testSubstringSearchPagesAcrossShards() {
+        ShardedUserStore store = openStore(SHARDS);
+        for (int i = 0; i < 40; i++) {
+            store.save(newUser("user" + i));
+        }
+
+        List<User> first = store.searchBySubstring("USER", 0, 25);
+        List<User> second = store.searchBySubstring("user", first.get(24).getId(), 25);
+
+        assertEquals(25, first.size());
+        assertEquals(15, second.size());
+        for (int i = 0; i < 40; i++) {
+            User user = i < 25 ? first.get(i) : second.get(i - 25);
+            assertEquals(i + 1L, user.getId());
+        }
+    }
+
+    @Test
+    void testFilteredListingAcrossShards() {
+        ShardedUserStore store = openStore(SHARDS);
+        for (int i = 0; i < 40; i++) {
+            User user = newUser("user" + i);
+            user.setAge(20 + i);
+            user.setRole(i % 3 == 0 ? Role.MANAGER : Role.USER);
+            store.save(user);
+        }
+
+        List<User> found = store.findAll(new UserFilter(Role.MANAGER, null, 30, 50), 0, 100);
+
+        // Managers are every third user; ages 30 to 50 are users 10 to 30
+        assertEquals(List.of(13L, 16L, 19L, 22L, 25L, 28L, 31L), found.stream().map(User::getId).collect(Collectors.toList()));
+        assertEquals(List.of(13L, 16L), store.findAll(new UserFilter(Role.MANAGER, null, 30, 50), 0, 2)
+            .stream().map(User::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testFindAllReusesSnapshotUntilNextChange() {
+        ShardedUserStore store = openStore(SHARDS);
+        store.save(newUser("johndoe"));
+
+        List<User> first = store.findAll();
+        assertSame(first, store.findAll());
+
+        store.save(newUser("janesmith"));
+        assertNotSame(first, store.findAll());
+        assertEquals(2, store.findAll().size());
+    }
+
+    @Test
+    void testConcurrentSavesAcrossShards() throws Exception {
+        ShardedUserStore store = openStore(SHARDS);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    store.save(newUser("t" + thread + "u" + i));
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        executor.shutdown();
+
+        assertEquals(400, store.findAll().size());
+        Set<Long> ids = new HashSet<>();
+        for (User user : store.findAll()) {
+            assertTrue(ids.add(user.getId()));
+        }
+    }
+
+    @Test
+    void testSingleDataFileIsMigrated() {
+        UserRepository repository = new UserRepository(properties(SHARDS));
+        repository.init();
+        for (int i = 0; i < 20; i++) {
+            repository.save(newUser("user" + i));
+        }
+        repository.deleteById(5L);
+        repository.close();
+        File legacyFile = tempDir.resolve("users.json").toFile();
+
+        ShardedUserStore store = openStore(SHARDS);
+
+        assertFalse(legacyFile.exists());
+        assertTrue(new File(legacyFile.getPath() + ".migrated").exists());
+        assertEquals(19, store.findAll().size());
+        assertEquals("hash-user7", store.findByUsername("user7").get().getPassword());
+        assertFalse(store.findById(5L).isPresent());
+        assertEquals(21L, store.save(newUser("newuser")).getId());
+        store.close();
+
+        // Each shard file holds only its own users, so a restart finds them all again
+        ShardedUserStore reopened = openStore(SHARDS);
+        assertEquals(20, reopened.findAll().size());
+    }
+
+    @Test
+    void testFirstOfUsersSharingAnEmailKeepsIt() throws IOException {
+        UserRepositoryTest.writeUsersSharingAnEmail(tempDir.resolve("users.json").toFile());
+
+        UserRepositoryTest.assertFirstUserKeepsSharedEmail(openStore(SHARDS));
+    }
+
+    @Test
+    void testChangeListenersHearFromEveryShard() {
+        ShardedUserStore store = openStore(SHARDS);
+        List<Long> changed = new CopyOnWriteArrayList<>();
+        store.addChangeListener(changed::add);
+
+        for (int i = 0; i < 8; i++) {
+            store.save(newUser("user" + i));
+        }
+        store.saveBatch(List.of(newUser("user8"), newUser("user0")));
+        store.deleteById(3L);
+        store.deleteById(99L);
+
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 3L), changed);
+    }
+
+    @Test
+    void testLoweringShardCountIsRejected() {
+        ShardedUserStore store = openStore(SHARDS);
+        for (int i = 0; i < 10; i++) {
+            store.save(newUser("user" + i));
+        }
+        store.close();
+
+        assertThrows(IllegalStateException.class, () -> openStore(2));
+    }
+}
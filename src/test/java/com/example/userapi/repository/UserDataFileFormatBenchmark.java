@@ -0,0 +1,55 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.FileFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * File size and startup load time of the JSON and binary data file formats.
+ *
+ * <p>Not part of the surefire suite; run {@link #main(String[])} from the test classpath with
+ * enough heap for the users, e.g. {@code -Xmx2g}. The optional argument is the user count
+ * (default 1,000,000).
+ */
+public class UserDataFileFormatBenchmark {
+
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path dir = Files.createTempDirectory("user-format-bench");
+        File jsonFile = dir.resolve("users.json").toFile();
+        File binaryFile = dir.resolve("users.bin").toFile();
+        UserRepositoryLookupBenchmark.writeUsers(jsonFile, count);
+        UserDataFileConverter.convert(jsonFile, binaryFile, FileFormat.BINARY);
+
+        System.out.printf("%8s %14s %14s%n", "format", "size bytes", "best load ms");
+        report(FileFormat.JSON, jsonFile, count);
+        report(FileFormat.BINARY, binaryFile, count);
+        jsonFile.delete();
+        binaryFile.delete();
+    }
+
+    private static void report(FileFormat format, File file, int count) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            StorageProperties properties = new StorageProperties();
+            properties.setDataFile(file.getAbsolutePath());
+            properties.setFormat(format);
+            UserRepository repository = new UserRepository(properties);
+            System.gc();
+            long start = System.nanoTime();
+            repository.init();
+            best = Math.min(best, (System.nanoTime() - start) / 1_000_000);
+            if (repository.findAll().size() != count) {
+                throw new IllegalStateException("Expected " + count + " users");
+            }
+            repository.close();
+        }
+        System.out.printf("%8s %14d %14d%n", format, file.length(), best);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lookup latency of {@link UserIdMap} against the {@code ConcurrentHashMap<Long, ...>} it
+ * replaced as the id index, at growing user counts.
+ *
+ * <p>Not part of the surefire suite; run {@link #main(String[])} from the test classpath. Ids are
+ * drawn from a pre-filled {@code long[]}, so the map lookup boxes each id, as a lookup through
+ * {@code findById} would for ids outside the {@code Long} cache.
+ */
+public class UserIdMapBenchmark {
+
+    private static final int[] SIZES = {1_000, 100_000, 1_000_000, 4_000_000};
+    private static final int LOOKUPS = 10_000_000;
+
+    public static void main(String[] args) {
+        System.out.printf("%10s %22s %22s%n", "users", "ConcurrentHashMap ns/op", "UserIdMap ns/op");
+        for (int size : SIZES) {
+            Map<Long, CompactUser> hashMap = new ConcurrentHashMap<>();
+            UserIdMap idMap = new UserIdMap();
+            for (long id = 1; id <= size; id++) {
+                CompactUser user = newUser(id);
+                hashMap.put(id, user);
+                idMap.put(user);
+            }
+            long[] ids = new long[1 << 16];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = random.nextInt(size) + 1;
+            }
+
+            // Warm up both paths before measuring
+            lookupHashMap(hashMap, ids);
+            lookupIdMap(idMap, ids);
+
+            System.out.printf("%10d %22.1f %22.1f%n", size, lookupHashMap(hashMap, ids), lookupIdMap(idMap, ids));
+        }
+    }
+
+    private static CompactUser newUser(long id) {
+        User user = new User("User " + id, "user" + id + "@example.com", 30, "user" + id, null, Role.USER);
+        user.setId(id);
+        return CompactUser.of(user);
+    }
+
+    private static double lookupHashMap(Map<Long, CompactUser> map, long[] ids) {
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (map.get(ids[i & (ids.length - 1)]) != null) {
+                found++;
+            }
+        }
+        return elapsedPerOp(start, found);
+    }
+
+    private static double lookupIdMap(UserIdMap map, long[] ids) {
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (map.get(ids[i & (ids.length - 1)]) != null) {
+                found++;
+            }
+        }
+        return elapsedPerOp(start, found);
+    }
+
+    private static double elapsedPerOp(long start, long found) {
+        double nanosPerOp = (double) (System.nanoTime() - start) / LOOKUPS;
+        if (found != LOOKUPS) {
+            throw new IllegalStateException("Expected every lookup to hit, got " + found);
+        }
+        return nanosPerOp;
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the open-addressing id index, including reads that overlap a resize.
+ */
+class UserIdMapTest {
+
+    private final UserIdMap map = new UserIdMap();
+
+    private static CompactUser newUser(long id, int age) {
+        User user = new User("User " + id, "user" + id + "@example.com", age, "user" + id, "hash", Role.USER);
+        user.setId(id);
+        return CompactUser.of(user);
+    }
+
+    @Test
+    void testPutGetReplaceRemoveAcrossResizes() {
+        for (long id = 1; id <= 10_000; id++) {
+            assertNull(map.put(newUser(id, 20)));
+        }
+        assertEquals(10_000, map.size());
+        for (long id = 1; id <= 10_000; id++) {
+            assertEquals(id, map.get(id).id());
+        }
+        assertNull(map.get(0));
+        assertNull(map.get(10_001));
+
+        CompactUser replaced = map.put(newUser(500, 40));
+        assertEquals(20, replaced.age());
+        assertEquals(40, map.get(500).age());
+        assertEquals(10_000, map.size());
+
+        for (long id = 1; id <= 10_000; id += 2) {
+            assertNotNull(map.remove(id));
+        }
+        assertNull(map.remove(1));
+        assertEquals(5_000, map.size());
+        assertNull(map.get(9_999));
+        assertEquals(10_000, map.get(10_000).id());
+        assertEquals(10_000, map.maxId());
+    }
+
+    @Test
+    void testValuesHasEveryEntryOnceDuringResize() {
+        // Enough changes to be in the middle of draining the old table at several points
+        for (long id = 1; id <= 3_000; id++) {
+            map.put(newUser(id, 20));
+            if (id % 7 == 0) {
+                map.remove(id - 3);
+            }
+            if (id % 250 == 0) {
+                List<CompactUser> values = map.values();
+                Set<Long> ids = new HashSet<>();
+                for (CompactUser user : values) {
+                    assertTrue(ids.add(user.id()), "Duplicate id " + user.id());
+                }
+                assertEquals(map.size(), values.size());
+            }
+        }
+    }
+
+    @Test
+    void testChurnDoesNotStallTable() {
+        // Inserting and removing fresh ids leaves tombstones; the table must keep reclaiming them
+        for (long id = 1; id <= 100_000; id++) {
+            map.put(newUser(id, 20));
+            map.remove(id);
+        }
+        assertEquals(0, map.size());
+        assertTrue(map.values().isEmpty());
+    }
+
+    @Test
+    void testReadersNeverMissStableEntriesWhileWriterResizes() throws InterruptedException {
+        for (long id = 1; id <= 1_000; id++) {
+            map.put(newUser(id, 20));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                while (!done.get()) {
+                    for (long id = 1; id <= 1_000; id++) {
+                        if (map.get(id) == null) {
+                            failure.compareAndSet(null, "Missed id " + id);
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        // Grows through several resizes, then churns to force same-size rebuilds
+        for (long id = 1_001; id <= 200_000; id++) {
+            map.put(newUser(id, 20));
+            map.put(newUser((id % 1_000) + 1, (int) (id % 100)));
+        }
+        for (long id = 1_001; id <= 200_000; id++) {
+            map.remove(id);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals(1_000, map.size());
+    }
+}
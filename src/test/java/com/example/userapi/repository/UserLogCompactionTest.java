@@ -0,0 +1,122 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.PersistenceMode;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for folding the write-ahead log into snapshots of the data file.
+ */
+class UserLogCompactionTest {
+
+    @TempDir
+    Path tempDir;
+
+    private StorageProperties properties;
+    private File dataFile;
+    private File logFile;
+    private File sealedLogFile;
+    private UserRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        dataFile = tempDir.resolve("test-users.json").toFile();
+        logFile = tempDir.resolve("test-users.json.log").toFile();
+        sealedLogFile = tempDir.resolve("test-users.json.log.sealed").toFile();
+        properties = new StorageProperties();
+        properties.setDataFile(dataFile.getAbsolutePath());
+        properties.setPersistence(PersistenceMode.WAL);
+        properties.getCompaction().setSnapshotInterval(Duration.ofHours(1));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (repository != null) {
+            repository.close();
+        }
+    }
+
+    private UserRepository openRepository() {
+        repository = new UserRepository(properties);
+        repository.init();
+        return repository;
+    }
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash", Role.USER);
+    }
+
+    @Test
+    void testCompactionWritesSnapshotAndEmptiesLog() throws IOException {
+        openRepository();
+        User john = repository.save(newUser("johndoe"));
+        repository.save(newUser("janesmith"));
+        repository.deleteById(john.getId());
+
+        repository.compactLog();
+
+        assertTrue(dataFile.exists());
+        assertFalse(sealedLogFile.exists());
+        assertEquals(0, Files.size(logFile.toPath()));
+
+        repository.close();
+        openRepository();
+        assertEquals(1, repository.findAll().size());
+        assertTrue(repository.findByUsername("janesmith").isPresent());
+    }
+
+    @Test
+    void testRecordThresholdTriggersBackgroundCompaction() throws Exception {
+        properties.getCompaction().setMaxLogRecords(3);
+        openRepository();
+
+        repository.save(newUser("user1"));
+        repository.save(newUser("user2"));
+        repository.save(newUser("user3"));
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!dataFile.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(dataFile.exists(), "Snapshot should be written once the log reaches the threshold");
+        repository.save(newUser("user4"));
+
+        repository.close();
+        openRepository();
+        assertEquals(4, repository.findAll().size());
+    }
+
+    @Test
+    void testSealedLogFromInterruptedCompactionIsReplayed() throws IOException {
+        openRepository();
+        repository.save(newUser("johndoe"));
+        repository.close();
+        // Simulate a crash right after the rotation: the sealed segment exists, no snapshot yet
+        Files.move(logFile.toPath(), sealedLogFile.toPath());
+
+        openRepository();
+        repository.save(newUser("janesmith"));
+
+        assertTrue(repository.findByUsername("johndoe").isPresent());
+        assertTrue(repository.findByUsername("janesmith").isPresent());
+        repository.compactLog();
+        assertFalse(sealedLogFile.exists());
+
+        repository.close();
+        openRepository();
+        assertEquals(2, repository.findAll().size());
+    }
+}
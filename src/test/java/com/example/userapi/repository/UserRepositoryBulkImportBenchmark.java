@@ -0,0 +1,79 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.PersistenceMode;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Time to import 100,000 users through {@link UserRepository#saveBatch(List)} in batches of 1000,
+ * as {@code POST /api/users/bulk} does, for each {@link PersistenceMode} with the default
+ * durability.
+ *
+ * <p>Not part of the surefire suite; run {@link #main(String[])} from the test classpath. Pass a
+ * directory as the first argument to benchmark a specific disk; the default is the system temp
+ * directory.
+ */
+public class UserRepositoryBulkImportBenchmark {
+
+    private static final int USERS = 100_000;
+    private static final int BATCH_SIZE = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Path baseDir = args.length > 0 ? Paths.get(args[0]) : Paths.get(System.getProperty("java.io.tmpdir"));
+        System.out.printf("%-12s %10s %14s%n", "persistence", "total ms", "max batch ms");
+        for (PersistenceMode persistence : PersistenceMode.values()) {
+            // Warm-up round, then the measured one
+            run(baseDir, persistence);
+            long[] result = run(baseDir, persistence);
+            System.out.printf("%-12s %10d %14d%n", persistence, result[0], result[1]);
+        }
+    }
+
+    /**
+     * @return total and slowest batch time in milliseconds
+     */
+    private static long[] run(Path baseDir, PersistenceMode persistence) throws Exception {
+        Path dir = Files.createTempDirectory(baseDir, "user-bulk-import-bench");
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(dir.resolve("users.json").toString());
+        properties.setPersistence(persistence);
+        UserRepository repository = new UserRepository(properties);
+        repository.init();
+
+        long slowest = 0;
+        long start = System.nanoTime();
+        for (int first = 0; first < USERS; first += BATCH_SIZE) {
+            List<User> batch = new ArrayList<>(BATCH_SIZE);
+            for (int n = first; n < first + BATCH_SIZE; n++) {
+                batch.add(new User("User " + n, "user" + n + "@example.com", 30,
+                    "user" + n, "$2a$10$abcdefghijklmnopqrstuvwxyz0123456789ABCDEFGHIJKLMNOPQ", Role.USER));
+            }
+            long begin = System.nanoTime();
+            for (RuntimeException failure : repository.saveBatch(batch)) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            slowest = Math.max(slowest, System.nanoTime() - begin);
+        }
+        long elapsed = System.nanoTime() - start;
+        repository.close();
+        deleteRecursively(dir);
+        return new long[] {elapsed / 1_000_000, slowest / 1_000_000};
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.PersistenceMode;
+import com.example.userapi.exception.DuplicateUserException;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the single writer thread that applies all mutations of the repository.
+ */
+class UserRepositoryConcurrencyTest {
+
+    @TempDir
+    Path tempDir;
+
+    private UserRepository repository;
+
+    private UserRepository openRepository(PersistenceMode mode) {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(tempDir.resolve("test-users.json").toFile().getAbsolutePath());
+        properties.setPersistence(mode);
+        repository = new UserRepository(properties);
+        repository.init();
+        return repository;
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (repository != null) {
+            repository.close();
+        }
+    }
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash", Role.USER);
+    }
+
+    @Test
+    void testConcurrentSavesOfOneUsernameAdmitExactlyOne() throws Exception {
+        openRepository(PersistenceMode.WAL);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<User>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(executor.submit(() -> repository.save(newUser("johndoe"))));
+        }
+        int saved = 0;
+        int rejected = 0;
+        for (Future<User> future : futures) {
+            try {
+                future.get();
+                saved++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DuplicateUserException);
+                rejected++;
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(1, saved);
+        assertEquals(49, rejected);
+        assertEquals(1, repository.findAll().size());
+    }
+
+    @Test
+    void testConcurrentSavesGetDistinctIds() throws Exception {
+        openRepository(PersistenceMode.SNAPSHOT);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<User>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String username = "user" + i;
+            futures.add(executor.submit(() -> repository.save(newUser(username))));
+        }
+        Set<Long> ids = new HashSet<>();
+        for (Future<User> future : futures) {
+            ids.add(future.get().getId());
+        }
+        executor.shutdown();
+
+        assertEquals(200, ids.size());
+        assertEquals(200, repository.findAll().size());
+    }
+
+    @Test
+    void testReadersSeeConsistentUsersWhileWritersUpdate() throws Exception {
+        openRepository(PersistenceMode.WAL);
+        for (int i = 0; i < 20; i++) {
+            repository.save(newUser("user" + i));
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Future<Integer> reader = executor.submit(() -> {
+            int inconsistent = 0;
+            while (running.get()) {
+                for (User user : repository.findAll()) {
+                    // Writers always change name and email together
+                    String suffix = user.getName().substring(user.getName().lastIndexOf(' ') + 1);
+                    if (!user.getEmail().startsWith(suffix + "@")) {
+                        inconsistent++;
+                    }
+                }
+            }
+            return inconsistent;
+        });
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < 3; w++) {
+            int writer = w;
+            writers.add(executor.submit(() -> {
+                for (int round = 0; round < 200; round++) {
+                    for (User stored : repository.findAll()) {
+                        User user = new User(stored);
+                        // Emails are unique, so the tag names the user too
+                        String tag = "w" + writer + "r" + round + "u" + stored.getId();
+                        user.setName("Name " + tag);
+                        user.setEmail(tag + "@example.com");
+                        repository.save(user);
+                    }
+                }
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        running.set(false);
+
+        assertEquals(0, reader.get());
+        executor.shutdown();
+    }
+
+    @Test
+    void testPagesSeeEveryLastingUserOnceWhileOthersComeAndGo() throws Exception {
+        openRepository(PersistenceMode.WAL);
+        Set<Long> lasting = new HashSet<>();
+        for (int i = 0; i < 300; i++) {
+            lasting.add(repository.save(newUser("user" + i)).getId());
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> writer = executor.submit(() -> {
+            for (int i = 0; running.get(); i++) {
+                User added = repository.save(newUser("temp" + i));
+                if (i % 2 == 0) {
+                    repository.deleteById(added.getId());
+                }
+            }
+        });
+        UserFilter everyone = new UserFilter(null, null, null, null);
+        for (int pass = 0; pass < 20; pass++) {
+            Set<Long> seen = new HashSet<>();
+            long after = 0;
+            List<User> page;
+            do {
+                page = repository.findAll(everyone, after, 25);
+                for (User user : page) {
+                    assertTrue(user.getId() > after, "Pages are in order of id");
+                    assertTrue(seen.add(user.getId()), "No user is listed twice");
+                    after = user.getId();
+                }
+            } while (page.size() == 25);
+            assertTrue(seen.containsAll(lasting));
+        }
+        running.set(false);
+        writer.get();
+        executor.shutdown();
+    }
+
+    @Test
+    void testStoredUserIsNotChangedByCallerMutations() {
+        openRepository(PersistenceMode.SNAPSHOT);
+        User user = repository.save(newUser("johndoe"));
+
+        user.setName("Changed Without Saving");
+
+        assertEquals("Name johndoe", repository.findById(user.getId()).get().getName());
+    }
+
+    @Test
+    void testSaveAfterCloseIsRejected() {
+        openRepository(PersistenceMode.WAL);
+        repository.close();
+
+        assertThrows(IllegalStateException.class, () -> repository.save(newUser("johndoe")));
+    }
+}
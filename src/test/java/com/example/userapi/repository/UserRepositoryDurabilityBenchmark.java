@@ -0,0 +1,94 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.Durability;
+import com.example.userapi.config.StorageProperties.PersistenceMode;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Write throughput and latency of {@link UserRepository#save(User)} in WAL mode for each
+ * {@link Durability}, with many concurrent writers as in an admin import.
+ *
+ * <p>Not part of the surefire suite; run {@link #main(String[])} from the test classpath. Pass a
+ * directory as the first argument to benchmark a specific disk (fsync cost depends on it); the
+ * default is the system temp directory.
+ */
+public class UserRepositoryDurabilityBenchmark {
+
+    private static final int THREADS = 16;
+    private static final int SAVES_PER_THREAD = 2_000;
+
+    public static void main(String[] args) throws Exception {
+        Path baseDir = args.length > 0 ? Paths.get(args[0]) : Paths.get(System.getProperty("java.io.tmpdir"));
+        System.out.printf("%-14s %12s %10s %10s%n", "durability", "saves/s", "p50 us", "p99 us");
+        for (Durability durability : Durability.values()) {
+            // Warm-up round, then the measured one
+            run(baseDir, durability);
+            long[] result = run(baseDir, durability);
+            System.out.printf("%-14s %12d %10.1f %10.1f%n", durability,
+                result[0], result[1] / 1_000.0, result[2] / 1_000.0);
+        }
+    }
+
+    /**
+     * @return saves per second, p50 and p99 latency in nanoseconds
+     */
+    private static long[] run(Path baseDir, Durability durability) throws Exception {
+        Path dir = Files.createTempDirectory(baseDir, "user-durability-bench");
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(dir.resolve("users.json").toString());
+        properties.setPersistence(PersistenceMode.WAL);
+        properties.setDurability(durability);
+        UserRepository repository = new UserRepository(properties);
+        repository.init();
+
+        long[] latencies = new long[THREADS * SAVES_PER_THREAD];
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < SAVES_PER_THREAD; i++) {
+                    int n = thread * SAVES_PER_THREAD + i;
+                    User user = new User("User " + n, "user" + n + "@example.com", 30,
+                        "user" + n, "$2a$10$abcdefghijklmnopqrstuvwxyz0123456789ABCDEFGHIJKLMNOPQ", Role.USER);
+                    long begin = System.nanoTime();
+                    repository.save(user);
+                    latencies[n] = System.nanoTime() - begin;
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        repository.close();
+        deleteRecursively(dir);
+
+        Arrays.sort(latencies);
+        long throughput = (long) (latencies.length / (elapsed / 1e9));
+        return new long[] {
+            throughput,
+            latencies[latencies.length / 2],
+            latencies[(int) (latencies.length * 0.99)]
+        };
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+}
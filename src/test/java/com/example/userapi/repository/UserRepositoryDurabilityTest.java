@@ -0,0 +1,144 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.Durability;
+import com.example.userapi.config.StorageProperties.PersistenceMode;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the async, group-commit and always durability modes.
+ */
+class UserRepositoryDurabilityTest {
+
+    @TempDir
+    Path tempDir;
+
+    private UserRepository openRepository(PersistenceMode mode, Durability durability) {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(tempDir.resolve("test-users.json").toFile().getAbsolutePath());
+        properties.setPersistence(mode);
+        properties.setDurability(durability);
+        UserRepository repository = new UserRepository(properties);
+        repository.init();
+        return repository;
+    }
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash", Role.USER);
+    }
+
+    private long logLines() throws IOException {
+        File logFile = tempDir.resolve("test-users.json.log").toFile();
+        return logFile.exists() ? Files.readAllLines(logFile.toPath()).size() : 0;
+    }
+
+    @Test
+    void testAlwaysWritesBeforeSaveReturns() throws IOException {
+        UserRepository repository = openRepository(PersistenceMode.WAL, Durability.ALWAYS);
+
+        repository.save(newUser("johndoe"));
+
+        assertEquals(1, logLines());
+        repository.close();
+    }
+
+    @Test
+    void testGroupCommitWritesBeforeSaveReturns() throws IOException {
+        UserRepository repository = openRepository(PersistenceMode.WAL, Durability.GROUP_COMMIT);
+
+        repository.save(newUser("johndoe"));
+        repository.deleteById(repository.findByUsername("johndoe").get().getId());
+
+        assertEquals(2, logLines());
+        repository.close();
+    }
+
+    @Test
+    void testAsyncChangesReachDiskByClose() {
+        UserRepository repository = openRepository(PersistenceMode.WAL, Durability.ASYNC);
+        for (int i = 0; i < 100; i++) {
+            repository.save(newUser("user" + i));
+        }
+        repository.close();
+
+        assertEquals(100, openRepository(PersistenceMode.WAL, Durability.ASYNC).findAll().size());
+    }
+
+    @Test
+    void testSnapshotModeGroupCommitWritesDataFile() {
+        UserRepository repository = openRepository(PersistenceMode.SNAPSHOT, Durability.GROUP_COMMIT);
+
+        repository.save(newUser("johndoe"));
+
+        assertTrue(tempDir.resolve("test-users.json").toFile().exists());
+        repository.close();
+    }
+
+    @Test
+    void testConcurrentGroupCommitKeepsEveryChange() throws Exception {
+        UserRepository repository = openRepository(PersistenceMode.WAL, Durability.GROUP_COMMIT);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<User>> futures = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            String username = "user" + i;
+            futures.add(executor.submit(() -> repository.save(newUser(username))));
+        }
+        for (Future<User> future : futures) {
+            assertNotNull(future.get().getId());
+        }
+        executor.shutdown();
+
+        assertEquals(400, logLines());
+        repository.close();
+        assertEquals(400, openRepository(PersistenceMode.WAL, Durability.GROUP_COMMIT).findAll().size());
+    }
+
+    @Test
+    void testFailedWriteFailsTheSave() throws IOException {
+        // A non-empty directory where the data file should be, so every snapshot fails to install
+        Path dataFile = Files.createDirectory(tempDir.resolve("test-users.json"));
+        Files.createFile(dataFile.resolve("blocker"));
+
+        for (Durability durability : new Durability[] {Durability.ALWAYS, Durability.GROUP_COMMIT}) {
+            UserRepository repository = openRepository(PersistenceMode.SNAPSHOT, durability);
+            assertThrows(UncheckedIOException.class, () -> repository.save(newUser("johndoe")), durability.name());
+            repository.close();
+        }
+    }
+
+    @Test
+    void testCloseReleasesWritersOnlyAfterTheLastFlush() throws Exception {
+        AtomicBoolean flushed = new AtomicBoolean();
+        GroupCommitFlusher flusher = new GroupCommitFlusher("test-flusher", Duration.ofMillis(200), () -> {
+            LockSupport.parkNanos(Duration.ofMillis(100).toNanos());
+            flushed.set(true);
+        });
+        long sequence = flusher.markDirty();
+        Thread closer = new Thread(flusher::close);
+        closer.start();
+
+        flusher.awaitFlushed(sequence);
+
+        assertTrue(flushed.get());
+        closer.join();
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.User;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Bytes allocated per {@link UserRepository#findAll()} call, compared with copying the users into
+ * a new list on every call as the repository used to do.
+ *
+ * <p>Not part of the surefire suite; run {@link #main(String[])} from the test classpath. The
+ * "1 write / 100 reads" column saves a user every 100 calls, so the snapshot is rebuilt once per
+ * hundred reads. Allocations are summed over all threads, which includes the writer thread and
+ * the flusher writing the data file.
+ */
+public class UserRepositoryFindAllBenchmark {
+
+    private static final int[] SIZES = {1_000, 10_000, 100_000};
+    private static final int CALLS = 2_000;
+
+    public static void main(String[] args) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Path dir = Files.createTempDirectory("user-findall-bench");
+        System.out.printf("%10s %20s %20s %26s%n",
+            "users", "copy per call B/op", "snapshot B/op", "1 write / 100 reads B/op");
+        for (int size : SIZES) {
+            File dataFile = dir.resolve("users-" + size + ".json").toFile();
+            UserRepositoryLookupBenchmark.writeUsers(dataFile, size);
+
+            UserRepository repository = new UserRepository();
+            ReflectionTestUtils.setField(repository, "DATA_FILE", dataFile.getAbsolutePath());
+            repository.init();
+
+            Supplier<List<User>> copyPerCall = () -> new ArrayList<>(repository.findAll());
+            Supplier<List<User>> snapshot = repository::findAll;
+            int[] calls = {0};
+            Supplier<List<User>> mixed = () -> {
+                if (++calls[0] % 100 == 0) {
+                    User user = new User(repository.findById(1L).get());
+                    user.setAge(user.getAge() % 100 + 1);
+                    repository.save(user);
+                }
+                return repository.findAll();
+            };
+
+            // Warm up before measuring
+            measure(threads, copyPerCall);
+            measure(threads, snapshot);
+            measure(threads, mixed);
+
+            System.out.printf("%10d %20d %20d %26d%n", size,
+                measure(threads, copyPerCall), measure(threads, snapshot), measure(threads, mixed));
+            repository.close();
+            dataFile.delete();
+            new File(dataFile.getPath() + ".log").delete();
+        }
+    }
+
+    private static long measure(com.sun.management.ThreadMXBean threads, Supplier<List<User>> findAll) {
+        long seen = 0;
+        long before = allocatedBytes(threads);
+        for (int i = 0; i < CALLS; i++) {
+            seen += findAll.get().size();
+        }
+        long allocated = allocatedBytes(threads) - before;
+        if (seen == 0) {
+            throw new IllegalStateException("Expected users");
+        }
+        return allocated / CALLS;
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(allocated, 0);
+        }
+        return total;
+    }
+}
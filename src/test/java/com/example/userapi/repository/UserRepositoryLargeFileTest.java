@@ -0,0 +1,75 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Loads a generated 2M-user data file in a separate JVM with a fixed heap, so the test fails if
+ * startup needs memory beyond the users themselves.
+ *
+ * <p>Writes a file of about 300 MB, so it only runs with {@code -Duserapi.largeFileTest=true}.
+ */
+@EnabledIfSystemProperty(named = "userapi.largeFileTest", matches = "true")
+class UserRepositoryLargeFileTest {
+
+    private static final int USERS = 2_000_000;
+    private static final String MAX_HEAP = "-Xmx1g";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testLoadsTwoMillionUsersWithinFixedHeap() throws Exception {
+        File dataFile = tempDir.resolve("large-users.json").toFile();
+        UserRepositoryLookupBenchmark.writeUsers(dataFile, USERS);
+        File output = tempDir.resolve("loader.out").toFile();
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = Arrays.asList(java, MAX_HEAP,
+            "-cp", System.getProperty("java.class.path"),
+            Loader.class.getName(), dataFile.getAbsolutePath());
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(output)
+            .start();
+        assertTrue(process.waitFor(5, TimeUnit.MINUTES), "Loader did not finish");
+
+        String log = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+        assertEquals(0, process.exitValue(), log);
+        assertTrue(log.contains("Loaded 500000 users"), log);
+        assertTrue(log.contains("loaded=" + USERS + " progress=1.0"), log);
+    }
+
+    /**
+     * Runs in the child JVM: loads the file and prints what the repository reports.
+     */
+    static class Loader {
+        public static void main(String[] args) throws IOException {
+            StorageProperties properties = new StorageProperties();
+            properties.setDataFile(args[0]);
+            UserRepository repository = new UserRepository(properties);
+            repository.init();
+            System.out.println("loaded=" + repository.getLoadedUserCount()
+                + " progress=" + repository.getLoadProgress()
+                + " users=" + repository.findAll().size());
+            if (repository.findAll().size() != USERS || !repository.findByUsername("user" + USERS).isPresent()) {
+                System.exit(1);
+            }
+            repository.close();
+        }
+    }
+}
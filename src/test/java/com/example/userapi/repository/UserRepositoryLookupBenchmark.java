@@ -0,0 +1,102 @@
+package com.example.userapi.repository;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lookup latency benchmark for {@link UserRepository#findById(Long)} and
+ * {@link UserRepository#findByUsername(String)} at growing user counts.
+ *
+ * <p>Not part of the surefire suite (the class name does not end in {@code Test}); run
+ * {@link #main(String[])} from the test classpath, e.g. from the IDE. With the hash indexes
+ * the per-lookup cost should stay flat from 1k to 1M users.
+ */
+public class UserRepositoryLookupBenchmark {
+
+    private static final int[] SIZES = {1_000, 10_000, 100_000, 1_000_000};
+    private static final int LOOKUPS = 2_000_000;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("user-lookup-bench");
+        System.out.printf("%10s %18s %24s%n", "users", "findById ns/op", "findByUsername ns/op");
+        for (int size : SIZES) {
+            File dataFile = dir.resolve("users-" + size + ".json").toFile();
+            writeUsers(dataFile, size);
+
+            UserRepository repository = new UserRepository();
+            ReflectionTestUtils.setField(repository, "DATA_FILE", dataFile.getAbsolutePath());
+            repository.init();
+
+            // Warm up both paths before measuring
+            lookupById(repository, size, LOOKUPS);
+            lookupByUsername(repository, size, LOOKUPS);
+
+            double byId = lookupById(repository, size, LOOKUPS);
+            double byUsername = lookupByUsername(repository, size, LOOKUPS);
+            System.out.printf("%10d %18.1f %24.1f%n", size, byId, byUsername);
+            dataFile.delete();
+        }
+    }
+
+    private static double lookupById(UserRepository repository, int size, int lookups) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (repository.findById((long) random.nextInt(size) + 1).isPresent()) {
+                found++;
+            }
+        }
+        return elapsedPerOp(start, lookups, found);
+    }
+
+    private static double lookupByUsername(UserRepository repository, int size, int lookups) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String[] usernames = new String[1024];
+        long found = 0;
+        for (int i = 0; i < usernames.length; i++) {
+            usernames[i] = "user" + (random.nextInt(size) + 1);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (repository.findByUsername(usernames[i & 1023]).isPresent()) {
+                found++;
+            }
+        }
+        return elapsedPerOp(start, lookups, found);
+    }
+
+    private static double elapsedPerOp(long start, int lookups, long found) {
+        double nanosPerOp = (double) (System.nanoTime() - start) / lookups;
+        if (found != lookups) {
+            throw new IllegalStateException("Expected every lookup to hit, got " + found);
+        }
+        return nanosPerOp;
+    }
+
+    static void writeUsers(File file, int count) throws IOException {
+        try (JsonGenerator generator = new JsonFactory().createGenerator(file, JsonEncoding.UTF8)) {
+            generator.writeStartArray();
+            for (int i = 1; i <= count; i++) {
+                generator.writeStartObject();
+                generator.writeNumberField("id", i);
+                generator.writeStringField("name", "User " + i);
+                generator.writeStringField("email", "user" + i + "@example.com");
+                generator.writeNumberField("age", 18 + i % 60);
+                generator.writeStringField("username", "user" + i);
+                generator.writeStringField("role", "USER");
+                generator.writeBooleanField("enabled", true);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+}
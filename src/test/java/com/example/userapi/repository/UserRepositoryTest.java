@@ -1,5 +1,6 @@
 package com.example.userapi.repository;
 
+import com.example.userapi.exception.DuplicateUserException;
 import com.example.userapi.model.User;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -7,9 +8,14 @@ import org.junit.jupiter.api.io.TempDir;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -267,6 +273,26 @@ class UserRepositoryTest {
         assertEquals("testuser", foundUser.get().getUsername());
     }
 
+    @Test
+    void testFindAllByIdAndByUsername() {
+        // Given
+        User user1 = new User(null, "User 1", "user1@example.com", 25);
+        user1.setUsername("first");
+        User user2 = new User(null, "User 2", "user2@example.com", 30);
+        user2.setUsername("second");
+        userRepository.save(user1);
+        userRepository.save(user2);
+
+        // When - keys without a user, and nulls, are left out
+        List<User> byId = userRepository.findAllById(Arrays.asList(user2.getId(), 999L, null, user1.getId()));
+        List<User> byUsername = userRepository.findAllByUsername(Arrays.asList("nobody", "first", null, "second"));
+
+        // Then - in the order of the keys
+        assertEquals(List.of("User 2", "User 1"), byId.stream().map(User::getName).collect(Collectors.toList()));
+        assertEquals(List.of("User 1", "User 2"), byUsername.stream().map(User::getName).collect(Collectors.toList()));
+        assertTrue(userRepository.findAllById(List.of()).isEmpty());
+    }
+
     @Test
     void testFindByUsernameAfterUserDeletion() {
         // Given
@@ -310,6 +336,124 @@ class UserRepositoryTest {
         assertEquals("updateduser", foundUpdated.get().getUsername());
     }
 
+    @Test
+    void testSaveRejectsUsernameOwnedByAnotherUser() {
+        // Given
+        User user1 = new User(null, "User 1", "user1@example.com", 25);
+        user1.setUsername("taken");
+        userRepository.save(user1);
+
+        User user2 = new User(null, "User 2", "user2@example.com", 30);
+        user2.setUsername("taken");
+
+        // When / Then
+        assertThrows(DuplicateUserException.class, () -> userRepository.save(user2));
+        assertEquals(1, userRepository.findAll().size());
+        assertEquals("User 1", userRepository.findByUsername("taken").get().getName());
+    }
+
+    @Test
+    void testSaveBatchRejectsOnlyTheClashingUsers() {
+        // Given
+        User first = new User(null, "User 1", "user1@example.com", 25);
+        first.setUsername("taken");
+        User clash = new User(null, "User 2", "user2@example.com", 30);
+        clash.setUsername("taken");
+        User last = new User(null, "User 3", "user3@example.com", 35);
+
+        // When
+        List<RuntimeException> failures = userRepository.saveBatch(List.of(first, clash, last));
+
+        // Then - the batch survives a restart like single saves do
+        assertNull(failures.get(0));
+        assertTrue(failures.get(1) instanceof DuplicateUserException);
+        assertNull(failures.get(2));
+        assertNull(clash.getId());
+        userRepository.close();
+        UserRepository reopened = new UserRepository();
+        ReflectionTestUtils.setField(reopened, "DATA_FILE", tempDir.resolve("test-users.json").toFile().getAbsolutePath());
+        reopened.init();
+        assertEquals(2, reopened.findAll().size());
+        assertEquals("User 1", reopened.findByUsername("taken").get().getName());
+        assertEquals("User 3", reopened.findById(last.getId()).get().getName());
+    }
+
+    /**
+     * Writes a data file from before emails were unique: users 1 and 2 share an email that differs
+     * only in case.
+     */
+    static void writeUsersSharingAnEmail(File file) throws IOException {
+        Files.write(file.toPath(), ("["
+            + "{\"id\":1,\"name\":\"First\",\"email\":\"Shared@Example.com\",\"age\":30,\"username\":\"first\"},"
+            + "{\"id\":2,\"name\":\"Second\",\"email\":\"shared@example.com\",\"age\":30,\"username\":\"second\"},"
+            + "{\"id\":3,\"name\":\"Third\",\"email\":\"third@example.com\",\"age\":30,\"username\":\"third\"}"
+            + "]").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks a store loaded from {@link #writeUsersSharingAnEmail(File)}.
+     */
+    static void assertFirstUserKeepsSharedEmail(UserStore store) {
+        assertEquals(1L, store.findByEmail("shared@example.com").get().getId());
+        User second = new User(store.findById(2L).get());
+        second.setName("Second Renamed");
+        assertEquals("Second Renamed", store.save(second).getName());
+        User third = new User(store.findById(3L).get());
+        third.setEmail("SHARED@example.com");
+        assertThrows(DuplicateUserException.class, () -> store.save(third));
+        assertEquals(1L, store.findByEmail("shared@example.com").get().getId());
+    }
+
+    @Test
+    void testFirstOfUsersSharingAnEmailKeepsIt() throws IOException {
+        userRepository.close();
+        File dataFile = tempDir.resolve("legacy-users.json").toFile();
+        writeUsersSharingAnEmail(dataFile);
+        UserRepository legacy = new UserRepository();
+        ReflectionTestUtils.setField(legacy, "DATA_FILE", dataFile.getAbsolutePath());
+        legacy.init();
+        try {
+            assertFirstUserKeepsSharedEmail(legacy);
+        } finally {
+            legacy.close();
+        }
+    }
+
+    @Test
+    void testIdOutOfRangeIsRejectedBeforeItIsStored() {
+        for (long id : new long[] {0L, -1L, UserIndex.MAX_ID + 1}) {
+            User user = new User(id, "Bad Id", "bad" + id + "@example.com", 30);
+            assertThrows(IllegalArgumentException.class, () -> userRepository.save(user));
+        }
+        userRepository.save(new User(UserIndex.MAX_ID, "Last Id", "last@example.com", 30));
+
+        userRepository.close();
+        UserRepository reopened = new UserRepository();
+        ReflectionTestUtils.setField(reopened, "DATA_FILE", tempDir.resolve("test-users.json").toFile().getAbsolutePath());
+        reopened.init();
+        assertEquals(List.of(UserIndex.MAX_ID), reopened.findAll().stream().map(User::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testUsernameIndexFollowsUpdatesAndDeletes() {
+        // Given
+        User user = new User(null, "Test User", "test@example.com", 25);
+        user.setUsername("first");
+        User savedUser = userRepository.save(user);
+
+        // When - rename, then free the name by deleting
+        savedUser.setUsername("second");
+        userRepository.save(savedUser);
+        User other = new User(null, "Other User", "other@example.com", 30);
+        other.setUsername("first");
+        userRepository.save(other);
+        userRepository.deleteById(savedUser.getId());
+
+        // Then
+        assertFalse(userRepository.findByUsername("second").isPresent());
+        assertEquals("Other User", userRepository.findByUsername("first").get().getName());
+    }
+
     @Test
     void testFindByUsernameWithLongUsername() {
         // Given
@@ -454,6 +598,21 @@ class UserRepositoryTest {
         assertEquals(0, users.size());
     }
 
+    @Test
+    void testFindAllListsUsersInIdOrder() {
+        // Given
+        for (long id : new long[] {900L, 5L, 300L, 42L}) {
+            userRepository.save(new User(id, "User " + id, "user" + id + "@example.com", 30));
+        }
+
+        // When
+        List<User> users = userRepository.findAll();
+
+        // Then
+        assertEquals(List.of(5L, 42L, 300L, 900L), users.stream().map(User::getId).collect(Collectors.toList()));
+        assertSame(users.get(2), users.get(2));
+    }
+
     @Test
     void testMultipleDeleteOperations() {
         // Given
@@ -553,4 +712,34 @@ class UserRepositoryTest {
         assertEquals(2, users.size());
         assertEquals(3, userRepository.findAll().size());
     }
+
+    @Test
+    void testFindAllReusesSnapshotUntilNextChange() {
+        // Given
+        userRepository.save(new User(null, "User 1", "user1@example.com", 25));
+        List<User> first = userRepository.findAll();
+
+        // When - No change in between
+        List<User> second = userRepository.findAll();
+
+        // Then - The same snapshot is served without copying
+        assertSame(first, second);
+
+        // When - A change is made
+        userRepository.save(new User(null, "User 2", "user2@example.com", 30));
+
+        // Then - A new snapshot is built
+        assertNotSame(first, userRepository.findAll());
+        assertEquals(2, userRepository.findAll().size());
+    }
+
+    @Test
+    void testFindAllSnapshotIsReadOnly() {
+        userRepository.save(new User(null, "User 1", "user1@example.com", 25));
+
+        List<User> users = userRepository.findAll();
+
+        assertThrows(UnsupportedOperationException.class,
+            () -> users.add(new User(null, "User 2", "user2@example.com", 30)));
+    }
 }
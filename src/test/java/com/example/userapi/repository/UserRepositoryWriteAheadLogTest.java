@@ -0,0 +1,162 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.PersistenceMode;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the write-ahead log persistence mode of {@link UserRepository}.
+ */
+class UserRepositoryWriteAheadLogTest {
+
+    @TempDir
+    Path tempDir;
+
+    private File dataFile;
+    private File logFile;
+
+    @BeforeEach
+    void setUp() {
+        dataFile = tempDir.resolve("test-users.json").toFile();
+        logFile = tempDir.resolve("test-users.json.log").toFile();
+    }
+
+    private UserRepository openRepository(PersistenceMode mode) {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(dataFile.getAbsolutePath());
+        properties.setPersistence(mode);
+        UserRepository repository = new UserRepository(properties);
+        repository.init();
+        return repository;
+    }
+
+    @Test
+    void testMutationsAppendToLogInsteadOfRewritingDataFile() throws IOException {
+        UserRepository repository = openRepository(PersistenceMode.WAL);
+
+        repository.save(new User("John Doe", "john@example.com", 30, "johndoe", "hash", Role.USER));
+        repository.save(new User("Jane Smith", "jane@example.com", 25, "janesmith", "hash", Role.USER));
+
+        assertFalse(dataFile.exists());
+        assertEquals(2, Files.readAllLines(logFile.toPath()).size());
+    }
+
+    @Test
+    void testReplayRestoresSavesUpdatesAndDeletes() {
+        UserRepository repository = openRepository(PersistenceMode.WAL);
+        User john = repository.save(new User("John Doe", "john@example.com", 30, "johndoe", "hash", Role.ADMIN));
+        User jane = repository.save(new User("Jane Smith", "jane@example.com", 25, "janesmith", "hash", Role.USER));
+        john.setName("John Updated");
+        repository.save(john);
+        repository.deleteById(jane.getId());
+        repository.close();
+
+        UserRepository reopened = openRepository(PersistenceMode.WAL);
+
+        assertEquals(1, reopened.findAll().size());
+        Optional<User> found = reopened.findByUsername("johndoe");
+        assertTrue(found.isPresent());
+        assertEquals("John Updated", found.get().getName());
+        assertEquals(Role.ADMIN, found.get().getRole());
+        assertEquals("hash", found.get().getPassword());
+        assertFalse(reopened.findByUsername("janesmith").isPresent());
+
+        // New ids continue after the replayed ones
+        User next = reopened.save(new User(null, "Next User", "next@example.com", 40));
+        assertTrue(next.getId() > jane.getId());
+    }
+
+    @Test
+    void testTornRecordAtEndOfLogIsDiscarded() throws IOException {
+        UserRepository repository = openRepository(PersistenceMode.WAL);
+        repository.save(new User("John Doe", "john@example.com", 30, "johndoe", "hash", Role.USER));
+        repository.close();
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.write("{\"op\":\"SAVE\",\"id\":2,\"user\":{\"id\":2,\"na".getBytes(StandardCharsets.UTF_8));
+        }
+
+        UserRepository reopened = openRepository(PersistenceMode.WAL);
+        reopened.save(new User("Jane Smith", "jane@example.com", 25, "janesmith", "hash", Role.USER));
+        reopened.close();
+
+        UserRepository again = openRepository(PersistenceMode.WAL);
+        assertEquals(2, again.findAll().size());
+        assertTrue(again.findByUsername("janesmith").isPresent());
+    }
+
+    @Test
+    void testUnreadableLastRecordIsDiscarded() throws IOException {
+        UserRepository repository = openRepository(PersistenceMode.WAL);
+        repository.save(new User("John Doe", "john@example.com", 30, "johndoe", "hash", Role.USER));
+        repository.close();
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.write("{\"op\":\"SAVE\",\"id\":2,\u0000\u0000\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        UserRepository reopened = openRepository(PersistenceMode.WAL);
+
+        assertEquals(1, reopened.findAll().size());
+        assertEquals(1, Files.readAllLines(logFile.toPath()).size());
+    }
+
+    @Test
+    void testCorruptRecordBeforeValidOnesFailsStartup() throws IOException {
+        UserRepository repository = openRepository(PersistenceMode.WAL);
+        repository.save(new User("John Doe", "john@example.com", 30, "johndoe", "hash", Role.USER));
+        repository.save(new User("Jane Smith", "jane@example.com", 25, "janesmith", "hash", Role.USER));
+        repository.close();
+        byte[] log = Files.readAllBytes(logFile.toPath());
+        log[1] = 'x';
+        Files.write(logFile.toPath(), log);
+
+        assertThrows(UncheckedIOException.class, () -> openRepository(PersistenceMode.WAL));
+        // Nothing after the corrupt record was cut off
+        assertArrayEquals(log, Files.readAllBytes(logFile.toPath()));
+    }
+
+    @Test
+    void testOpenForImportLeavesTheLogInPlace() throws IOException {
+        UserRepository repository = openRepository(PersistenceMode.WAL);
+        repository.save(new User("John Doe", "john@example.com", 30, "johndoe", "hash", Role.USER));
+        repository.close();
+        byte[] log = Files.readAllBytes(logFile.toPath());
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(dataFile.getAbsolutePath());
+
+        UserRepository source = UserRepository.openForImport(properties);
+        assertEquals(1, source.findAll().size());
+        source.close();
+
+        assertFalse(dataFile.exists());
+        assertArrayEquals(log, Files.readAllBytes(logFile.toPath()));
+    }
+
+    @Test
+    void testSnapshotModeFoldsLeftoverLogIntoDataFile() {
+        UserRepository repository = openRepository(PersistenceMode.WAL);
+        repository.save(new User("John Doe", "john@example.com", 30, "johndoe", "hash", Role.USER));
+        repository.close();
+
+        UserRepository snapshotRepository = openRepository(PersistenceMode.SNAPSHOT);
+
+        assertTrue(snapshotRepository.findByUsername("johndoe").isPresent());
+        assertTrue(dataFile.exists());
+        assertFalse(logFile.exists());
+        assertEquals(1, openRepository(PersistenceMode.SNAPSHOT).findAll().size());
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency of the searches of {@link HeapUserIndex} at growing user counts: by prefix, by
+ * similar username for a random username with one or two characters changed, and by text in the
+ * name for the first page of 20.
+ *
+ * <p>Not part of the surefire suite; run {@link #main(String[])} from the test classpath.
+ * Usernames and names are built from a small set of syllables, so short prefixes match many
+ * users, as they do in real directories.
+ */
+public class UserSearchBenchmark {
+
+    private static final int[] SIZES = {100_000, 1_000_000};
+    private static final int SEARCHES = 200_000;
+    private static final String[] SYLLABLES = {"jo", "an", "mar", "ki", "son", "li", "ber", "ta", "ne", "ro"};
+
+    public static void main(String[] args) {
+        System.out.printf("%10s %8s %24s%n", "users", "query", "us/op");
+        for (int size : SIZES) {
+            HeapUserIndex index = new HeapUserIndex();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (long id = 1; id <= size; id++) {
+                User user = new User(word(random) + " " + word(random), "user" + id + "@example.com", 30,
+                    word(random) + id, null, Role.USER);
+                user.setId(id);
+                index.put(user);
+            }
+            String[] prefixes = new String[1024];
+            for (int length = 1; length <= 4; length++) {
+                for (int i = 0; i < prefixes.length; i++) {
+                    String word = word(random);
+                    prefixes[i] = word.substring(0, Math.min(length, word.length()));
+                }
+                // Warm up before measuring
+                search(index, prefixes);
+                System.out.printf("%10d %8s %24.2f%n", size, "prefix " + length, search(index, prefixes));
+            }
+            String[] typos = new String[1024];
+            for (int distance = 1; distance <= 2; distance++) {
+                for (int i = 0; i < typos.length; i++) {
+                    typos[i] = typo(index.findById(1L + random.nextInt(size)).get().getUsername(), distance, random);
+                }
+                searchSimilar(index, typos, distance);
+                System.out.printf("%10d %8s %24.2f%n", size, "similar " + distance, searchSimilar(index, typos, distance));
+            }
+            String[] texts = new String[1024];
+            for (int i = 0; i < texts.length; i++) {
+                String word = word(random) + word(random);
+                int start = random.nextInt(word.length() - 4);
+                texts[i] = word.substring(start, start + 5);
+            }
+            searchText(index, texts);
+            System.out.printf("%10d %8s %24.2f%n", size, "contains", searchText(index, texts));
+        }
+    }
+
+    private static String word(ThreadLocalRandom random) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 2 + random.nextInt(2); i > 0; i--) {
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        return word.toString();
+    }
+
+    private static String typo(String username, int edits, ThreadLocalRandom random) {
+        StringBuilder typo = new StringBuilder(username);
+        for (int i = 0; i < edits; i++) {
+            typo.setCharAt(random.nextInt(typo.length()), (char) ('a' + random.nextInt(26)));
+        }
+        return typo.toString();
+    }
+
+    private static double searchSimilar(HeapUserIndex index, String[] typos, int distance) {
+        int searches = SEARCHES / 10;
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            found += index.searchBySimilarUsername(typos[i & (typos.length - 1)], distance, 10).size();
+        }
+        double microsPerOp = (System.nanoTime() - start) / 1000.0 / searches;
+        if (found == 0) {
+            throw new IllegalStateException("Expected matches");
+        }
+        return microsPerOp;
+    }
+
+    private static double searchText(HeapUserIndex index, String[] texts) {
+        int searches = SEARCHES / 10;
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            found += index.searchBySubstring(texts[i & (texts.length - 1)], 0, 20).size();
+        }
+        double microsPerOp = (System.nanoTime() - start) / 1000.0 / searches;
+        if (found == 0) {
+            throw new IllegalStateException("Expected matches");
+        }
+        return microsPerOp;
+    }
+
+    private static double search(HeapUserIndex index, String[] prefixes) {
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < SEARCHES; i++) {
+            found += index.searchByPrefix(prefixes[i & (prefixes.length - 1)], 10).size();
+        }
+        double microsPerOp = (System.nanoTime() - start) / 1000.0 / SEARCHES;
+        if (found == 0) {
+            throw new IllegalStateException("Expected matches");
+        }
+        return microsPerOp;
+    }
+}
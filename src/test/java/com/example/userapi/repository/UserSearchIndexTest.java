@@ -0,0 +1,317 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the search indexes and the stores' searches through them.
+ */
+class UserSearchIndexTest {
+
+    private final UserSearchIndex index = new UserSearchIndex();
+
+    private static User newUser(long id, String username, String name) {
+        User user = new User(name, username + "@example.com", 30, username, "hash", Role.USER);
+        user.setId(id);
+        return user;
+    }
+
+    private static List<Long> ids(long[] ids) {
+        List<Long> list = new ArrayList<>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    @Test
+    void testPrefixMatchesUsernameAndWordsOfTheName() {
+        index.update(null, newUser(1, "johndoe", "John Doe"));
+        index.update(null, newUser(2, "jsmith", "Mary Jones"));
+        index.update(null, newUser(3, "admin", "Site Admin"));
+
+        // John Doe matches by username and by name, but is listed once
+        assertEquals(List.of(1L, 2L), ids(index.findByPrefix("Jo", 10)));
+        assertEquals(List.of(2L), ids(index.findByPrefix("mary j", 10)));
+        assertEquals(List.of(1L), ids(index.findByPrefix("DOE", 10)));
+        assertEquals(List.of(3L), ids(index.findByPrefix("adm", 10)));
+        assertEquals(List.of(1L), ids(index.findByPrefix("j", 1)));
+        assertTrue(ids(index.findByPrefix("x", 10)).isEmpty());
+    }
+
+    @Test
+    void testUpdatesMoveAndDropKeys() {
+        User john = newUser(1, "johndoe", "John Doe");
+        index.update(null, john);
+        User renamed = newUser(1, "jdoe", "Johnny Doe");
+        index.update(john, renamed);
+
+        assertTrue(ids(index.findByPrefix("johnd", 10)).isEmpty());
+        assertEquals(List.of(1L), ids(index.findByPrefix("johnny", 10)));
+        assertEquals(List.of(1L), ids(index.findByPrefix("jd", 10)));
+
+        index.update(renamed, null);
+        assertTrue(ids(index.findByPrefix("j", 10)).isEmpty());
+        assertTrue(ids(index.findByPrefix("doe", 10)).isEmpty());
+    }
+
+    @Test
+    void testStoresSearchThroughTheIndex() {
+        InMemoryUserStore store = new InMemoryUserStore();
+        for (int i = 0; i < 30; i++) {
+            store.save(new User("Name " + i, "user" + i + "@example.com", 30, "user" + i, "hash", Role.USER));
+        }
+        List<User> found = store.searchByPrefix("USER1", 5);
+        assertEquals(5, found.size());
+        assertEquals("user1", found.get(0).getUsername());
+        assertEquals("user10", found.get(1).getUsername());
+
+        store.deleteById(found.get(0).getId());
+        assertEquals("user10", store.searchByPrefix("user1", 5).get(0).getUsername());
+    }
+
+    @Test
+    void testSimilarUsernamesWithinTheEditDistance() {
+        index.update(null, newUser(1, "johndoe", "John Doe"));
+        index.update(null, newUser(2, "JohnDoe1", "John Doe"));
+        index.update(null, newUser(3, "jondoe", "Jon Doe"));
+        index.update(null, newUser(4, "janedoe", "Jane Doe"));
+
+        assertEquals(List.of(1L, 2L, 3L), ids(index.findBySimilarUsername("johndoe", 1, 10)));
+        assertEquals(List.of(3L, 1L, 4L, 2L), ids(index.findBySimilarUsername("jondoe", 2, 10)));
+        assertEquals(List.of(1L), ids(index.findBySimilarUsername("JOHNDOE", 0, 10)));
+        assertEquals(List.of(1L, 2L), ids(index.findBySimilarUsername("johndoe", 1, 2)));
+        assertTrue(ids(index.findBySimilarUsername("admin", 2, 10)).isEmpty());
+
+        index.update(newUser(1, "johndoe", "John Doe"), newUser(1, "jdoe", "John Doe"));
+        index.update(newUser(3, "jondoe", "Jon Doe"), null);
+        assertEquals(List.of(2L), ids(index.findBySimilarUsername("johndoe", 1, 10)));
+        assertEquals(List.of(1L), ids(index.findBySimilarUsername("jdoe", 0, 10)));
+    }
+
+    @Test
+    void testSimilarUsernamesMatchAScan() {
+        Random random = new Random(42);
+        List<User> users = new ArrayList<>();
+        for (long id = 1; id <= 3000; id++) {
+            StringBuilder username = new StringBuilder();
+            for (int i = 3 + random.nextInt(5); i > 0; i--) {
+                username.append((char) ('a' + random.nextInt(4)));
+            }
+            User user = newUser(id, username.toString(), "Name");
+            users.add(user);
+            index.update(null, user);
+        }
+
+        for (String query : List.of("abc", "abcdab", "dddd", "a", "bacadab")) {
+            for (int maxDistance = 0; maxDistance <= 2; maxDistance++) {
+                int distance = maxDistance;
+                List<Long> expected = users.stream()
+                    .filter(user -> UserSearchIndex.editDistance(user.getUsername(), query) <= distance)
+                    .sorted(Comparator.comparingInt((User user) -> UserSearchIndex.editDistance(user.getUsername(), query))
+                        .thenComparing(User::getUsername)
+                        .thenComparing(User::getId))
+                    .limit(20)
+                    .map(User::getId)
+                    .collect(Collectors.toList());
+                assertEquals(expected, ids(index.findBySimilarUsername(query, maxDistance, 20)), query + " " + distance);
+            }
+        }
+    }
+
+    @Test
+    void testSubstringSearchMatchesAScanPageByPage() {
+        Random random = new Random(7);
+        String[] companies = {"acme", "initech", "globex", "umbrella"};
+        Map<Long, User> users = new TreeMap<>();
+        for (long id = 1; id <= 2000; id++) {
+            User user = newUser(id, "user" + id, "Name" + random.nextInt(50));
+            user.setEmail("user" + id + "@" + companies[random.nextInt(companies.length)] + ".com");
+            users.put(id, user);
+            index.update(null, user);
+        }
+        // Moves some users to another company and removes others
+        for (long id = 1; id <= 2000; id += 7) {
+            User moved = new User(users.get(id));
+            moved.setEmail("user" + id + "@Hooli.com");
+            index.update(users.put(id, moved), moved);
+        }
+        for (long id = 3; id <= 2000; id += 11) {
+            index.update(users.remove(id), null);
+        }
+
+        assertSubstringSearchMatchesAScan(users);
+        assertThrows(IllegalArgumentException.class, () -> index.findBySubstring("ab", 0, 10, ids -> List.of()));
+    }
+
+    @Test
+    void testLoadedUsersAreFoundLikeAddedOnes() {
+        Random random = new Random(11);
+        String[] companies = {"acme", "initech", "globex", "umbrella"};
+        Map<Long, User> users = new TreeMap<>();
+        List<User> loaded = new ArrayList<>();
+        for (long id = 1; id <= 3000; id++) {
+            User user = newUser(id, "user" + id, "Name" + random.nextInt(50));
+            user.setEmail("user" + id + "@" + companies[random.nextInt(companies.length)] + ".com");
+            users.put(id, user);
+            // Some users are in the index before the load
+            if (id % 10 == 0) {
+                index.update(null, user);
+            } else {
+                loaded.add(user);
+            }
+        }
+        // In id order at first, then out of it, as a log replayed after the data file would be
+        Collections.shuffle(loaded.subList(2000, loaded.size()), random);
+
+        index.beginLoad();
+        for (User user : loaded) {
+            index.update(null, user);
+        }
+        index.endLoad();
+        assertSubstringSearchMatchesAScan(users);
+
+        // A change to an indexed user in the middle of a load files what came before it
+        User late = newUser(3001, "user3001", "Late Comer");
+        late.setEmail("user3001@acme.com");
+        index.beginLoad();
+        index.update(null, late);
+        users.put(3001L, late);
+        User moved = new User(users.get(5L));
+        moved.setEmail("user5@Hooli.com");
+        index.update(users.put(5L, moved), moved);
+        index.update(users.remove(8L), null);
+        index.endLoad();
+        assertSubstringSearchMatchesAScan(users);
+    }
+
+    private void assertSubstringSearchMatchesAScan(Map<Long, User> users) {
+        for (String query : List.of("globex", "HOOLI", "me4", "name1", "@umbrella.c", "acme", "xyz")) {
+            List<Long> expected = new ArrayList<>();
+            for (User user : users.values()) {
+                if (normalizedContains(user.getName(), query) || normalizedContains(user.getEmail(), query)) {
+                    expected.add(user.getId());
+                }
+            }
+            List<Long> found = new ArrayList<>();
+            long after = 0;
+            List<User> page;
+            do {
+                page = index.findBySubstring(query, after, 50, ids -> resolve(users, ids));
+                for (User user : page) {
+                    found.add(user.getId());
+                    after = user.getId();
+                }
+            } while (page.size() == 50);
+            assertEquals(expected, found, query);
+        }
+    }
+
+    @Test
+    void testFiltersMatchAScanPageByPage() {
+        Random random = new Random(11);
+        Map<Long, User> users = new TreeMap<>();
+        // Spans several bitmap pages, with a gap of ids that were never used
+        for (long id = 1; id <= 150_000; id += id < 1000 || id > 130_000 ? 1 : 97) {
+            User user = newUser(id, "user" + id, "Name");
+            user.setRole(Role.values()[random.nextInt(Role.values().length)]);
+            user.setEnabled(random.nextInt(4) != 0);
+            user.setAge(random.nextInt(10) == 0 ? null : 15 + random.nextInt(50));
+            users.put(id, user);
+            index.update(null, user);
+        }
+        for (long id = 1; id <= 150_000; id += 13) {
+            User previous = users.get(id);
+            if (previous == null) {
+                continue;
+            }
+            if (id % 2 == 0) {
+                index.update(users.remove(id), null);
+            } else {
+                User changed = new User(previous);
+                changed.setRole(Role.MANAGER);
+                changed.setEnabled(!previous.isEnabled());
+                changed.setAge(30);
+                index.update(users.put(id, changed), changed);
+            }
+        }
+
+        List<UserFilter> filters = List.of(
+            new UserFilter(Role.MANAGER, true, 18, 30),
+            new UserFilter(null, false, null, null),
+            new UserFilter(Role.ADMIN, null, 40, null),
+            new UserFilter(null, null, null, 20),
+            new UserFilter(Role.USER, true, 50, 40),
+            new UserFilter(null, null, 100, null));
+        for (UserFilter filter : filters) {
+            List<Long> expected = new ArrayList<>();
+            for (User user : users.values()) {
+                if (filter.matches(user)) {
+                    expected.add(user.getId());
+                }
+            }
+            List<Long> found = new ArrayList<>();
+            long after = 0;
+            List<User> page;
+            do {
+                page = index.findByFilter(filter, after, 500, ids -> resolve(users, ids));
+                for (User user : page) {
+                    found.add(user.getId());
+                    after = user.getId();
+                }
+            } while (page.size() == 500);
+            assertEquals(expected, found);
+        }
+    }
+
+    private static boolean normalizedContains(String text, String query) {
+        return text.toLowerCase(Locale.ROOT).contains(query.toLowerCase(Locale.ROOT));
+    }
+
+    private static List<User> resolve(Map<Long, User> users, long[] ids) {
+        List<User> resolved = new ArrayList<>();
+        for (long id : ids) {
+            if (users.containsKey(id)) {
+                resolved.add(users.get(id));
+            }
+        }
+        return resolved;
+    }
+
+    @Test
+    void testMergedResultsAreOrderedLikeOneIndex() {
+        List<User> fromShards = new ArrayList<>(List.of(
+            newUser(4, "zed", "Joe Zed"), newUser(2, "joan", "Joan Smith"), newUser(9, "jo", "Someone")));
+
+        List<User> merged = UserSearchIndex.mergeByPrefix(fromShards, "jo", 2);
+
+        assertEquals(2, merged.size());
+        assertEquals("jo", merged.get(0).getUsername());
+        assertEquals("joan", merged.get(1).getUsername());
+    }
+
+    @Test
+    void testMergedSimilarUsernamesAreOrderedByDistance() {
+        List<User> fromShards = new ArrayList<>(List.of(
+            newUser(4, "janedoe", "Jane Doe"), newUser(2, "jondoe", "Jon Doe"), newUser(9, "johndoe", "John Doe")));
+
+        List<User> merged = UserSearchIndex.mergeBySimilarUsername(fromShards, "johndoe", 2);
+
+        assertEquals(2, merged.size());
+        assertEquals("johndoe", merged.get(0).getUsername());
+        assertEquals("jondoe", merged.get(1).getUsername());
+    }
+}
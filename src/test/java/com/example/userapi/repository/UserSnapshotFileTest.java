@@ -0,0 +1,149 @@
+package com.example.userapi.repository;
+
+import com.example.userapi.config.StorageProperties;
+import com.example.userapi.config.StorageProperties.FileFormat;
+import com.example.userapi.model.Role;
+import com.example.userapi.model.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the JSON and binary data file formats and the converter between them.
+ */
+class UserSnapshotFileTest {
+
+    @TempDir
+    Path tempDir;
+
+    private UserRepository openRepository(File dataFile, FileFormat format) {
+        StorageProperties properties = new StorageProperties();
+        properties.setDataFile(dataFile.getAbsolutePath());
+        properties.setFormat(format);
+        UserRepository repository = new UserRepository(properties);
+        repository.init();
+        return repository;
+    }
+
+    private User newUser(String username) {
+        return new User("Name " + username, username + "@example.com", 30, username, "hash-" + username, Role.MANAGER);
+    }
+
+    private List<User> readAll(File file) throws IOException {
+        List<User> users = new ArrayList<>();
+        new UserSnapshotFile(UserSnapshotFile.persistenceMapper()).read(file, (user, bytesRead) -> users.add(user));
+        return users;
+    }
+
+    @Test
+    void testBinaryRecordKeepsEveryField() {
+        User user = newUser("jürgen_ß");
+        user.setId(42L);
+        user.setEnabled(false);
+
+        User decoded = UserRecordCodec.decode(ByteBuffer.wrap(UserRecordCodec.encode(user)));
+
+        assertEquals(42L, decoded.getId());
+        assertEquals("Name jürgen_ß", decoded.getName());
+        assertEquals("jürgen_ß@example.com", decoded.getEmail());
+        assertEquals(30, decoded.getAge());
+        assertEquals("jürgen_ß", decoded.getUsername());
+        assertEquals("hash-jürgen_ß", decoded.getPassword());
+        assertEquals(Role.MANAGER, decoded.getRole());
+        assertFalse(decoded.isEnabled());
+    }
+
+    @Test
+    void testBinaryRecordKeepsNulls() {
+        User user = new User(7L, null, null, null);
+        user.setRole(null);
+
+        User decoded = UserRecordCodec.decode(ByteBuffer.wrap(UserRecordCodec.encode(user)));
+
+        assertEquals(7L, decoded.getId());
+        assertNull(decoded.getName());
+        assertNull(decoded.getAge());
+        assertNull(decoded.getUsername());
+        assertNull(decoded.getPassword());
+        assertNull(decoded.getRole());
+        assertTrue(decoded.isEnabled());
+    }
+
+    @Test
+    void testBinaryRepositoryRoundTrip() throws IOException {
+        File dataFile = tempDir.resolve("users.bin").toFile();
+        UserRepository repository = openRepository(dataFile, FileFormat.BINARY);
+        repository.save(newUser("johndoe"));
+        repository.save(newUser("janesmith"));
+        repository.close();
+
+        assertEquals(FileFormat.BINARY, UserSnapshotFile.detect(dataFile));
+        UserRepository reopened = openRepository(dataFile, FileFormat.BINARY);
+        assertEquals(2, reopened.findAll().size());
+        assertEquals("hash-johndoe", reopened.findByUsername("johndoe").get().getPassword());
+        reopened.close();
+    }
+
+    @Test
+    void testExistingJsonFileIsLoadedAndConvertedToConfiguredFormat() throws IOException {
+        File dataFile = tempDir.resolve("users.json").toFile();
+        UserRepository json = openRepository(dataFile, FileFormat.JSON);
+        json.save(newUser("johndoe"));
+        json.close();
+        assertEquals(FileFormat.JSON, UserSnapshotFile.detect(dataFile));
+
+        UserRepository binary = openRepository(dataFile, FileFormat.BINARY);
+
+        assertTrue(binary.findByUsername("johndoe").isPresent());
+        assertEquals(FileFormat.BINARY, UserSnapshotFile.detect(dataFile));
+        binary.close();
+    }
+
+    @Test
+    void testConverterWorksBothWays() throws IOException {
+        File jsonFile = tempDir.resolve("users.json").toFile();
+        UserRepository repository = openRepository(jsonFile, FileFormat.JSON);
+        for (int i = 0; i < 100; i++) {
+            repository.save(newUser("user" + i));
+        }
+        repository.close();
+        File binaryFile = tempDir.resolve("users.bin").toFile();
+        File backToJson = tempDir.resolve("users-again.json").toFile();
+
+        assertEquals(100, UserDataFileConverter.convert(jsonFile, binaryFile, FileFormat.BINARY));
+        assertEquals(100, UserDataFileConverter.convert(binaryFile, backToJson, FileFormat.JSON));
+
+        assertEquals(FileFormat.BINARY, UserSnapshotFile.detect(binaryFile));
+        assertEquals(FileFormat.JSON, UserSnapshotFile.detect(backToJson));
+        assertTrue(binaryFile.length() < jsonFile.length());
+        List<User> original = readAll(jsonFile);
+        List<User> roundTripped = readAll(backToJson);
+        assertEquals(original.size(), roundTripped.size());
+        for (int i = 0; i < original.size(); i++) {
+            assertEquals(original.get(i).getUsername(), roundTripped.get(i).getUsername());
+            assertEquals(original.get(i).getPassword(), roundTripped.get(i).getPassword());
+        }
+    }
+
+    @Test
+    void testTruncatedBinaryFileIsRejected() throws IOException {
+        File dataFile = tempDir.resolve("users.bin").toFile();
+        UserRepository repository = openRepository(dataFile, FileFormat.BINARY);
+        repository.save(newUser("johndoe"));
+        repository.close();
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        assertThrows(IOException.class, () -> readAll(dataFile));
+    }
+}